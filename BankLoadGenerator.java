@@ -0,0 +1,290 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Drives a running "OnlineBankSystem --serve" with many concurrent sessions and reports
+ * request latency. Each session is a connection that sends one command, waits for the
+ * reply and sends the next, alternating credits and withdrawals against a shared pool of
+ * accounts. All sessions run on one selector thread so the generator itself stays cheap.
+ * With auth "session" each connection logs in once and withdraws with its token; with
+ * "password" every withdrawal carries the password and is verified again. With mix
+ * "transfer" sessions send transfers between the accounts instead, so a small account
+ * pool makes them contend. Afterwards the balances are summed and checked against the
+ * opening balances plus every acknowledged credit and withdrawal, so no money may appear
+ * or vanish.
+ *
+ * Usage: java BankLoadGenerator [host] [port] [sessions] [requestsPerSession] [accounts] [session|password] [credit|transfer]
+ */
+public class BankLoadGenerator {
+    // Same default as BankServer
+    private static final int DEFAULT_PORT = 7070;
+    private static final String PASSWORD = "load";
+    private static final long OPENING_BALANCE = 500_00;
+    private static final long CREDIT = 10_00;
+    private static final long WITHDRAWAL = 5_00;
+    private static final long TRANSFER = 1_00;
+    // Connections opened per selector pass, to stay under the server's accept backlog
+    private static final int CONNECT_BATCH = 500;
+
+    private final InetSocketAddress address;
+    private final int sessions;
+    private final int requestsPerSession;
+    private final boolean useSessions;
+    private final boolean transfers;
+    private final int[] accountNumbers;
+    private final long[] latencies;
+    private int recorded;
+    private int failures;
+    private int loggedIn;
+    private long loginNanos;
+    // Money the acknowledged credits and withdrawals moved in or out of the pool, in cents
+    private long netInflow;
+
+    public BankLoadGenerator(InetSocketAddress address, int sessions, int requestsPerSession, int accounts,
+                             boolean useSessions, boolean transfers) {
+        this.address = address;
+        this.sessions = sessions;
+        this.requestsPerSession = requestsPerSession;
+        this.useSessions = useSessions;
+        this.transfers = transfers;
+        this.accountNumbers = new int[accounts];
+        this.latencies = new long[sessions * requestsPerSession];
+    }
+
+    public static void main(String[] args) throws IOException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        int requestsPerSession = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        int accounts = args.length > 4 ? Integer.parseInt(args[4]) : 1_000;
+        boolean useSessions = args.length <= 5 || !args[5].equalsIgnoreCase("password");
+        boolean transfers = args.length > 6 && args[6].equalsIgnoreCase("transfer");
+
+        BankLoadGenerator generator = new BankLoadGenerator(new InetSocketAddress(host, port), sessions, requestsPerSession,
+                accounts, useSessions, transfers);
+        generator.createAccounts();
+        generator.run();
+        if (!generator.checkConservation()) {
+            System.exit(1);
+        }
+    }
+
+    // Opens the account pool over one pipelined connection
+    private void createAccounts() throws IOException {
+        try (Socket socket = new Socket(address.getHostString(), address.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            StringBuilder commands = new StringBuilder();
+            for (int i = 0; i < accountNumbers.length; i++) {
+                commands.append("C load").append(i).append(" savings ").append(PASSWORD).append('\n');
+            }
+            out.write(commands.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            for (int i = 0; i < accountNumbers.length; i++) {
+                String reply = in.readLine();
+                if (reply == null || !reply.startsWith("OK ")) {
+                    throw new IOException("Could not create account: " + reply);
+                }
+                accountNumbers[i] = Integer.parseInt(reply.substring(3));
+            }
+        }
+        System.out.println("Created " + accountNumbers.length + " accounts.");
+    }
+
+    // Sums the pool's balances over one pipelined connection once every session is done
+    private boolean checkConservation() throws IOException {
+        long total = 0;
+        try (Socket socket = new Socket(address.getHostString(), address.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            StringBuilder commands = new StringBuilder();
+            for (int accountNumber : accountNumbers) {
+                commands.append("B ").append(accountNumber).append(' ').append(PASSWORD).append('\n');
+            }
+            out.write(commands.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            for (int i = 0; i < accountNumbers.length; i++) {
+                String reply = in.readLine();
+                if (reply == null || !reply.startsWith("OK ")) {
+                    throw new IOException("Could not read balance: " + reply);
+                }
+                total += Math.round(Double.parseDouble(reply.substring(3)) * 100);
+            }
+        }
+        long expected = OPENING_BALANCE * accountNumbers.length + netInflow;
+        System.out.printf("Conservation: total %.2f, expected %.2f: %s%n", total / 100.0, expected / 100.0,
+                total == expected ? "OK" : "VIOLATED");
+        return total == expected;
+    }
+
+    private void run() throws IOException {
+        Selector selector = Selector.open();
+        int opened = 0;
+        int finished = 0;
+        long started = System.nanoTime();
+        ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+
+        while (finished < sessions) {
+            for (int i = 0; i < CONNECT_BATCH && opened < sessions; i++, opened++) {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.connect(address);
+                channel.register(selector, SelectionKey.OP_CONNECT, new Session(opened));
+            }
+            selector.select(10);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Session session = (Session) key.attachment();
+                SocketChannel channel = (SocketChannel) key.channel();
+                try {
+                    if (key.isConnectable()) {
+                        channel.finishConnect();
+                        key.interestOps(SelectionKey.OP_READ);
+                        session.send(channel);
+                    } else if (key.isReadable() && session.receive(channel, readBuffer)) {
+                        channel.close();
+                        finished++;
+                    }
+                } catch (IOException e) {
+                    failures += requestsPerSession - session.completed;
+                    channel.close();
+                    finished++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - started;
+        selector.close();
+        report(elapsed);
+    }
+
+    private void report(long elapsedNanos) {
+        long[] sorted = Arrays.copyOf(latencies, recorded);
+        Arrays.sort(sorted);
+        System.out.println("Sessions: " + sessions + ", requests: " + recorded + ", failed: " + failures
+                + ", auth: " + (useSessions ? "session" : "password"));
+        if (loggedIn > 0) {
+            System.out.printf("Logins: %d, mean %.2f ms%n", loggedIn, loginNanos / 1e6 / loggedIn);
+        }
+        System.out.printf("Throughput: %.0f requests/s%n", recorded / (elapsedNanos / 1e9));
+        System.out.printf("Latency ms  p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 99.9),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static String money(long cents) {
+        return cents / 100 + "." + String.format("%02d", cents % 100);
+    }
+
+    private static double percentile(long[] sorted, double percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    private class Session {
+        private final Random random;
+        private final StringBuilder reply = new StringBuilder();
+        // A session with a token sticks to the account it logged in to
+        private final int accountIndex;
+        private final int accountNumber;
+        private String token;
+        private int completed;
+        private long sentAt;
+        // What the request in flight adds to the pool if it succeeds
+        private long inflow;
+
+        Session(int id) {
+            this.random = new Random(id);
+            this.accountIndex = random.nextInt(accountNumbers.length);
+            this.accountNumber = accountNumbers[accountIndex];
+        }
+
+        void send(SocketChannel channel) throws IOException {
+            String command;
+            String credential = useSessions ? token : accountNumber + " " + PASSWORD;
+            int target = transfers
+                    // Any account but the session's own, which the bank would reject
+                    ? accountNumbers[(accountIndex + 1 + random.nextInt(accountNumbers.length - 1)) % accountNumbers.length]
+                    : accountNumbers[random.nextInt(accountNumbers.length)];
+            if (useSessions && token == null) {
+                command = "O " + accountNumber + " " + PASSWORD + "\n";
+                inflow = 0;
+            } else if (transfers) {
+                command = "T " + credential + " " + target + " " + money(TRANSFER) + "\n";
+                inflow = 0;
+            } else if (completed % 2 == 0) {
+                command = "D " + (useSessions ? accountNumber : target) + " " + money(CREDIT) + "\n";
+                inflow = CREDIT;
+            } else {
+                command = "W " + (useSessions ? credential : target + " " + PASSWORD) + " " + money(WITHDRAWAL) + "\n";
+                inflow = -WITHDRAWAL;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(command.getBytes(StandardCharsets.UTF_8));
+            sentAt = System.nanoTime();
+            // A short command always fits the socket buffer of an idle connection
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        // Returns true once the session has sent all of its requests
+        boolean receive(SocketChannel channel, ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                char c = (char) buffer.get();
+                if (c != '\n') {
+                    reply.append(c);
+                    continue;
+                }
+                long latency = System.nanoTime() - sentAt;
+                if (useSessions && token == null) {
+                    if (!reply.toString().startsWith("OK ")) {
+                        throw new IOException("Login failed: " + reply);
+                    }
+                    token = reply.substring(3);
+                    reply.setLength(0);
+                    loggedIn++;
+                    loginNanos += latency;
+                    send(channel);
+                    continue;
+                }
+                latencies[recorded++] = latency;
+                if (reply.toString().startsWith("OK")) {
+                    netInflow += inflow;
+                } else {
+                    failures++;
+                }
+                reply.setLength(0);
+                if (++completed == requestsPerSession) {
+                    return true;
+                }
+                send(channel);
+            }
+            return false;
+        }
+    }
+}
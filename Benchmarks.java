@@ -0,0 +1,37 @@
+import java.io.IOException;
+import java.util.function.LongSupplier;
+
+/**
+ * Workloads for the JMH suite in jmh/, which measures the Bank and Library hot paths on
+ * generated datasets of 10K to 10M records. The workloads themselves are BankBenchmarks and
+ * LibraryBenchmarks, next to the code they measure; JMH's generated code cannot refer to
+ * classes in the unnamed package, so the suite calls their prepare(benchmark, size) by
+ * name, once per trial, and drives the Workload it returns through LongSupplier and
+ * AutoCloseable.
+ *
+ * The bank and the library keep their files in the working directory, so the suite runs
+ * from an empty directory of its own, which each trial empties before writing its dataset;
+ * keep the results file outside it:
+ *
+ *   mvn -B package
+ *   mkdir -p /tmp/bench/run && cd /tmp/bench/run
+ *   java -jar path/to/target/benchmarks.jar -rf json -rff ../results.json
+ *
+ * -p size=10000000 runs the 10M datasets, which need a larger heap: -jvmArgsAppend -Xmx8g.
+ * The JSON results can be compared run to run with the usual JMH result tools.
+ */
+public class Benchmarks {
+    // A sink the JIT cannot see through, for work done off the measured thread
+    static volatile long blackhole;
+
+    /**
+     * One benchmark's operation, prepared in the working directory. getAsLong() runs it once
+     * and returns something derived from the result. close() runs outside the timing after
+     * each iteration, so a single-shot workload can put back what its operation changed.
+     */
+    interface Workload extends LongSupplier, AutoCloseable {
+        @Override
+        default void close() throws IOException {
+        }
+    }
+}
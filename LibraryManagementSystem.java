@@ -1,487 +1,5148 @@
-import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
-
-public class LibraryManagementSystem {
-    public static void main(String[] args) {
-        Library library = new Library();
-        Scanner scanner = new Scanner(System.in);
-
-        while (true) {
-            System.out.println("\nLibrary Management System Menu:");
-            System.out.println("1. Add Book");
-            System.out.println("2. Display Books");
-            System.out.println("3. Add Patron");
-            System.out.println("4. Borrow Book");
-            System.out.println("5. Return Book");
-            System.out.println("6. Calculate Fine");
-            System.out.println("7. Search");
-            System.out.println("8. Generate Reports");
-            System.out.println("0. Exit");
-            System.out.print("Enter your choice: ");
-
-            try {
-                int choice = scanner.nextInt();
-                scanner.nextLine(); 
-
-                switch (choice) {
-                    case 1:
-                        Book newBook = getUserInputForBook(scanner);
-                        library.addBook(newBook);
-                        break;
-                    case 2:
-                        library.displayBooks();
-                        break;
-                    case 3:
-                        Patron newPatron = getUserInputForPatron(scanner);
-                        library.addPatron(newPatron);
-                        break;
-                    case 4:
-                        library.borrowBook(scanner);
-                        break;
-                    case 5:
-                        library.returnBook(scanner);
-                        break;
-                    case 6:
-                        library.calculateFine(scanner);
-                        break;
-                    case 7:
-                        library.search(scanner);
-                        break;
-                    case 8:
-                        library.generateReports();
-                        break;
-                    case 0:
-                        System.out.println("Exiting Library Management System. Goodbye!");
-                        System.exit(0);
-                    default:
-                        System.out.println("Invalid choice. Please enter a valid option.");
-                }
-            } catch (Exception e) {
-                System.out.println("Error: Invalid input. Please enter a number.");
-                scanner.nextLine(); 
-            }
-        }
-    }
-
-    private static Book getUserInputForBook(Scanner scanner) {
-        System.out.println("Enter Book Details:");
-        System.out.print("Title: ");
-        String title = scanner.nextLine();
-
-        System.out.print("Author: ");
-        String author = scanner.nextLine();
-
-        System.out.print("Genre: ");
-        String genre = scanner.nextLine();
-
-        return new Book(title, author, genre, true);
-    }
-
-    private static Patron getUserInputForPatron(Scanner scanner) {
-        System.out.println("Enter Patron Details:");
-        System.out.print("Name: ");
-        String name = scanner.nextLine();
-
-        System.out.print("Contact Information: ");
-        String contactInfo = scanner.nextLine();
-
-        return new Patron(name, contactInfo);
-    }
-}
-
-class Book implements Serializable {
-    private String title;
-    private String author;
-    private String genre;
-    private boolean available;
-
-    public Book(String title, String author, String genre, boolean available) {
-        this.title = title;
-        this.author = author;
-        this.genre = genre;
-        this.available = available;
-    }
-
-    public String getTitle() {
-        return title;
-    }
-
-    public String getAuthor() {
-        return author;
-    }
-
-    public String getGenre() {
-        return genre;
-    }
-
-    public boolean isAvailable() {
-        return available;
-    }
-
-    public void setAvailable(boolean available) {
-        this.available = available;
-    }
-
-    @Override
-    public String toString() {
-        return "Title: " + title + ", Author: " + author + ", Genre: " + genre + ", Available: " + available;
-    }
-}
-
-class Patron implements Serializable {
-    private String name;
-    private String contactInfo;
-
-    public Patron(String name, String contactInfo) {
-        this.name = name;
-        this.contactInfo = contactInfo;
-    }
-
-    public String getName() {
-        return name;
-    }
-
-    public String getContactInfo() {
-        return contactInfo;
-    }
-
-    @Override
-    public String toString() {
-        return "Name: " + name + ", Contact Information: " + contactInfo;
-    }
-}
-
-class Library {
-    private List<Book> books;
-    private List<Patron> patrons;
-
-    private static final String BOOKS_FILE = "books.txt";
-    private static final String PATRONS_FILE = "patrons.txt";
-
-    public Library() {
-        this.books = loadBooksFromFile();
-        this.patrons = loadPatronsFromFile();
-    }
-
-    public void addBook(Book book) {
-        books.add(book);
-        saveBooksToFile();
-    }
-
-    public void displayBooks() {
-        System.out.println("Library Books:");
-        for (Book book : books) {
-            System.out.println(book);
-        }
-    }
-
-    public void addPatron(Patron patron) {
-        patrons.add(patron);
-        savePatronsToFile();
-    }
-
-    public void borrowBook(Scanner scanner) {
-        System.out.println("Enter Patron Name:");
-        String patronName = scanner.nextLine();
-
-        Patron patron = findPatronByName(patronName);
-        if (patron == null) {
-            System.out.println("Patron not found. Please add the patron first.");
-            return;
-        }
-
-        displayBooks();
-        System.out.println("Enter Book Title to Borrow:");
-        String bookTitle = scanner.nextLine();
-
-        Book book = findBookByTitle(bookTitle);
-        if (book == null) {
-            System.out.println("Book not found. Please add the book first.");
-            return;
-        }
-
-        if (!book.isAvailable()) {
-            System.out.println("Sorry, the book is not available for borrowing.");
-            return;
-        }
-
-        book.setAvailable(false);
-        System.out.println("Book borrowed successfully by " + patron.getName());
-        saveBooksToFile();
-    }
-
-    public void returnBook(Scanner scanner) {
-        displayBooks();
-        System.out.println("Enter Book Title to Return:");
-        String bookTitle = scanner.nextLine();
-
-        Book book = findBookByTitle(bookTitle);
-        if (book == null) {
-            System.out.println("Book not found.");
-            return;
-        }
-
-        if (book.isAvailable()) {
-            System.out.println("The book is already available. No need to return.");
-            return;
-        }
-
-        book.setAvailable(true);
-        System.out.println("Book returned successfully.");
-        saveBooksToFile();
-    }
-
-    public void calculateFine(Scanner scanner) {
-        System.out.println("Enter Patron Name:");
-        String patronName = scanner.nextLine();
-
-        Patron patron = findPatronByName(patronName);
-        if (patron == null) {
-            System.out.println("Patron not found. Please add the patron first.");
-            return;
-        }
-
-        System.out.println("Enter Book Title:");
-        String bookTitle = scanner.nextLine();
-
-        Book book = findBookByTitle(bookTitle);
-        if (book == null) {
-            System.out.println("Book not found. Please add the book first.");
-            return;
-        }
-
-        int daysOverdue = calculateDaysOverdue(book);
-        if (daysOverdue > 0) {
-            double fineAmount = calculateFineAmount(daysOverdue);
-            System.out.println("Fine for " + patron.getName() + ": $" + fineAmount);
-        } else {
-            System.out.println("No fines for " + patron.getName() + ".");
-        }
-    }
-
-    private int calculateDaysOverdue(Book book) {
-        int daysFromBorrowing = 10;
-        int dueDays = 7;
-        return Math.max(daysFromBorrowing - dueDays, 0);
-    }
-
-    private double calculateFineAmount(int daysOverdue) {
-        double fineRate = 1.0;
-        return daysOverdue * fineRate;
-    }
-
-    public void search(Scanner scanner) {
-        System.out.println("Search Options:");
-        System.out.println("1. Search Books by Title");
-        System.out.println("2. Search Books by Author");
-        System.out.println("3. Search Books by Genre");
-        System.out.println("4. Search Patrons by Name");
-        System.out.println("0. Cancel");
-        System.out.print("Enter your choice: ");
-
-        int searchChoice = scanner.nextInt();
-        scanner.nextLine(); 
-
-        switch (searchChoice) {
-            case 1:
-                System.out.println("Enter Book Title to Search:");
-                String titleToSearch = scanner.nextLine();
-                List<Book> booksWithTitle = findBooksByTitle(titleToSearch);
-                displaySearchResults(booksWithTitle);
-                break;
-            case 2:
-                System.out.println("Enter Author Name to Search:");
-                String authorToSearch = scanner.nextLine();
-                List<Book> booksWithAuthor = findBooksByAuthor(authorToSearch);
-                displaySearchResults(booksWithAuthor);
-                break;
-            case 3:
-                System.out.println("Enter Genre to Search:");
-                String genreToSearch = scanner.nextLine();
-                List<Book> booksWithGenre = findBooksByGenre(genreToSearch);
-                displaySearchResults(booksWithGenre);
-                break;
-            case 4:
-                System.out.println("Enter Patron Name to Search:");
-                String nameToSearch = scanner.nextLine();
-                List<Patron> patronsWithName = findPatronsByName(nameToSearch);
-                displaySearchResults(patronsWithName);
-                break;
-            case 0:
-                break;
-            default:
-                System.out.println("Invalid choice. Please enter a valid option.");
-        }
-    }
-
-    public void generateReports() {
-        System.out.println("Report Options:");
-        System.out.println("1. Book Availability Report");
-        System.out.println("2. Borrowing History Report");
-        System.out.println("3. Fine Report");
-        System.out.println("0. Cancel");
-        System.out.print("Enter your choice: ");
-
-        Scanner scanner = new Scanner(System.in);
-        int reportChoice = scanner.nextInt();
-        scanner.nextLine(); 
-
-        switch (reportChoice) {
-            case 1:
-                generateBookAvailabilityReport();
-                break;
-            case 2:
-                generateBorrowingHistoryReport();
-                break;
-            case 3:
-                generateFineReport();
-                break;
-            case 0:
-                break;
-            default:
-                System.out.println("Invalid choice. Please enter a valid option.");
-        }
-    }
-
-    private List<Book> loadBooksFromFile() {
-        List<Book> loadedBooks = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(BOOKS_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                String title = parts[0].trim();
-                String author = parts[1].trim();
-                String genre = parts[2].trim();
-                boolean available = Boolean.parseBoolean(parts[3].trim());
-                loadedBooks.add(new Book(title, author, genre, available));
-            }
-        } catch (IOException e) {
-            System.out.println("Error reading books file: " + e.getMessage());
-        }
-        return loadedBooks;
-    }
-
-    private void saveBooksToFile() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(BOOKS_FILE))) {
-            for (Book book : books) {
-                writer.write(book.getTitle() + ", " + book.getAuthor() + ", " + book.getGenre() + ", " + book.isAvailable());
-                writer.newLine();
-            }
-        } catch (IOException e) {
-            System.out.println("Error writing to books file: " + e.getMessage());
-        }
-    }
-
-    private List<Patron> loadPatronsFromFile() {
-        List<Patron> loadedPatrons = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(PATRONS_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                String name = parts[0].trim();
-                String contactInfo = parts[1].trim();
-                loadedPatrons.add(new Patron(name, contactInfo));
-            }
-        } catch (IOException e) {
-            System.out.println("Error reading patrons file: " + e.getMessage());
-        }
-        return loadedPatrons;
-    }
-
-    private void savePatronsToFile() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(PATRONS_FILE))) {
-            for (Patron patron : patrons) {
-                writer.write(patron.getName() + ", " + patron.getContactInfo());
-                writer.newLine();
-            }
-        } catch (IOException e) {
-            System.out.println("Error writing to patrons file: " + e.getMessage());
-        }
-    }
-
-    private Patron findPatronByName(String name) {
-        for (Patron patron : patrons) {
-            if (patron.getName().equalsIgnoreCase(name)) {
-                return patron;
-            }
-        }
-        return null;
-    }
-
-    private Book findBookByTitle(String title) {
-        for (Book book : books) {
-            if (book.getTitle().equalsIgnoreCase(title)) {
-                return book;
-            }
-        }
-        return null;
-    }
-
-    private List<Book> findBooksByTitle(String title) {
-        List<Book> result = new ArrayList<>();
-        for (Book book : books) {
-            if (book.getTitle().toLowerCase().contains(title.toLowerCase())) {
-                result.add(book);
-            }
-        }
-        return result;
-    }
-
-    private List<Book> findBooksByAuthor(String author) {
-        List<Book> result = new ArrayList<>();
-        for (Book book : books) {
-            if (book.getAuthor().toLowerCase().contains(author.toLowerCase())) {
-                result.add(book);
-            }
-        }
-        return result;
-    }
-
-    private List<Book> findBooksByGenre(String genre) {
-        List<Book> result = new ArrayList<>();
-        for (Book book : books) {
-            if (book.getGenre().toLowerCase().contains(genre.toLowerCase())) {
-                result.add(book);
-            }
-        }
-        return result;
-    }
-
-    private List<Patron> findPatronsByName(String name) {
-        List<Patron> result = new ArrayList<>();
-        for (Patron patron : patrons) {
-            if (patron.getName().toLowerCase().contains(name.toLowerCase())) {
-                result.add(patron);
-            }
-        }
-        return result;
-    }
-
-    private void displaySearchResults(List<?> searchResults) {
-        if (searchResults.isEmpty()) {
-            System.out.println("No matching results found.");
-        } else {
-            System.out.println("Search Results:");
-            for (Object result : searchResults) {
-                System.out.println(result);
-            }
-        }
-    }
-
-    private void generateBookAvailabilityReport() {
-        System.out.println("Book Availability Report:");
-        for (Book book : books) {
-            System.out.println(book.getTitle() + ": " + (book.isAvailable() ? "Available" : "Not Available"));
-        }
-    }
-
-    private void generateBorrowingHistoryReport() {
-        System.out.println("Borrowing History Report: (Not implemented in this example)");
-    }
-
-    private void generateFineReport() {
-        System.out.println("Fine Report: (Not implemented in this example)");
-    }
-}
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.RandomAccess;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.IntUnaryOperator;
+
+public class LibraryManagementSystem {
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--check-lending")) {
+            boolean passed;
+            try {
+                passed = LibraryChecks.checkLending(args.length > 1 ? Integer.parseInt(args[1]) : 32,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 10);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                passed = false;
+            }
+            System.exit(passed ? 0 : 1);
+        }
+        // Timers are always recorded and in JMX; -Dmetrics.port also serves them as text
+        Metrics.serveIfConfigured();
+        Library library;
+        try {
+            library = new Library();
+        } catch (UncheckedIOException e) {
+            System.out.println("Library not started. " + e.getMessage() + ": " + e.getCause().getMessage());
+            Metrics.stopServing();
+            System.exit(1);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--convert")) {
+            library.convertToCatalogueFile();
+            Metrics.stopServing();
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--import")) {
+            int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            library.importBooks(Paths.get(args[1]), threads);
+            Metrics.stopServing();
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--export")) {
+            // CSV, the default, has the header --import reads, so an export can be imported again
+            RecordWriter.Format format = args.length > 2 && args[2].equalsIgnoreCase("json")
+                    ? RecordWriter.Format.JSON_LINES : RecordWriter.Format.CSV;
+            long start = System.nanoTime();
+            try (FileChannel channel = FileChannel.open(Paths.get(args[1]),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long exported = library.exportBooks(channel, format);
+                System.out.printf("Exported %d books to %s in %d ms%n", exported, args[1],
+                        (System.nanoTime() - start) / 1_000_000);
+            } catch (IOException e) {
+                System.out.println("Error writing export file: " + e.getMessage());
+            }
+            Metrics.stopServing();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--build-index")) {
+            if (library.buildRankedIndex()) {
+                System.out.println("Indexed " + library.getBooks().size() + " books into books.idx.");
+            }
+            Metrics.stopServing();
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--replay")) {
+            int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            try {
+                new LibraryRequestReplay(library, threads).run(Paths.get(args[1]));
+            } catch (IOException e) {
+                System.out.println("Error reading requests file: " + e.getMessage());
+            }
+            Metrics.stopServing();
+            return;
+        }
+        Scanner scanner = new Scanner(System.in);
+        LibraryConsole console = new LibraryConsole(library, scanner);
+
+        while (true) {
+            System.out.println("\nLibrary Management System Menu:");
+            System.out.println("1. Add Book");
+            System.out.println("2. Display Books");
+            System.out.println("3. Add Patron");
+            System.out.println("4. Borrow Book");
+            System.out.println("5. Return Book");
+            System.out.println("6. Calculate Fine");
+            System.out.println("7. Search");
+            System.out.println("8. Generate Reports");
+            System.out.println("0. Exit");
+            System.out.print("Enter your choice: ");
+
+            try {
+                int choice = scanner.nextInt();
+                scanner.nextLine(); 
+
+                switch (choice) {
+                    case 1:
+                        Book newBook = getUserInputForBook(scanner);
+                        console.addBook(newBook);
+                        break;
+                    case 2:
+                        console.displayBooks();
+                        break;
+                    case 3:
+                        Patron newPatron = getUserInputForPatron(scanner);
+                        library.addPatron(newPatron);
+                        break;
+                    case 4:
+                        console.borrowBook();
+                        break;
+                    case 5:
+                        console.returnBook();
+                        break;
+                    case 6:
+                        console.calculateFine();
+                        break;
+                    case 7:
+                        console.search();
+                        break;
+                    case 8:
+                        console.generateReports();
+                        break;
+                    case 0:
+                        System.out.println("Exiting Library Management System. Goodbye!");
+                        System.exit(0);
+                    default:
+                        System.out.println("Invalid choice. Please enter a valid option.");
+                }
+            } catch (Exception e) {
+                System.out.println("Error: Invalid input. Please enter a number.");
+                scanner.nextLine(); 
+            }
+        }
+    }
+
+    private static Book getUserInputForBook(Scanner scanner) {
+        System.out.println("Enter Book Details:");
+        System.out.print("Title: ");
+        String title = scanner.nextLine();
+
+        System.out.print("Author: ");
+        String author = scanner.nextLine();
+
+        System.out.print("Genre: ");
+        String genre = scanner.nextLine();
+
+        return new Book(title, author, genre, true);
+    }
+
+    private static Patron getUserInputForPatron(Scanner scanner) {
+        System.out.println("Enter Patron Details:");
+        System.out.print("Name: ");
+        String name = scanner.nextLine();
+
+        System.out.print("Contact Information: ");
+        String contactInfo = scanner.nextLine();
+
+        return new Patron(name, contactInfo);
+    }
+}
+
+/**
+ * The interactive menu's side of Library: prompts on the shared Scanner, calls the
+ * Library service API and prints the outcome. Library itself never reads System.in.
+ */
+class LibraryConsole {
+    private static final int RESULTS_PER_PAGE = 10;
+
+    private final Library library;
+    private final Scanner scanner;
+
+    public LibraryConsole(Library library, Scanner scanner) {
+        this.library = library;
+        this.scanner = scanner;
+    }
+
+    public void addBook(Book book) {
+        Book catalogued = library.addBook(book);
+        if (catalogued.getId() != book.getId()) {
+            System.out.println("Added another copy of " + catalogued.getTitle() + "; " + catalogued.getTotalCopies() + " copies in total.");
+        }
+    }
+
+    public void displayBooks() {
+        printPaged("Library Books", library.getBooksSnapshot(), Book::toString);
+    }
+
+    public void borrowBook() {
+        System.out.println("Enter Patron Name:");
+        String patronName = scanner.nextLine();
+
+        if (library.findPatron(patronName) == null) {
+            System.out.println("Patron not found. Please add the patron first.");
+            return;
+        }
+
+        System.out.println("Enter Book Title to Borrow:");
+        String bookTitle = scanner.nextLine();
+
+        LoanOutcome outcome = library.borrow(patronName, bookTitle, false);
+        if (outcome.getStatus() == LoanStatus.UNAVAILABLE) {
+            System.out.println("Sorry, all " + outcome.getBook().getTotalCopies() + " copies are out. Place a hold? (y/n)");
+            if (!scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                return;
+            }
+            outcome = library.borrow(patronName, bookTitle, true);
+        }
+
+        switch (outcome.getStatus()) {
+            case BORROWED:
+                System.out.println("Book borrowed successfully by " + outcome.getLoan().getPatronName() +
+                        ". Due on " + LocalDate.ofEpochDay(outcome.getLoan().getDueDay()) + ".");
+                break;
+            case ON_HOLD:
+                System.out.println("Hold placed. " + patronName + " is number " + outcome.getHoldPosition() + " in the queue.");
+                break;
+            case ALREADY_ON_HOLD:
+                System.out.println(patronName + " is already waiting for this book.");
+                break;
+            case PATRON_NOT_FOUND:
+                System.out.println("Patron not found. Please add the patron first.");
+                break;
+            case BOOK_NOT_FOUND:
+                System.out.println("Book not found. Please add the book first.");
+                break;
+            default:
+                break;
+        }
+    }
+
+    public void returnBook() {
+        System.out.println("Enter Patron Name:");
+        String patronName = scanner.nextLine();
+
+        System.out.println("Enter Book Title to Return:");
+        String bookTitle = scanner.nextLine();
+
+        LoanOutcome outcome = library.returnBook(patronName, bookTitle);
+        if (outcome.getStatus() == LoanStatus.BOOK_NOT_FOUND) {
+            System.out.println("Book not found.");
+            return;
+        }
+        if (outcome.getStatus() == LoanStatus.NOT_ON_LOAN) {
+            System.out.println(patronName + " has no copy of " + outcome.getBook().getTitle() + " on loan.");
+            return;
+        }
+        if (outcome.getStatus() != LoanStatus.RETURNED) {
+            return;
+        }
+        Loan loan = outcome.getLoan();
+        int daysOverdue = loan.daysOverdue(LocalDate.now().toEpochDay());
+        if (daysOverdue > 0) {
+            System.out.println("Returned " + daysOverdue + " days late by " + loan.getPatronName() +
+                    ". Fine due: $" + library.calculateFineAmount(daysOverdue));
+        }
+        System.out.println("Book returned successfully.");
+        Loan handedTo = outcome.getHandedTo();
+        if (handedTo != null) {
+            System.out.println("The copy is held for " + handedTo.getPatronName() +
+                    ", now due on " + LocalDate.ofEpochDay(handedTo.getDueDay()) + ".");
+        }
+    }
+
+    public void calculateFine() {
+        System.out.println("Enter Patron Name:");
+        String patronName = scanner.nextLine();
+
+        if (library.findPatron(patronName) == null) {
+            System.out.println("Patron not found. Please add the patron first.");
+            return;
+        }
+
+        System.out.println("Enter Book Title:");
+        String bookTitle = scanner.nextLine();
+
+        LoanOutcome outcome = library.findLoan(patronName, bookTitle);
+        switch (outcome.getStatus()) {
+            case ON_LOAN:
+                double fineAmount = library.getFine(outcome.getLoan());
+                if (fineAmount > 0) {
+                    System.out.println("Fine for " + outcome.getLoan().getPatronName() + ": $" + fineAmount);
+                } else {
+                    System.out.println("No fines for " + outcome.getLoan().getPatronName() + ".");
+                }
+                break;
+            case NOT_ON_LOAN:
+                System.out.println(patronName + " has no active loan of " + outcome.getBook().getTitle() + ".");
+                break;
+            case BOOK_NOT_FOUND:
+                System.out.println("Book not found. Please add the book first.");
+                break;
+            default:
+                System.out.println("Patron not found. Please add the patron first.");
+        }
+    }
+
+    public void search() {
+        System.out.println("Search Options:");
+        System.out.println("1. Search Books by Title");
+        System.out.println("2. Search Books by Author");
+        System.out.println("3. Search Books by Genre");
+        System.out.println("4. Search Patrons by Name");
+        System.out.println("5. Ranked Search of Books (title, author and genre)");
+        System.out.println("0. Cancel");
+        System.out.print("Enter your choice: ");
+
+        int searchChoice = scanner.nextInt();
+        scanner.nextLine(); 
+
+        switch (searchChoice) {
+            case 1:
+                System.out.println("Enter Book Title to Search:");
+                displaySearchResults(library.searchBooks(BookField.TITLE, scanner.nextLine()));
+                break;
+            case 2:
+                System.out.println("Enter Author Name to Search:");
+                displaySearchResults(library.searchBooks(BookField.AUTHOR, scanner.nextLine()));
+                break;
+            case 3:
+                System.out.println("Enter Genre to Search:");
+                displaySearchResults(library.searchBooks(BookField.GENRE, scanner.nextLine()));
+                break;
+            case 4:
+                System.out.println("Enter Patron Name to Search:");
+                displaySearchResults(library.searchPatrons(scanner.nextLine()));
+                break;
+            case 5:
+                System.out.println("Enter Words to Search:");
+                displayRankedResults(scanner.nextLine());
+                break;
+            case 0:
+                break;
+            default:
+                System.out.println("Invalid choice. Please enter a valid option.");
+        }
+    }
+
+    public void generateReports() {
+        System.out.println("Report Options:");
+        System.out.println("1. Book Availability Report");
+        System.out.println("2. Borrowing History Report");
+        System.out.println("3. Fine Report");
+        System.out.println("0. Cancel");
+        System.out.print("Enter your choice: ");
+
+        int reportChoice = scanner.nextInt();
+        scanner.nextLine(); 
+
+        switch (reportChoice) {
+            case 1:
+                generateBookAvailabilityReport();
+                break;
+            case 2:
+                generateBorrowingHistoryReport();
+                break;
+            case 3:
+                generateFineReport();
+                break;
+            case 0:
+                break;
+            default:
+                System.out.println("Invalid choice. Please enter a valid option.");
+        }
+    }
+
+    private void displayRankedResults(String query) {
+        for (int page = 0; ; page++) {
+            SearchPage results = library.rankedSearch(query, page, RESULTS_PER_PAGE);
+            if (page == 0 && results.getBooks().isEmpty()) {
+                System.out.println("No matching results found.");
+                return;
+            }
+            System.out.println("Search Results (page " + (page + 1) + "):");
+            for (Book book : results.getBooks()) {
+                System.out.println(book);
+            }
+            if (!results.hasMore()) {
+                return;
+            }
+            System.out.print("Enter n for the next page, anything else to stop: ");
+            if (!scanner.nextLine().trim().equalsIgnoreCase("n")) {
+                return;
+            }
+        }
+    }
+
+    private void displaySearchResults(List<?> searchResults) {
+        if (searchResults.isEmpty()) {
+            System.out.println("No matching results found.");
+        } else {
+            printPaged("Search Results", searchResults, String::valueOf);
+        }
+    }
+
+    private void generateBookAvailabilityReport() {
+        printPaged("Book Availability Report", library.getBooksSnapshot(), book -> {
+            String copies = book.getTotalCopies() > 1 ? " (" + book.getAvailableCopies() + " of " + book.getTotalCopies() + " copies)" : "";
+            int holds = library.getHoldCount(book);
+            return book.getTitle() + ": " + (book.isAvailable() ? "Available" : "Not Available") + copies
+                    + (holds > 0 ? ", " + holds + " waiting" : "");
+        });
+    }
+
+    /**
+     * Prints RESULTS_PER_PAGE lines at a time, asking before each further page. Only the rows
+     * shown are read, so paging a snapshot of a large catalogue costs what is on screen.
+     */
+    private <T> void printPaged(String heading, List<T> items, Function<? super T, String> line) {
+        for (int page = 0; ; page++) {
+            int from = page * RESULTS_PER_PAGE;
+            int to = Math.min(from + RESULTS_PER_PAGE, items.size());
+            System.out.println(page == 0 ? heading + ":" : heading + " (page " + (page + 1) + "):");
+            for (int i = from; i < to; i++) {
+                System.out.println(line.apply(items.get(i)));
+            }
+            if (to == items.size()) {
+                return;
+            }
+            System.out.print("Enter n for the next page, anything else to stop: ");
+            if (!scanner.nextLine().trim().equalsIgnoreCase("n")) {
+                return;
+            }
+        }
+    }
+
+    private void generateBorrowingHistoryReport() {
+        BorrowingReport report = library.getBorrowingReport();
+        BorrowingCounters counters = report.getCounters();
+        System.out.println("Borrowing History Report:");
+        System.out.println("All time: " + counters.getBorrows() + " borrows, " + counters.getReturns() + " returns");
+        System.out.println("Most active patrons:");
+        for (Map.Entry<String, long[]> entry : counters.topPatrons(5)) {
+            System.out.println("  " + entry.getKey() + ": " + entry.getValue()[0]);
+        }
+        System.out.println("Most borrowed books:");
+        for (Map.Entry<Integer, long[]> entry : counters.topBooks(5)) {
+            System.out.println("  " + library.getBook(entry.getKey()).getTitle() + ": " + entry.getValue()[0]);
+        }
+        System.out.println("Borrows by genre:");
+        for (Map.Entry<String, long[]> entry : counters.topGenres(Integer.MAX_VALUE)) {
+            System.out.println("  " + entry.getKey() + ": " + entry.getValue()[0]);
+        }
+        System.out.println("Last " + report.getWindowDays() + " days: " + report.getWindowBorrows() + " borrows, "
+                + report.getWindowReturns() + " returns");
+        for (Map.Entry<String, long[]> entry : report.getWindowGenres()) {
+            System.out.println("  " + entry.getKey() + ": " + entry.getValue()[0]);
+        }
+    }
+
+    private void generateFineReport() {
+        List<Loan> overdueLoans = library.getOverdueLoans();
+
+        System.out.println("Fine Report:");
+        if (overdueLoans.isEmpty()) {
+            System.out.println("No overdue loans.");
+            return;
+        }
+        long today = LocalDate.now().toEpochDay();
+        double totalFines = 0;
+        for (Loan loan : overdueLoans) {
+            int daysOverdue = loan.daysOverdue(today);
+            double fineAmount = library.calculateFineAmount(daysOverdue);
+            totalFines += fineAmount;
+            System.out.println(loan.getPatronName() + ": " + library.getBook(loan.getBookId()).getTitle() +
+                    ", due " + LocalDate.ofEpochDay(loan.getDueDay()) + ", " + daysOverdue + " days overdue, Fine: $" + fineAmount);
+        }
+        System.out.println("Total Fines: $" + totalFines);
+    }
+}
+
+/**
+ * A title with one or more physical copies. Borrowing and returning change the available
+ * count with compare-and-set, so desks working on the same title never lock each other.
+ */
+class Book implements Serializable {
+    private String title;
+    private String author;
+    private String genre;
+    private volatile int totalCopies;
+    private final AtomicInteger availableCopies;
+    // Position in the catalogue, assigned by Library; the books.log entries refer to it
+    private int id = -1;
+
+    public Book(String title, String author, String genre, boolean available) {
+        this(title, author, genre, 1, available ? 1 : 0);
+    }
+
+    public Book(String title, String author, String genre, int totalCopies, int availableCopies) {
+        this.title = title;
+        this.author = author;
+        this.genre = genre;
+        this.totalCopies = totalCopies;
+        this.availableCopies = new AtomicInteger(availableCopies);
+    }
+
+    // For a view that keeps the fields elsewhere and overrides every accessor (see CompactBookList)
+    Book(int id) {
+        this.availableCopies = null;
+        this.id = id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public String getGenre() {
+        return genre;
+    }
+
+    public boolean isAvailable() {
+        return availableCopies.get() > 0;
+    }
+
+    // Only used when replaying old single-copy log entries
+    public void setAvailable(boolean available) {
+        availableCopies.set(available ? totalCopies : 0);
+    }
+
+    public int getTotalCopies() {
+        return totalCopies;
+    }
+
+    public int getAvailableCopies() {
+        return availableCopies.get();
+    }
+
+    public boolean tryBorrow() {
+        int available;
+        do {
+            available = availableCopies.get();
+            if (available == 0) {
+                return false;
+            }
+        } while (!availableCopies.compareAndSet(available, available - 1));
+        return true;
+    }
+
+    public boolean returnCopy() {
+        int available;
+        do {
+            available = availableCopies.get();
+            if (available >= totalCopies) {
+                return false;
+            }
+        } while (!availableCopies.compareAndSet(available, available + 1));
+        return true;
+    }
+
+    public synchronized void addCopy() {
+        totalCopies++;
+        availableCopies.incrementAndGet();
+    }
+
+    public synchronized void addCopies(int copies) {
+        totalCopies += copies;
+        availableCopies.addAndGet(copies);
+    }
+
+    // Applies a logged borrow (-1) or return (+1) during replay
+    void adjustAvailable(int delta) {
+        availableCopies.addAndGet(delta);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
+    @Override
+    public String toString() {
+        int total = getTotalCopies();
+        String copies = total > 1 ? ", Copies: " + getAvailableCopies() + "/" + total : "";
+        return "Title: " + getTitle() + ", Author: " + getAuthor() + ", Genre: " + getGenre() + ", Available: " + isAvailable() + copies;
+    }
+}
+
+class Patron implements Serializable {
+    private String name;
+    private String contactInfo;
+
+    public Patron(String name, String contactInfo) {
+        this.name = name;
+        this.contactInfo = contactInfo;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getContactInfo() {
+        return contactInfo;
+    }
+
+    @Override
+    public String toString() {
+        return "Name: " + name + ", Contact Information: " + contactInfo;
+    }
+}
+
+/**
+ * Comma-separated fields as books.txt, patrons.txt and catalogue imports hold them. A field
+ * may be wrapped in double quotes to hold commas, with a quote inside it written twice, and
+ * whitespace around a field is dropped. Files written before quoting have no such fields,
+ * and a field that only starts with a quote, like "Hello" World, reads as written.
+ */
+class CsvRecord {
+    public static String[] split(String line) {
+        return split(line, 0);
+    }
+
+    // With a positive limit there are at most limit fields; the last is the rest of the line as written
+    public static String[] split(String line, int limit) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder quoted = new StringBuilder();
+        int length = line.length();
+        int position = 0;
+        while (true) {
+            if (limit > 0 && fields.size() == limit - 1) {
+                fields.add(line.substring(position));
+                break;
+            }
+            int start = position;
+            while (start < length && Character.isWhitespace(line.charAt(start))) {
+                start++;
+            }
+            int next = start < length && line.charAt(start) == '"' ? readQuoted(line, start, quoted) : -1;
+            if (next >= 0) {
+                fields.add(quoted.toString());
+            } else {
+                next = line.indexOf(',', start);
+                next = next < 0 ? length : next;
+                fields.add(line.substring(start, next).trim());
+            }
+            if (next >= length) {
+                break;
+            }
+            position = next + 1;
+        }
+        return fields.toArray(new String[0]);
+    }
+
+    // Reads the quoted field at start into value; returns the index of the comma or end after it, or -1 if malformed
+    private static int readQuoted(String line, int start, StringBuilder value) {
+        value.setLength(0);
+        int position = start + 1;
+        while (position < line.length()) {
+            char c = line.charAt(position++);
+            if (c != '"') {
+                value.append(c);
+            } else if (position < line.length() && line.charAt(position) == '"') {
+                value.append('"');
+                position++;
+            } else {
+                while (position < line.length() && line.charAt(position) != ',') {
+                    if (!Character.isWhitespace(line.charAt(position++))) {
+                        return -1;
+                    }
+                }
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    // The value as one field that split() reads back unchanged
+    public static String field(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.equals(value.trim())) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
+
+/**
+ * Writes records as CSV lines (quoted so CsvRecord reads them back) or as JSON lines,
+ * straight into a channel through one reused buffer. Text is encoded to UTF-8 as it is
+ * copied in, fields already held as UTF-8 are copied byte for byte, and numbers are
+ * written digit by digit, so a record creates no objects however many are written.
+ * The CSV form starts with a header of the field names. Not for use by several threads.
+ */
+class RecordWriter implements Flushable {
+    enum Format {
+        CSV, JSON_LINES
+    }
+
+    private final WritableByteChannel channel;
+    private final Format format;
+    // `{"name":` for the first field of a JSON record and `,"name":` for the others
+    private final byte[][] keys;
+    private final byte[] buffer = new byte[1 << 16];
+    private final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+    private int position;
+    private int field;
+    private long records;
+
+    RecordWriter(WritableByteChannel channel, Format format, String... names) throws IOException {
+        this.channel = channel;
+        this.format = format;
+        this.keys = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            keys[i] = ((i == 0 ? "{\"" : ",\"") + names[i] + "\":").getBytes(StandardCharsets.UTF_8);
+        }
+        if (format == Format.CSV) {
+            for (String name : names) {
+                text(name);
+            }
+            endRecord();
+            records = 0;
+        }
+    }
+
+    public void text(CharSequence value) throws IOException {
+        startField();
+        boolean quoted = format == Format.JSON_LINES || needsQuotes(value);
+        if (quoted) {
+            put('"');
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (position + 6 > buffer.length) {
+                flushBuffer();
+            }
+            if (c < 0x80) {
+                putEscaped(c);
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | c >> 6);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | codePoint >> 18);
+                buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xE0 | c >> 12);
+                buffer[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        if (quoted) {
+            put('"');
+        }
+    }
+
+    // A text field already encoded as UTF-8; only ASCII bytes ever need escaping
+    public void utf8(byte[] bytes, int offset, int length) throws IOException {
+        startField();
+        boolean quoted = format == Format.JSON_LINES || needsQuotes(bytes, offset, length);
+        if (quoted) {
+            put('"');
+        }
+        for (int i = offset; i < offset + length; i++) {
+            if (position + 6 > buffer.length) {
+                flushBuffer();
+            }
+            byte b = bytes[i];
+            if (b >= 0) {
+                putEscaped((char) b);
+            } else {
+                buffer[position++] = b;
+            }
+        }
+        if (quoted) {
+            put('"');
+        }
+    }
+
+    public void number(long value) throws IOException {
+        startField();
+        if (position + 20 > buffer.length) {
+            flushBuffer();
+        }
+        if (value < 0) {
+            buffer[position++] = '-';
+        }
+        int digits = 1;
+        for (long rest = Math.abs(value / 10); rest > 0; rest /= 10) {
+            digits++;
+        }
+        // Math.abs of the last digit, so Long.MIN_VALUE is written too
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[position + i] = (byte) ('0' + Math.abs(value % 10));
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    public void endRecord() throws IOException {
+        if (format == Format.JSON_LINES) {
+            put('}');
+        }
+        put('\n');
+        field = 0;
+        records++;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    private void startField() throws IOException {
+        if (format == Format.JSON_LINES) {
+            byte[] key = keys[field];
+            if (position + key.length > buffer.length) {
+                flushBuffer();
+            }
+            System.arraycopy(key, 0, buffer, position, key.length);
+            position += key.length;
+        } else if (field > 0) {
+            put(',');
+        }
+        field++;
+    }
+
+    // Same test as CsvRecord.field(); titles never hold line breaks, but a quoted one reads back whole
+    private static boolean needsQuotes(CharSequence value) {
+        int length = value.length();
+        if (length > 0 && (value.charAt(0) <= ' ' || value.charAt(length - 1) <= ' ')) {
+            return true;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean needsQuotes(byte[] bytes, int offset, int length) {
+        if (length > 0 && (bytes[offset] >= 0 && bytes[offset] <= ' ' || bytes[offset + length - 1] >= 0 && bytes[offset + length - 1] <= ' ')) {
+            return true;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            byte b = bytes[i];
+            if (b == ',' || b == '"' || b == '\n' || b == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Callers leave room for the six bytes of an escaped control character
+    private void putEscaped(char c) {
+        if (format == Format.CSV) {
+            if (c == '"') {
+                buffer[position++] = '"';
+            }
+            buffer[position++] = (byte) c;
+        } else if (c == '"' || c == '\\') {
+            buffer[position++] = '\\';
+            buffer[position++] = (byte) c;
+        } else if (c < 0x20) {
+            buffer[position++] = '\\';
+            buffer[position++] = 'u';
+            buffer[position++] = '0';
+            buffer[position++] = '0';
+            buffer[position++] = (byte) Character.forDigit(c >> 4, 16);
+            buffer[position++] = (byte) Character.forDigit(c & 0xF, 16);
+        } else {
+            buffer[position++] = (byte) c;
+        }
+    }
+
+    private void put(char c) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) c;
+    }
+
+    private void flushBuffer() throws IOException {
+        wrapped.clear().limit(position);
+        while (wrapped.hasRemaining()) {
+            channel.write(wrapped);
+        }
+        position = 0;
+    }
+}
+
+/**
+ * Case-insensitive n-gram inverted index. Every 1, 2 and 3 character substring of a
+ * value maps to the ascending ids that contain it, so a query of up to three characters
+ * is answered straight from one posting list and a longer one only has to check the ids
+ * that contain all of its trigrams. Prefix matches are substring matches too.
+ */
+class TextIndex {
+    static final int GRAM = 3;
+
+    private final Map<String, IntList> postings = new HashMap<>();
+
+    public void add(int id, String value) {
+        String lower = value.toLowerCase();
+        for (int length = 1; length <= GRAM; length++) {
+            for (int i = 0; i + length <= lower.length(); i++) {
+                postings.computeIfAbsent(lower.substring(i, i + length), key -> new IntList()).addIfLast(id);
+            }
+        }
+    }
+
+    // Ids whose value may contain lowerQuery; exact when isExact(lowerQuery)
+    public int[] candidates(String lowerQuery) {
+        if (isExact(lowerQuery)) {
+            IntList list = postings.get(lowerQuery);
+            return list == null ? new int[0] : list.toArray();
+        }
+
+        IntList smallest = null;
+        List<IntList> lists = new ArrayList<>();
+        for (int i = 0; i + GRAM <= lowerQuery.length(); i++) {
+            IntList list = postings.get(lowerQuery.substring(i, i + GRAM));
+            if (list == null) {
+                return new int[0];
+            }
+            lists.add(list);
+            if (smallest == null || list.size() < smallest.size()) {
+                smallest = list;
+            }
+        }
+
+        int[] result = smallest.toArray();
+        int size = result.length;
+        for (IntList list : lists) {
+            if (list != smallest) {
+                size = list.retainAll(result, size);
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    public boolean isExact(String lowerQuery) {
+        return lowerQuery.length() <= GRAM;
+    }
+
+    public void clear() {
+        postings.clear();
+    }
+}
+
+class IntList {
+    private int[] values = new int[4];
+    private int size;
+
+    // Ids are added in ascending order, so a repeated gram in one value only needs this check
+    public void addIfLast(int value) {
+        if (size > 0 && values[size - 1] == value) {
+            return;
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    // Keeps the first `count` entries of sorted that also appear in this list; returns the new count
+    public int retainAll(int[] sorted, int count) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            while (j < size && values[j] < sorted[i]) {
+                j++;
+            }
+            if (j < size && values[j] == sorted[i]) {
+                sorted[kept++] = sorted[i];
+            }
+        }
+        return kept;
+    }
+}
+
+/**
+ * Append-only record of catalogue changes since books.txt was last written:
+ * "A,id,<books.txt line>" for an added book, "N,id" for an extra copy and "D,id,-1|1"
+ * for a borrow or return. Deltas commute, so concurrent desks may append in any order.
+ * Older logs may still hold "S,id,true|false" availability entries. Each entry is one
+ * write of a short line, so a borrow costs a few bytes instead of a rewrite of the
+ * catalogue. Replay ignores a torn last line.
+ */
+class CatalogueLog {
+    interface Handler {
+        void onAdd(int id, String bookLine);
+
+        void onCopyAdded(int id);
+
+        void onAvailableDelta(int id, int delta);
+
+        void onAvailability(int id, boolean available);
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final AtomicInteger entries = new AtomicInteger();
+
+    public CatalogueLog(String fileName) throws IOException {
+        this.path = Paths.get(fileName);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    public void replay(Handler handler) throws IOException {
+        byte[] data = Files.readAllBytes(path);
+        int start = 0;
+        int end;
+        while ((end = indexOf(data, (byte) '\n', start)) >= 0) {
+            String entry = new String(data, start, end - start, StandardCharsets.UTF_8);
+            int firstComma = entry.indexOf(',');
+            int secondComma = entry.indexOf(',', firstComma + 1);
+            if (entry.charAt(0) == 'N') {
+                handler.onCopyAdded(Integer.parseInt(entry.substring(firstComma + 1)));
+            } else {
+                int id = Integer.parseInt(entry.substring(firstComma + 1, secondComma));
+                String value = entry.substring(secondComma + 1);
+                if (entry.charAt(0) == 'A') {
+                    handler.onAdd(id, value);
+                } else if (entry.charAt(0) == 'D') {
+                    handler.onAvailableDelta(id, Integer.parseInt(value));
+                } else {
+                    handler.onAvailability(id, Boolean.parseBoolean(value));
+                }
+            }
+            entries.incrementAndGet();
+            start = end + 1;
+        }
+
+        channel.truncate(start);
+        channel.position(start);
+    }
+
+    public void appendAdd(int id, String bookLine) throws IOException {
+        append("A," + id + "," + bookLine);
+    }
+
+    public void appendCopyAdded(int id) throws IOException {
+        append("N," + id);
+    }
+
+    public void appendAvailableDelta(int id, int delta) throws IOException {
+        append("D," + id + "," + delta);
+    }
+
+    // Synchronized so that lines from concurrent desks never interleave
+    private synchronized void append(String entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((entry + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        entries.incrementAndGet();
+    }
+
+    public int size() {
+        return entries.get();
+    }
+
+    // Called after books.txt has been rewritten with every logged change
+    public void reset() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        entries.set(0);
+    }
+
+    private static int indexOf(byte[] data, byte value, int from) {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
+
+/**
+ * Read-only view of books.dat through a memory mapping. Opening it only reads the header;
+ * get() returns a view that reads the fields from the mapping, and copy counts live in a
+ * CopyCounts column that reads a book's counts from the file until its chunk is updated.
+ * Books added after opening are kept in a CompactBookList until the next compaction.
+ *
+ * Layout: magic, version, count, table offset (long), then one record per book
+ * (total and available copies as ints, then title, author and genre as length-prefixed
+ * UTF-8), then an int offset per record. Version 1 files have a single available byte in
+ * place of the copy counts. A single mapping limits the file to 2 GB.
+ */
+class MappedBookList extends AbstractList<Book> implements BookCatalogue, RandomAccess {
+    private static final int MAGIC = 0x42434154;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+
+    private final MappedByteBuffer data;
+    private final int version;
+    private final int count;
+    private final int tableOffset;
+    private final CopyCounts counts;
+    private final CompactBookList added;
+
+    private MappedBookList(MappedByteBuffer data) throws IOException {
+        if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) < 1 || data.getInt(4) > VERSION) {
+            throw new IOException("Not a catalogue file");
+        }
+        this.data = data;
+        this.version = data.getInt(4);
+        this.count = data.getInt(8);
+        this.tableOffset = (int) data.getLong(12);
+        // The file's books and those added since freeze as one, so they share an update lock
+        ReadWriteLock updates = new ReentrantReadWriteLock();
+        this.counts = new CopyCounts(count, this::fileCounts, updates);
+        this.added = new CompactBookList(count, updates);
+    }
+
+    public static MappedBookList open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new MappedBookList(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static void write(Path path, List<Book> books) throws IOException {
+        int[] offsets = new int[books.size()];
+        long position = HEADER_SIZE;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(books.size());
+            out.writeLong(0);
+
+            for (int i = 0; i < books.size(); i++) {
+                Book book = books.get(i);
+                offsets[i] = (int) position;
+                out.writeInt(book.getTotalCopies());
+                out.writeInt(book.getAvailableCopies());
+                position += 8 + writeString(out, book.getTitle()) + writeString(out, book.getAuthor())
+                        + writeString(out, book.getGenre());
+                if (position > Integer.MAX_VALUE) {
+                    throw new IOException("Catalogue is too large for one mapped file");
+                }
+            }
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(12);
+            file.writeLong(position);
+        }
+    }
+
+    @Override
+    public Book get(int index) {
+        if (index >= count) {
+            return added.get(index - count);
+        }
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+        }
+        return new View(index, null);
+    }
+
+    @Override
+    public boolean add(Book book) {
+        added.add(book);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return count + added.size();
+    }
+
+    public int mappedSize() {
+        return count;
+    }
+
+    @Override
+    public CatalogueSnapshot snapshot() {
+        counts.updates().writeLock().lock();
+        try {
+            return new Frozen(counts.snapshot(), added.snapshot());
+        } finally {
+            counts.updates().writeLock().unlock();
+        }
+    }
+
+    public String getTitle(int index) {
+        return readField(recordOffset(index), 0);
+    }
+
+    public String getAuthor(int index) {
+        return readField(recordOffset(index), 1);
+    }
+
+    public String getGenre(int index) {
+        return readField(recordOffset(index), 2);
+    }
+
+    // Counts as books.dat holds them, for books whose counts have not changed since opening
+    private int fileCounts(int index) {
+        if (index >= count) {
+            return 0;
+        }
+        int offset = recordOffset(index);
+        if (version == 1) {
+            return CopyCounts.pack(1, data.get(offset) != 0 ? 1 : 0);
+        }
+        return CopyCounts.pack(data.getInt(offset), data.getInt(offset + 4));
+    }
+
+    private int recordOffset(int index) {
+        return data.getInt(tableOffset + index * 4);
+    }
+
+    private String readField(int recordOffset, int field) {
+        int position = recordOffset + (version == 1 ? 1 : 8);
+        for (int i = 0; i < field; i++) {
+            position += 2 + (data.getShort(position) & 0xFFFF);
+        }
+        byte[] bytes = new byte[data.getShort(position) & 0xFFFF];
+        data.get(position + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private class Frozen extends CatalogueSnapshot {
+        private final CopyCounts.Snapshot counts;
+        private final CatalogueSnapshot added;
+
+        Frozen(CopyCounts.Snapshot counts, CatalogueSnapshot added) {
+            this.counts = counts;
+            this.added = added;
+        }
+
+        @Override
+        public Book get(int index) {
+            if (index >= count) {
+                return added.get(index - count);
+            }
+            if (index < 0) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+            }
+            return new View(index, counts);
+        }
+
+        @Override
+        public int size() {
+            return count + added.size();
+        }
+
+        // Fields are copied out of the mapping as the UTF-8 they are stored as
+        @Override
+        void export(RecordWriter out) throws IOException {
+            byte[] field = new byte[0xFFFF];
+            for (int i = 0; i < count; i++) {
+                int position = recordOffset(i) + (version == 1 ? 1 : 8);
+                for (int f = 0; f < 3; f++) {
+                    int length = data.getShort(position) & 0xFFFF;
+                    data.get(position + 2, field, 0, length);
+                    out.utf8(field, 0, length);
+                    position += 2 + length;
+                }
+                int packed = counts.get(i);
+                out.number(CopyCounts.total(packed));
+                out.number(CopyCounts.available(packed));
+                out.endRecord();
+            }
+            added.export(out);
+        }
+    }
+
+    private class View extends BookView {
+        private static final long serialVersionUID = 1L;
+
+        View(int index, CopyCounts.Snapshot frozen) {
+            super(index, index, counts, frozen);
+        }
+
+        @Override
+        public String getTitle() {
+            return MappedBookList.this.getTitle(getId());
+        }
+
+        @Override
+        public String getAuthor() {
+            return MappedBookList.this.getAuthor(getId());
+        }
+
+        @Override
+        public String getGenre() {
+            return MappedBookList.this.getGenre(getId());
+        }
+    }
+
+    private static int writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Field too long for the catalogue file: " + value.substring(0, 40) + "...");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+        return 2 + bytes.length;
+    }
+}
+
+/**
+ * A catalogue list that can hand out a copy of itself as it stands, for reports that read
+ * every book while desks keep lending.
+ */
+interface BookCatalogue extends List<Book> {
+    // Waits only for copy count updates in flight, never for searches or other catalogue readers
+    CatalogueSnapshot snapshot();
+}
+
+/**
+ * A catalogue as it stood when snapshot() was called. Its books are read-only, and
+ * export() writes them all from the catalogue's own columns, without a Book per book.
+ */
+abstract class CatalogueSnapshot extends AbstractList<Book> implements RandomAccess {
+    static final String[] FIELDS = {"title", "author", "genre", "copies", "available"};
+
+    // One record of FIELDS per book, in catalogue order; CSV exports can be imported again
+    abstract void export(RecordWriter out) throws IOException;
+}
+
+/**
+ * Total and available copies of every book, packed into one int each (total << 16 |
+ * available) and kept in chunks of 4K books. A borrow or return is one compare-and-set,
+ * and a return is checked against the total it updates. Available is signed because
+ * replayed borrows and returns may briefly take it below zero or above the total.
+ *
+ * snapshot() freezes the chunks as they are; the first update of a chunk after that
+ * copies it and carries on in the copy, so a report reads the counts of one moment while
+ * desks keep lending. Updates hold the update lock shared and snapshots hold it alone, so
+ * no update is half done when chunks are frozen. Only desks take that lock, never
+ * searches, and a snapshot holds it for a copy of the chunk list rather than of the counts.
+ */
+class CopyCounts {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    static final int MAX_COPIES = 0x7FFF;
+
+    // Packed counts of books whose chunk was never written, such as those read from books.dat
+    private final IntUnaryOperator initial;
+    private final ReadWriteLock updates;
+    private volatile AtomicReferenceArray<Chunk> chunks;
+    // Chunks from an earlier epoch may belong to a snapshot and are copied before an update
+    private volatile int epoch;
+
+    private static final class Chunk {
+        final int epoch;
+        final AtomicIntegerArray counts;
+
+        Chunk(int epoch, int[] counts) {
+            this.epoch = epoch;
+            this.counts = new AtomicIntegerArray(counts);
+        }
+    }
+
+    /** The counts as they were when snapshot() was called. */
+    static final class Snapshot {
+        private final Chunk[] chunks;
+        private final IntUnaryOperator initial;
+
+        private Snapshot(Chunk[] chunks, IntUnaryOperator initial) {
+            this.chunks = chunks;
+            this.initial = initial;
+        }
+
+        int get(int index) {
+            Chunk chunk = chunks[index >>> CHUNK_BITS];
+            return chunk == null ? initial.applyAsInt(index) : chunk.counts.get(index & (CHUNK_SIZE - 1));
+        }
+    }
+
+    // Room for the given number of books to start with, whose counts are read from initial
+    CopyCounts(int size, IntUnaryOperator initial) {
+        this(size, initial, new ReentrantReadWriteLock());
+    }
+
+    // Counts sharing updates with other counts can be frozen together while it is held alone
+    CopyCounts(int size, IntUnaryOperator initial, ReadWriteLock updates) {
+        this.initial = initial;
+        this.updates = updates;
+        this.chunks = new AtomicReferenceArray<>(Math.max((size >>> CHUNK_BITS) + 1, 16));
+    }
+
+    ReadWriteLock updates() {
+        return updates;
+    }
+
+    static int pack(int total, int available) {
+        if (total > MAX_COPIES || Math.abs(available) > MAX_COPIES) {
+            throw new IllegalStateException("More than " + MAX_COPIES + " copies of one title");
+        }
+        return total << 16 | (available & 0xFFFF);
+    }
+
+    static int total(int packed) {
+        return packed >>> 16;
+    }
+
+    static int available(int packed) {
+        return (short) packed;
+    }
+
+    public int get(int index) {
+        Chunk chunk = chunks.get(index >>> CHUNK_BITS);
+        return chunk == null ? initial.applyAsInt(index) : chunk.counts.get(index & (CHUNK_SIZE - 1));
+    }
+
+    // Only for a book being added, under the catalogue write lock
+    public void set(int index, int total, int available) {
+        int packed = pack(total, available);
+        updates.readLock().lock();
+        try {
+            int chunk = index >>> CHUNK_BITS;
+            if (chunk >= chunks.length()) {
+                AtomicReferenceArray<Chunk> grown = new AtomicReferenceArray<>(Math.max(chunks.length() * 2, chunk + 1));
+                for (int i = 0; i < chunks.length(); i++) {
+                    grown.set(i, chunks.get(i));
+                }
+                chunks = grown;
+            }
+            writable(index).set(index & (CHUNK_SIZE - 1), packed);
+        } finally {
+            updates.readLock().unlock();
+        }
+    }
+
+    public boolean tryBorrow(int index) {
+        return update(index, packed -> available(packed) > 0 ? packed - 1 : -1);
+    }
+
+    public boolean returnCopy(int index) {
+        return update(index, packed -> available(packed) < total(packed) ? pack(total(packed), available(packed) + 1) : -1);
+    }
+
+    public void add(int index, int totalDelta, int availableDelta) {
+        update(index, packed -> pack(total(packed) + totalDelta, available(packed) + availableDelta));
+    }
+
+    public void setAvailable(int index, boolean available) {
+        update(index, packed -> pack(total(packed), available ? total(packed) : 0));
+    }
+
+    // Sets the book's counts to change(counts) unless that is -1; no book has a negative total
+    private boolean update(int index, IntUnaryOperator change) {
+        updates.readLock().lock();
+        try {
+            AtomicIntegerArray counts = writable(index);
+            int slot = index & (CHUNK_SIZE - 1);
+            int packed;
+            int changed;
+            do {
+                packed = counts.get(slot);
+                changed = change.applyAsInt(packed);
+                if (changed == -1) {
+                    return false;
+                }
+            } while (!counts.compareAndSet(slot, packed, changed));
+            return true;
+        } finally {
+            updates.readLock().unlock();
+        }
+    }
+
+    public Snapshot snapshot() {
+        updates.writeLock().lock();
+        try {
+            Chunk[] frozen = new Chunk[chunks.length()];
+            for (int i = 0; i < frozen.length; i++) {
+                frozen[i] = chunks.get(i);
+            }
+            epoch++;
+            return new Snapshot(frozen, initial);
+        } finally {
+            updates.writeLock().unlock();
+        }
+    }
+
+    private AtomicIntegerArray writable(int index) {
+        Chunk chunk = chunks.get(index >>> CHUNK_BITS);
+        return chunk != null && chunk.epoch == epoch ? chunk.counts : copyChunk(index >>> CHUNK_BITS);
+    }
+
+    // Desks updating books of the same frozen chunk at once make one copy between them
+    private synchronized AtomicIntegerArray copyChunk(int number) {
+        Chunk chunk = chunks.get(number);
+        if (chunk != null && chunk.epoch == epoch) {
+            return chunk.counts;
+        }
+        int[] counts = new int[CHUNK_SIZE];
+        int first = number << CHUNK_BITS;
+        for (int i = 0; i < CHUNK_SIZE; i++) {
+            counts[i] = chunk != null ? chunk.counts.get(i) : initial.applyAsInt(first + i);
+        }
+        Chunk copy = new Chunk(epoch, counts);
+        chunks.set(number, copy);
+        return copy.counts;
+    }
+}
+
+/**
+ * A Book whose fields are kept by a catalogue list and whose copy counts live in a
+ * CopyCounts column. A view of a snapshot reads the counts of that moment and cannot be
+ * lent or returned.
+ */
+abstract class BookView extends Book {
+    private static final long serialVersionUID = 1L;
+
+    private final int index;
+    private final CopyCounts counts;
+    private final CopyCounts.Snapshot frozen;
+
+    BookView(int id, int index, CopyCounts counts, CopyCounts.Snapshot frozen) {
+        super(id);
+        this.index = index;
+        this.counts = counts;
+        this.frozen = frozen;
+    }
+
+    private int packed() {
+        return frozen != null ? frozen.get(index) : counts.get(index);
+    }
+
+    private CopyCounts live() {
+        if (frozen != null) {
+            throw new UnsupportedOperationException("A catalogue snapshot is read-only");
+        }
+        return counts;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return CopyCounts.available(packed()) > 0;
+    }
+
+    @Override
+    public void setAvailable(boolean available) {
+        live().setAvailable(index, available);
+    }
+
+    @Override
+    public int getTotalCopies() {
+        return CopyCounts.total(packed());
+    }
+
+    @Override
+    public int getAvailableCopies() {
+        return CopyCounts.available(packed());
+    }
+
+    @Override
+    public boolean tryBorrow() {
+        return live().tryBorrow(index);
+    }
+
+    @Override
+    public boolean returnCopy() {
+        return live().returnCopy(index);
+    }
+
+    @Override
+    public void addCopy() {
+        addCopies(1);
+    }
+
+    @Override
+    public void addCopies(int copies) {
+        live().add(index, copies, copies);
+    }
+
+    @Override
+    void adjustAvailable(int delta) {
+        live().add(index, 0, delta);
+    }
+
+    // One read of the counts, so a book is never printed with halves of two updates
+    @Override
+    public String toString() {
+        int packed = packed();
+        int total = CopyCounts.total(packed);
+        String copies = total > 1 ? ", Copies: " + CopyCounts.available(packed) + "/" + total : "";
+        return "Title: " + getTitle() + ", Author: " + getAuthor() + ", Genre: " + getGenre() + ", Available: "
+                + (CopyCounts.available(packed) > 0) + copies;
+    }
+
+    // The fields live in the catalogue, which is not serializable, so a view is written as a plain Book
+    protected Object writeReplace() {
+        int packed = packed();
+        Book book = new Book(getTitle(), getAuthor(), getGenre(), CopyCounts.total(packed), CopyCounts.available(packed));
+        book.setId(getId());
+        return book;
+    }
+}
+
+/**
+ * The catalogue held in memory column by column instead of as a Book with three Strings
+ * per entry. Authors and genres repeat across a catalogue, so each distinct value is kept
+ * once, and a book holds the number of its author and genre pair (an author seldom writes
+ * in many genres). Titles are UTF-8 in one shared byte array, each after its length, with
+ * the start of every 16th kept so a title is found by skipping at most 15 others. Copy
+ * counts are a CopyCounts column. get() hands out a Book view of an index that reads and
+ * writes these columns, so every view of a book agrees and a view costs nothing to drop.
+ * A book takes about 45 bytes this way, most of them its title, instead of about 245 as a
+ * Book and its Strings.
+ *
+ * Books are only added under the catalogue write lock, but desks keep views after
+ * releasing it, so the arrays are published through volatile fields. Titles, authors and
+ * genres never change once added, so a snapshot shares them and only freezes the counts.
+ */
+class CompactBookList extends AbstractList<Book> implements BookCatalogue, RandomAccess {
+    private static final int TITLE_STRIDE_BITS = 4;
+
+    // Ids of the books here start at firstId; books.dat keeps the books before it
+    private final int firstId;
+    private final Dictionary authors = new Dictionary();
+    private final Dictionary genres = new Dictionary();
+    private final PairTable pairs = new PairTable();
+    private final CopyCounts counts;
+    private volatile byte[] titles = new byte[1 << 16];
+    private int titleBytes;
+    private volatile int[] titleStarts = new int[1 << 10];
+    private volatile int[] pairOf = new int[1 << 14];
+    private volatile int size;
+
+    CompactBookList() {
+        this(0);
+    }
+
+    CompactBookList(int firstId) {
+        this(firstId, new ReentrantReadWriteLock());
+    }
+
+    CompactBookList(int firstId, ReadWriteLock updates) {
+        this.firstId = firstId;
+        this.counts = new CopyCounts(0, index -> 0, updates);
+    }
+
+    @Override
+    public Book get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return new View(index, null);
+    }
+
+    @Override
+    public boolean add(Book book) {
+        int index = size;
+        if (index == pairOf.length) {
+            pairOf = Arrays.copyOf(pairOf, index * 2);
+            titleStarts = Arrays.copyOf(titleStarts, titleStarts.length * 2);
+        }
+
+        byte[] title = book.getTitle().getBytes(StandardCharsets.UTF_8);
+        // A length below 128 takes one byte, as titles nearly always do
+        int needed = title.length + (title.length < 0x80 ? 1 : 3);
+        if (titleBytes + needed > titles.length) {
+            long capacity = Math.max((long) titles.length * 2, (long) titleBytes + needed);
+            if (capacity > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Catalogue titles exceed 2 GB");
+            }
+            titles = Arrays.copyOf(titles, (int) capacity);
+        }
+        if ((index & ((1 << TITLE_STRIDE_BITS) - 1)) == 0) {
+            titleStarts[index >>> TITLE_STRIDE_BITS] = titleBytes;
+        }
+        byte[] arena = titles;
+        if (title.length < 0x80) {
+            arena[titleBytes++] = (byte) title.length;
+        } else {
+            arena[titleBytes++] = (byte) (0x80 | title.length >>> 16);
+            arena[titleBytes++] = (byte) (title.length >>> 8);
+            arena[titleBytes++] = (byte) title.length;
+        }
+        System.arraycopy(title, 0, arena, titleBytes, title.length);
+        titleBytes += title.length;
+        pairOf[index] = pairs.number(authors.number(book.getAuthor()), genres.number(book.getGenre()));
+        counts.set(index, book.getTotalCopies(), book.getAvailableCopies());
+        size = index + 1;
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public CatalogueSnapshot snapshot() {
+        return new Frozen(size, counts.snapshot());
+    }
+
+    private String title(int index) {
+        byte[] arena = titles;
+        int position = titleStarts[index >>> TITLE_STRIDE_BITS];
+        for (int skip = index & ((1 << TITLE_STRIDE_BITS) - 1); ; skip--) {
+            int length = arena[position++];
+            if (length < 0) {
+                length = (length & 0x7F) << 16 | (arena[position] & 0xFF) << 8 | arena[position + 1] & 0xFF;
+                position += 2;
+            }
+            if (skip == 0) {
+                return new String(arena, position, length, StandardCharsets.UTF_8);
+            }
+            position += length;
+        }
+    }
+
+    private class Frozen extends CatalogueSnapshot {
+        private final int size;
+        private final CopyCounts.Snapshot counts;
+
+        Frozen(int size, CopyCounts.Snapshot counts) {
+            this.size = size;
+            this.counts = counts;
+        }
+
+        @Override
+        public Book get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+            }
+            return new View(index, counts);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        // Walks the title bytes in order, so no title is looked up or decoded
+        @Override
+        void export(RecordWriter out) throws IOException {
+            byte[] arena = titles;
+            int position = 0;
+            for (int i = 0; i < size; i++) {
+                int length = arena[position++];
+                if (length < 0) {
+                    length = (length & 0x7F) << 16 | (arena[position] & 0xFF) << 8 | arena[position + 1] & 0xFF;
+                    position += 2;
+                }
+                out.utf8(arena, position, length);
+                position += length;
+                int pair = pairOf[i];
+                out.text(authors.get(pairs.first(pair)));
+                out.text(genres.get(pairs.second(pair)));
+                int packed = counts.get(i);
+                out.number(CopyCounts.total(packed));
+                out.number(CopyCounts.available(packed));
+                out.endRecord();
+            }
+        }
+    }
+
+    private class View extends BookView {
+        private static final long serialVersionUID = 1L;
+
+        private final int index;
+
+        View(int index, CopyCounts.Snapshot frozen) {
+            super(firstId + index, index, counts, frozen);
+            this.index = index;
+        }
+
+        @Override
+        public String getTitle() {
+            return title(index);
+        }
+
+        @Override
+        public String getAuthor() {
+            return authors.get(pairs.first(pairOf[index]));
+        }
+
+        @Override
+        public String getGenre() {
+            return genres.get(pairs.second(pairOf[index]));
+        }
+    }
+
+    /**
+     * Numbers each distinct value in the order first seen. An open-addressing table of
+     * number + 1 (0 for a free slot) finds them, so an entry costs its String and two ints
+     * rather than a map node and boxed key and value.
+     */
+    private static class Dictionary {
+        private volatile String[] values = new String[64];
+        private int[] slots = new int[128];
+        private int count;
+
+        int number(String value) {
+            int mask = slots.length - 1;
+            int slot = hash(value) & mask;
+            while (slots[slot] != 0) {
+                if (values[slots[slot] - 1].equals(value)) {
+                    return slots[slot] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int number = count++;
+            String[] grown = number == values.length ? Arrays.copyOf(values, number * 2) : values;
+            grown[number] = value;
+            values = grown;
+            slots[slot] = number + 1;
+            if (count * 2 > slots.length) {
+                slots = new int[slots.length * 2];
+                for (int i = 0; i < count; i++) {
+                    insert(i, hash(values[i]));
+                }
+            }
+            return number;
+        }
+
+        String get(int number) {
+            return values[number];
+        }
+
+        private static int hash(String value) {
+            return value.hashCode() * 0x9E3779B9 >>> 1;
+        }
+
+        private void insert(int number, int hash) {
+            int mask = slots.length - 1;
+            int slot = hash & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = number + 1;
+        }
+    }
+
+    // Numbers each distinct pair of ints, as Dictionary does strings
+    private static class PairTable {
+        private volatile long[] pairs = new long[64];
+        private int[] slots = new int[128];
+        private int count;
+
+        int number(int first, int second) {
+            long pair = (long) first << 32 | second;
+            int mask = slots.length - 1;
+            int slot = hash(pair) & mask;
+            while (slots[slot] != 0) {
+                if (pairs[slots[slot] - 1] == pair) {
+                    return slots[slot] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int number = count++;
+            long[] grown = number == pairs.length ? Arrays.copyOf(pairs, number * 2) : pairs;
+            grown[number] = pair;
+            pairs = grown;
+            slots[slot] = number + 1;
+            if (count * 2 > slots.length) {
+                slots = new int[slots.length * 2];
+                for (int i = 0; i < count; i++) {
+                    insert(i, hash(grown[i]));
+                }
+            }
+            return number;
+        }
+
+        int first(int number) {
+            return (int) (pairs[number] >>> 32);
+        }
+
+        int second(int number) {
+            return (int) pairs[number];
+        }
+
+        private static int hash(long pair) {
+            return (int) (pair * 0x9E3779B97F4A7C15L >>> 33);
+        }
+
+        private void insert(int number, int hash) {
+            int mask = slots.length - 1;
+            int slot = hash & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = number + 1;
+        }
+    }
+}
+
+/**
+ * books.idx: a BM25 index over the title, author and genre of the catalogue, written
+ * once and memory-mapped for ranked search. Books are scored on one combined field
+ * in which a title word counts three times, an author word twice and a genre word once.
+ * Each posting stores its BM25 term part already computed and quantized to a byte, so
+ * scoring a book is a multiply-add per matching word. Query words that are not in the
+ * index, or that may be misspelled, are expanded to indexed terms within one edit (two for
+ * words of eight letters or more). Those are found through a trigram index over the term
+ * dictionary and scored at a discount.
+ *
+ * The top hits are found with block-max MaxScore. Lists whose best possible contribution
+ * can no longer lift a book into the top k are only probed for books found in the other
+ * lists, never walked, and the others skip whole blocks of 128 postings whose best
+ * contributions together cannot either. A common word in a query therefore costs little.
+ *
+ * Book ids below getDocumentCount() never change, so an index stays valid as books are
+ * added; Library scores books past it with scoreUnindexed() until the index is rebuilt.
+ *
+ * Layout, big-endian: a header of 16 ints (magic, version, books, terms, grams, postings,
+ * blocks, average length as float bits, and the offset of each section), then:
+ *   terms         name offset, name length, book count, first posting, first block, best impact;
+ *                 sorted by UTF-8 name
+ *   postings      book ids, ascending within each term
+ *   grams         trigram (3 chars in a long), first entry in gramTerms, entry count; sorted
+ *   gramTerms     term numbers
+ *   blockDocs     the last book id of each block of BLOCK_SIZE postings
+ *   blockImpacts  a byte per block: the best impact in it
+ *   impacts       a byte per posting: the quantized BM25 term part for that book
+ *   names         the term names, UTF-8
+ */
+class RankedIndex {
+    private static final int MAGIC = 0x424B4958;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16 * 4;
+    private static final int TERM_ENTRY_SIZE = 24;
+    private static final int GRAM_ENTRY_SIZE = 16;
+    private static final int BLOCK_SIZE = 128;
+    private static final int TITLE_WEIGHT = 3;
+    private static final int AUTHOR_WEIGHT = 2;
+    private static final int GENRE_WEIGHT = 1;
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    private static final int FUZZY_MIN_LENGTH = 4;
+    private static final int MAX_EXPANSIONS = 8;
+    // Score factor of a term one and two edits away from the query word
+    private static final float[] EDIT_WEIGHTS = {1f, 0.6f, 0.4f};
+
+    private final MappedByteBuffer data;
+    private final int documentCount;
+    private final int termCount;
+    private final int gramCount;
+    private final float averageLength;
+    private final int termsOffset;
+    private final int postingsOffset;
+    private final int gramsOffset;
+    private final int gramTermsOffset;
+    private final int blockDocsOffset;
+    private final int blockImpactsOffset;
+    private final int impactsOffset;
+    private final int namesOffset;
+    // Per-thread trigram hit counts by term number, zeroed again after each query
+    private final ThreadLocal<int[]> gramHits;
+
+    /**
+     * The query words resolved against the index: one entry per term to score, with its
+     * weight, and the words the index does not have, which only books added since can match.
+     */
+    static class Query {
+        final int[] terms;
+        final String[] names;
+        final float[] weights;
+        final String[] unindexed;
+
+        Query(int[] terms, String[] names, float[] weights, String[] unindexed) {
+            this.terms = terms;
+            this.names = names;
+            this.weights = weights;
+            this.unindexed = unindexed;
+        }
+
+        int size() {
+            return terms.length;
+        }
+    }
+
+    private RankedIndex(MappedByteBuffer data) throws IOException {
+        if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw new IOException("Not a catalogue index");
+        }
+        this.data = data;
+        this.documentCount = data.getInt(8);
+        this.termCount = data.getInt(12);
+        this.gramCount = data.getInt(16);
+        this.averageLength = Float.intBitsToFloat(data.getInt(28));
+        this.termsOffset = data.getInt(32);
+        this.postingsOffset = data.getInt(36);
+        this.gramsOffset = data.getInt(40);
+        this.gramTermsOffset = data.getInt(44);
+        this.blockDocsOffset = data.getInt(48);
+        this.blockImpactsOffset = data.getInt(52);
+        this.impactsOffset = data.getInt(56);
+        this.namesOffset = data.getInt(60);
+        this.gramHits = ThreadLocal.withInitial(() -> new int[termCount]);
+    }
+
+    public static RankedIndex open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new RankedIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * Indexes the mapped part of a catalogue file, if there is one, followed by rest. Neither
+     * is read under the catalogue lock: mapped entries never change and rest is the caller's
+     * copy. Titles, authors and genres of catalogued books are never edited.
+     */
+    public static void build(Path path, MappedBookList mapped, List<Book> rest) throws IOException {
+        int mappedCount = mapped == null ? 0 : mapped.mappedSize();
+        int count = mappedCount + rest.size();
+        Map<String, Integer> termNumbers = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        int[] frequencies = new int[1024];
+        int[] lengths = new int[count];
+        long postingCount = 0;
+        long totalLength = 0;
+        int[] docTerms = new int[16];
+        int[] docWeights = new int[16];
+
+        // First pass: the dictionary, how many books each term is in and each book's length
+        for (int i = 0; i < count; i++) {
+            String[] fields = fields(mapped, mappedCount, rest, i);
+            int distinct = 0;
+            for (int field = 0; field < 3; field++) {
+                for (String token : tokenize(fields[field])) {
+                    Integer number = termNumbers.get(token);
+                    if (number == null) {
+                        number = names.size();
+                        termNumbers.put(token, number);
+                        names.add(token);
+                        if (number == frequencies.length) {
+                            frequencies = Arrays.copyOf(frequencies, number * 2);
+                        }
+                    }
+                    lengths[i] += fieldWeight(field);
+                    if (indexOf(docTerms, distinct, number) < 0) {
+                        if (distinct == docTerms.length) {
+                            docTerms = Arrays.copyOf(docTerms, distinct * 2);
+                        }
+                        docTerms[distinct++] = number;
+                    }
+                }
+            }
+            for (int j = 0; j < distinct; j++) {
+                frequencies[docTerms[j]]++;
+            }
+            postingCount += distinct;
+            totalLength += lengths[i];
+        }
+        if (postingCount > Integer.MAX_VALUE / 6) {
+            throw new IOException("Catalogue is too large for one mapped index");
+        }
+        float averageLength = count == 0 ? 1 : Math.max(1, (float) totalLength / count);
+
+        // Terms are stored in UTF-8 byte order so lookups can compare the mapped bytes
+        int termCount = names.size();
+        byte[][] nameBytes = new byte[termCount][];
+        Integer[] order = new Integer[termCount];
+        for (int t = 0; t < termCount; t++) {
+            nameBytes[t] = names.get(t).getBytes(StandardCharsets.UTF_8);
+            order[t] = t;
+        }
+        Arrays.sort(order, (x, y) -> Arrays.compareUnsigned(nameBytes[x], nameBytes[y]));
+        int[] rank = new int[termCount];
+        int[] starts = new int[termCount + 1];
+        int[] blockStarts = new int[termCount + 1];
+        for (int r = 0; r < termCount; r++) {
+            rank[order[r]] = r;
+        }
+        for (int r = 0; r < termCount; r++) {
+            int frequency = frequencies[order[r]];
+            starts[r + 1] = starts[r] + frequency;
+            blockStarts[r + 1] = blockStarts[r] + (frequency + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        }
+
+        // Second pass: postings in book order within each term, with their impacts
+        int[] postings = new int[(int) postingCount];
+        byte[] impacts = new byte[(int) postingCount];
+        int[] fill = Arrays.copyOf(starts, termCount);
+        for (int i = 0; i < count; i++) {
+            String[] fields = fields(mapped, mappedCount, rest, i);
+            int distinct = 0;
+            for (int field = 0; field < 3; field++) {
+                for (String token : tokenize(fields[field])) {
+                    int number = termNumbers.get(token);
+                    int at = indexOf(docTerms, distinct, number);
+                    if (at < 0) {
+                        if (distinct == docTerms.length) {
+                            docTerms = Arrays.copyOf(docTerms, distinct * 2);
+                            docWeights = Arrays.copyOf(docWeights, distinct * 2);
+                        }
+                        at = distinct++;
+                        docTerms[at] = number;
+                        docWeights[at] = 0;
+                    }
+                    docWeights[at] += fieldWeight(field);
+                }
+            }
+            for (int j = 0; j < distinct; j++) {
+                int r = rank[docTerms[j]];
+                postings[fill[r]] = i;
+                impacts[fill[r]++] = (byte) impact(docWeights[j], lengths[i], averageLength);
+            }
+        }
+
+        // The last book and best impact of each block, and each term's best impact
+        int blockCount = blockStarts[termCount];
+        int[] blockDocs = new int[blockCount];
+        byte[] blockImpacts = new byte[blockCount];
+        int[] bestImpacts = new int[termCount];
+        for (int r = 0; r < termCount; r++) {
+            for (int p = starts[r]; p < starts[r + 1]; p++) {
+                int block = blockStarts[r] + (p - starts[r]) / BLOCK_SIZE;
+                int impact = impacts[p] & 0xFF;
+                blockDocs[block] = postings[p];
+                blockImpacts[block] = (byte) Math.max(blockImpacts[block] & 0xFF, impact);
+                bestImpacts[r] = Math.max(bestImpacts[r], impact);
+            }
+        }
+
+        // Trigrams of "$term$" to the terms containing them, for spelling candidates
+        Map<Long, IntList> gramLists = new HashMap<>();
+        for (int r = 0; r < termCount; r++) {
+            for (long gram : grams(names.get(order[r]))) {
+                gramLists.computeIfAbsent(gram, key -> new IntList()).addIfLast(r);
+            }
+        }
+        Long[] gramKeys = gramLists.keySet().toArray(new Long[0]);
+        Arrays.sort(gramKeys);
+        long gramTermCount = 0;
+        for (IntList list : gramLists.values()) {
+            gramTermCount += list.size();
+        }
+
+        long namesLength = 0;
+        for (byte[] name : nameBytes) {
+            namesLength += name.length;
+        }
+        long termsOffset = HEADER_SIZE;
+        long postingsOffset = termsOffset + (long) termCount * TERM_ENTRY_SIZE;
+        long gramsOffset = postingsOffset + postingCount * 4;
+        long gramTermsOffset = gramsOffset + (long) gramKeys.length * GRAM_ENTRY_SIZE;
+        long blockDocsOffset = gramTermsOffset + gramTermCount * 4;
+        long blockImpactsOffset = blockDocsOffset + (long) blockCount * 4;
+        long impactsOffset = blockImpactsOffset + blockCount;
+        long namesOffset = impactsOffset + postingCount;
+        if (namesOffset + namesLength > Integer.MAX_VALUE) {
+            throw new IOException("Catalogue is too large for one mapped index");
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+            for (long value : new long[]{MAGIC, VERSION, count, termCount, gramKeys.length, postingCount, blockCount,
+                    Float.floatToIntBits(averageLength), termsOffset, postingsOffset, gramsOffset, gramTermsOffset,
+                    blockDocsOffset, blockImpactsOffset, impactsOffset, namesOffset}) {
+                out.writeInt((int) value);
+            }
+            int nameOffset = 0;
+            for (int r = 0; r < termCount; r++) {
+                byte[] name = nameBytes[order[r]];
+                out.writeInt(nameOffset);
+                out.writeInt(name.length);
+                out.writeInt(starts[r + 1] - starts[r]);
+                out.writeInt(starts[r]);
+                out.writeInt(blockStarts[r]);
+                out.writeInt(bestImpacts[r]);
+                nameOffset += name.length;
+            }
+            for (int posting : postings) {
+                out.writeInt(posting);
+            }
+            int gramStart = 0;
+            for (Long gram : gramKeys) {
+                int size = gramLists.get(gram).size();
+                out.writeLong(gram);
+                out.writeInt(gramStart);
+                out.writeInt(size);
+                gramStart += size;
+            }
+            for (Long gram : gramKeys) {
+                for (int r : gramLists.get(gram).toArray()) {
+                    out.writeInt(r);
+                }
+            }
+            for (int blockDoc : blockDocs) {
+                out.writeInt(blockDoc);
+            }
+            out.write(blockImpacts);
+            out.write(impacts);
+            for (int r = 0; r < termCount; r++) {
+                out.write(nameBytes[order[r]]);
+            }
+        }
+    }
+
+    private static String[] fields(MappedBookList mapped, int mappedCount, List<Book> rest, int i) {
+        // A mapped catalogue can hand out fields without creating a Book per entry
+        if (i < mappedCount) {
+            return new String[]{mapped.getTitle(i), mapped.getAuthor(i), mapped.getGenre(i)};
+        }
+        Book book = rest.get(i - mappedCount);
+        return new String[]{book.getTitle(), book.getAuthor(), book.getGenre()};
+    }
+
+    private static int fieldWeight(int field) {
+        return field == 0 ? TITLE_WEIGHT : field == 1 ? AUTHOR_WEIGHT : GENRE_WEIGHT;
+    }
+
+    private static int indexOf(int[] values, int size, int value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Lower-case runs of letters and digits
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        String lower = text.toLowerCase();
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static long[] grams(String term) {
+        String padded = "$" + term + "$";
+        long[] grams = new long[padded.length() - 2];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+        }
+        return grams;
+    }
+
+    /**
+     * The BM25 term-frequency part for a term of the given weighted count in a book of the
+     * given weighted length, scaled from (0, K1 + 1) to 1..255. The term's idf and query
+     * weight multiply it.
+     */
+    private static int impact(int weight, int length, float averageLength) {
+        float part = weight * (K1 + 1) / (weight + K1 * (1 - B + B * length / averageLength));
+        return Math.max(1, Math.min(255, Math.round(part / (K1 + 1) * 255)));
+    }
+
+    private float idf(int frequency) {
+        return (float) Math.log(1 + (documentCount - frequency + 0.5) / (frequency + 0.5));
+    }
+
+    /**
+     * Looks up the query's words. A word found in the index is scored at full weight. One
+     * that is not, of FUZZY_MIN_LENGTH letters or more, is taken as misspelled and brings in
+     * up to MAX_EXPANSIONS terms within one or two edits (a swap of neighbouring letters is
+     * one), at EDIT_WEIGHTS. Expanding words that are found would mostly add lists of
+     * unrelated common words to walk.
+     */
+    public Query prepare(String text) {
+        List<Integer> terms = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Float> weights = new ArrayList<>();
+        List<String> unindexed = new ArrayList<>();
+        for (String word : new LinkedHashSet<>(tokenize(text))) {
+            int exact = find(word.getBytes(StandardCharsets.UTF_8));
+            if (exact >= 0) {
+                addTerm(terms, names, weights, exact, EDIT_WEIGHTS[0]);
+                continue;
+            }
+            unindexed.add(word);
+            if (word.length() < FUZZY_MIN_LENGTH) {
+                continue;
+            }
+            int maxEdits = word.length() >= 8 ? 2 : 1;
+            for (int[] candidate : spellingCandidates(word, maxEdits)) {
+                addTerm(terms, names, weights, candidate[0], EDIT_WEIGHTS[candidate[1]]);
+            }
+        }
+
+        int[] termArray = new int[terms.size()];
+        float[] weightArray = new float[terms.size()];
+        for (int i = 0; i < termArray.length; i++) {
+            termArray[i] = terms.get(i);
+            weightArray[i] = weights.get(i);
+        }
+        return new Query(termArray, names.toArray(new String[0]), weightArray, unindexed.toArray(new String[0]));
+    }
+
+    // Several query words may reach the same term; it counts once, at the best weight
+    private void addTerm(List<Integer> terms, List<String> names, List<Float> weights, int term, float editWeight) {
+        float weight = editWeight * idf(frequency(term));
+        int existing = terms.indexOf(term);
+        if (existing < 0) {
+            terms.add(term);
+            names.add(termName(term));
+            weights.add(weight);
+        } else if (weights.get(existing) < weight) {
+            weights.set(existing, weight);
+        }
+    }
+
+    /**
+     * Terms one to maxEdits edits from word, as {term, edits}, closest and then most
+     * common first. An edit changes at most four of a word's padded trigrams (a swap of
+     * two letters does), so only terms sharing all but 4 * maxEdits of them are compared
+     * letter by letter.
+     */
+    private List<int[]> spellingCandidates(String word, int maxEdits) {
+        long[] wordGrams = Arrays.stream(grams(word)).distinct().toArray();
+        int[] hits = gramHits.get();
+        IntList touched = new IntList();
+        for (long gram : wordGrams) {
+            int entry = findGram(gram);
+            if (entry < 0) {
+                continue;
+            }
+            int start = data.getInt(gramsOffset + entry * GRAM_ENTRY_SIZE + 8);
+            int size = data.getInt(gramsOffset + entry * GRAM_ENTRY_SIZE + 12);
+            for (int i = 0; i < size; i++) {
+                int term = data.getInt(gramTermsOffset + (start + i) * 4);
+                if (hits[term]++ == 0) {
+                    touched.addIfLast(term);
+                }
+            }
+        }
+
+        int needed = Math.max(1, wordGrams.length - 4 * maxEdits);
+        List<int[]> candidates = new ArrayList<>();
+        for (int term : touched.toArray()) {
+            if (hits[term] >= needed) {
+                String name = termName(term);
+                if (Math.abs(name.length() - word.length()) <= maxEdits) {
+                    int edits = editDistance(word, name, maxEdits);
+                    if (edits > 0 && edits <= maxEdits) {
+                        candidates.add(new int[]{term, edits, frequency(term)});
+                    }
+                }
+            }
+            hits[term] = 0;
+        }
+        candidates.sort((x, y) -> x[1] != y[1] ? Integer.compare(x[1], y[1]) : Integer.compare(y[2], x[2]));
+        return candidates.size() > MAX_EXPANSIONS ? candidates.subList(0, MAX_EXPANSIONS) : candidates;
+    }
+
+    // Optimal string alignment distance, giving up with maxEdits + 1 once every path is longer
+    static int editDistance(String a, String b, int maxEdits) {
+        int[] previous2 = new int[b.length() + 1];
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int value = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    value = Math.min(value, previous2[j - 2] + 1);
+                }
+                current[j] = value;
+                rowMin = Math.min(rowMin, value);
+            }
+            if (rowMin > maxEdits) {
+                return maxEdits + 1;
+            }
+            int[] recycled = previous2;
+            previous2 = previous;
+            previous = current;
+            current = recycled;
+        }
+        return previous[b.length()];
+    }
+
+    /**
+     * The k best-scoring indexed books. Lists are ordered by their upper bound; the lowest
+     * ones whose bounds together cannot beat the k-th best score so far are non-essential.
+     * Candidates come only from the essential lists, which skip ahead together while the
+     * blocks they are in could not beat the k-th score even with every non-essential list's
+     * best. A non-essential list is probed for a candidate only while it could still lift
+     * the candidate past the k-th score.
+     */
+    public TopHits search(Query query, int k) {
+        int n = query.size();
+        Integer[] order = new Integer[n];
+        float[] bounds = new float[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+            bounds[i] = query.weights[i] * data.getInt(termEntry(query.terms[i]) + 20);
+        }
+        Arrays.sort(order, (x, y) -> Float.compare(bounds[x], bounds[y]));
+
+        int[] position = new int[n];
+        int[] start = new int[n];
+        int[] end = new int[n];
+        int[] firstBlock = new int[n];
+        float[] weight = new float[n];
+        // prefix[i]: the most lists 0..i can add together
+        float[] prefix = new float[n];
+        for (int i = 0; i < n; i++) {
+            int entry = termEntry(query.terms[order[i]]);
+            start[i] = data.getInt(entry + 12);
+            position[i] = start[i];
+            end[i] = start[i] + data.getInt(entry + 8);
+            firstBlock[i] = data.getInt(entry + 16);
+            weight[i] = query.weights[order[i]];
+            prefix[i] = (i > 0 ? prefix[i - 1] : 0) + bounds[order[i]];
+        }
+
+        // current[i]: the book at position[i], or Integer.MAX_VALUE once list i is used up
+        int[] current = new int[n];
+        for (int i = 0; i < n; i++) {
+            current[i] = position[i] < end[i] ? posting(position[i]) : Integer.MAX_VALUE;
+        }
+
+        TopHits top = new TopHits(k);
+        float threshold = 0;
+        int firstEssential = 0;
+        // Essential lists are not checked against their block maxima again until one passes this book
+        int blocksCheckedUntil = 0;
+        while (firstEssential < n) {
+            if (firstEssential == n - 1 && top.isFull()) {
+                // One list left to walk: most of its postings fail on their impact alone
+                searchLastList(top, n - 1, position, end, current, weight, prefix);
+                break;
+            }
+            int doc = Integer.MAX_VALUE;
+            for (int i = firstEssential; i < n; i++) {
+                doc = Math.min(doc, current[i]);
+            }
+            if (doc == Integer.MAX_VALUE) {
+                break;
+            }
+
+            if (doc >= blocksCheckedUntil && top.isFull()) {
+                // Every book before skipTo in an essential list is in that list's current block
+                float blockBound = firstEssential > 0 ? prefix[firstEssential - 1] : 0;
+                int skipTo = Integer.MAX_VALUE;
+                for (int i = firstEssential; i < n; i++) {
+                    if (current[i] != Integer.MAX_VALUE) {
+                        int block = firstBlock[i] + (position[i] - start[i]) / BLOCK_SIZE;
+                        blockBound += weight[i] * (data.get(blockImpactsOffset + block) & 0xFF);
+                        skipTo = Math.min(skipTo, data.getInt(blockDocsOffset + block * 4) + 1);
+                    }
+                }
+                if (blockBound <= threshold) {
+                    for (int i = firstEssential; i < n; i++) {
+                        position[i] = advance(position[i], end[i], skipTo);
+                        current[i] = position[i] < end[i] ? posting(position[i]) : Integer.MAX_VALUE;
+                    }
+                    continue;
+                }
+                blocksCheckedUntil = skipTo;
+            }
+
+            float score = 0;
+            for (int i = firstEssential; i < n; i++) {
+                if (current[i] == doc) {
+                    score += weight[i] * impact(position[i]);
+                    current[i] = ++position[i] < end[i] ? posting(position[i]) : Integer.MAX_VALUE;
+                }
+            }
+            for (int i = firstEssential - 1; i >= 0 && score + prefix[i] > threshold; i--) {
+                if (current[i] < doc) {
+                    position[i] = advance(position[i], end[i], doc);
+                    current[i] = position[i] < end[i] ? posting(position[i]) : Integer.MAX_VALUE;
+                }
+                if (current[i] == doc) {
+                    score += weight[i] * impact(position[i]);
+                }
+            }
+
+            if (top.offer(doc, score) && top.isFull()) {
+                threshold = top.threshold();
+                while (firstEssential < n && prefix[firstEssential] <= threshold) {
+                    firstEssential++;
+                }
+            }
+        }
+        return top;
+    }
+
+    /**
+     * The rest of search() once only list e is essential: a posting is looked at further
+     * only if its own impact plus the best of every other list could beat the k-th score.
+     */
+    private void searchLastList(TopHits top, int e, int[] position, int[] end, int[] current, float[] weight,
+                                float[] prefix) {
+        float threshold = top.threshold();
+        float others = e > 0 ? prefix[e - 1] : 0;
+        float weightE = weight[e];
+        for (int p = position[e]; p < end[e]; p++) {
+            float score = weightE * impact(p);
+            if (score + others <= threshold) {
+                continue;
+            }
+            int doc = posting(p);
+            for (int i = e - 1; i >= 0 && score + prefix[i] > threshold; i--) {
+                if (current[i] < doc) {
+                    position[i] = advance(position[i], end[i], doc);
+                    current[i] = position[i] < end[i] ? posting(position[i]) : Integer.MAX_VALUE;
+                }
+                if (current[i] == doc) {
+                    score += weight[i] * impact(position[i]);
+                }
+            }
+            if (top.offer(doc, score)) {
+                threshold = top.threshold();
+                if (prefix[e] <= threshold) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Scores a book added since the index was built, with the index's term statistics. A
+     * query word the index does not have scores as a word in no indexed book; misspellings
+     * of it are not matched until the index is rebuilt with it.
+     */
+    public float scoreUnindexed(Query query, String title, String author, String genre) {
+        int length = 0;
+        Map<String, Integer> counts = new HashMap<>();
+        String[] fields = {title, author, genre};
+        for (int field = 0; field < 3; field++) {
+            for (String token : tokenize(fields[field])) {
+                counts.merge(token, fieldWeight(field), Integer::sum);
+                length += fieldWeight(field);
+            }
+        }
+        float score = 0;
+        for (int i = 0; i < query.size(); i++) {
+            Integer count = counts.get(query.names[i]);
+            if (count != null) {
+                score += query.weights[i] * impact(count, length, averageLength);
+            }
+        }
+        for (String word : query.unindexed) {
+            Integer count = counts.get(word);
+            if (count != null) {
+                score += idf(0) * impact(count, length, averageLength);
+            }
+        }
+        return score;
+    }
+
+    // First position at or after from whose book is at least doc: galloping, then binary search
+    private int advance(int from, int end, int doc) {
+        if (from >= end || posting(from) >= doc) {
+            return from;
+        }
+        int low = from;
+        int step = 1;
+        int high = from + 1;
+        while (high < end && posting(high) < doc) {
+            low = high;
+            step <<= 1;
+            high = from + step;
+        }
+        high = Math.min(high, end);
+        // posting(low) < doc; posting(high) >= doc or high == end
+        while (high - low > 1) {
+            int middle = (low + high) >>> 1;
+            if (posting(middle) < doc) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return high;
+    }
+
+    private int posting(int position) {
+        return data.getInt(postingsOffset + position * 4);
+    }
+
+    private int impact(int position) {
+        return data.get(impactsOffset + position) & 0xFF;
+    }
+
+    private int termEntry(int term) {
+        return termsOffset + term * TERM_ENTRY_SIZE;
+    }
+
+    private int frequency(int term) {
+        return data.getInt(termEntry(term) + 8);
+    }
+
+    private String termName(int term) {
+        byte[] bytes = new byte[data.getInt(termEntry(term) + 4)];
+        data.get(namesOffset + data.getInt(termEntry(term)), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Binary search of the sorted dictionary, comparing UTF-8 bytes in place; -1 if absent
+    private int find(byte[] name) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = termEntry(middle);
+            int offset = namesOffset + data.getInt(entry);
+            int length = data.getInt(entry + 4);
+            int compared = 0;
+            for (int i = 0; i < Math.min(length, name.length) && compared == 0; i++) {
+                compared = Integer.compare(data.get(offset + i) & 0xFF, name[i] & 0xFF);
+            }
+            if (compared == 0) {
+                compared = Integer.compare(length, name.length);
+            }
+            if (compared == 0) {
+                return middle;
+            } else if (compared < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return -1;
+    }
+
+    private int findGram(long gram) {
+        int low = 0;
+        int high = gramCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long value = data.getLong(gramsOffset + middle * GRAM_ENTRY_SIZE);
+            if (value == gram) {
+                return middle;
+            } else if (value < gram) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return -1;
+    }
+}
+
+/**
+ * A bounded min-heap of (book id, score) keeping the k best scores seen; a book must beat
+ * the current k-th score to get in, so among equal scores the first offered stays.
+ */
+class TopHits {
+    private final int capacity;
+    private final int[] ids;
+    private final float[] scores;
+    private int size;
+
+    public TopHits(int capacity) {
+        this.capacity = capacity;
+        this.ids = new int[capacity];
+        this.scores = new float[capacity];
+    }
+
+    // Returns true if the hit was kept
+    public boolean offer(int id, float score) {
+        if (score <= 0 || capacity == 0) {
+            return false;
+        }
+        if (size < capacity) {
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (score <= scores[0]) {
+            return false;
+        }
+        ids[0] = id;
+        scores[0] = score;
+        siftDown(0);
+        return true;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    // The lowest score kept; a new hit has to beat it once the heap is full
+    public float threshold() {
+        return size == 0 ? 0 : scores[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Ids best first, equal scores by id; empties the heap
+    public int[] drainBestFirst() {
+        int[] sorted = new int[size];
+        while (size > 0) {
+            sorted[size - 1] = ids[0];
+            size--;
+            ids[0] = ids[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+        return sorted;
+    }
+
+    private boolean lower(int a, int b) {
+        // Among equal scores the later id ranks lower, so it is dropped first
+        return scores[a] < scores[b] || (scores[a] == scores[b] && ids[a] > ids[b]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0 && lower(i, (i - 1) / 2)) {
+            swap(i, (i - 1) / 2);
+            i = (i - 1) / 2;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            if (left < size && lower(left, smallest)) {
+                smallest = left;
+            }
+            if (left + 1 < size && lower(left + 1, smallest)) {
+                smallest = left + 1;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        float score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
+
+/** One page of ranked search results, best first. */
+class SearchPage {
+    private final List<Book> books;
+    private final int page;
+    private final boolean more;
+
+    public SearchPage(List<Book> books, int page, boolean more) {
+        this.books = books;
+        this.page = page;
+        this.more = more;
+    }
+
+    public List<Book> getBooks() {
+        return books;
+    }
+
+    // 0-based
+    public int getPage() {
+        return page;
+    }
+
+    public boolean hasMore() {
+        return more;
+    }
+}
+
+class Loan {
+    private final int bookId;
+    private final String patronName;
+    private final long borrowDay;
+    private final long dueDay;
+    private boolean returned;
+
+    // Days are LocalDate epoch days
+    public Loan(int bookId, String patronName, long borrowDay, long dueDay) {
+        this.bookId = bookId;
+        this.patronName = patronName;
+        this.borrowDay = borrowDay;
+        this.dueDay = dueDay;
+    }
+
+    public int getBookId() {
+        return bookId;
+    }
+
+    public String getPatronName() {
+        return patronName;
+    }
+
+    public long getBorrowDay() {
+        return borrowDay;
+    }
+
+    public long getDueDay() {
+        return dueDay;
+    }
+
+    public boolean isReturned() {
+        return returned;
+    }
+
+    void markReturned() {
+        this.returned = true;
+    }
+
+    public int daysOverdue(long today) {
+        return (int) Math.max(today - dueDay, 0);
+    }
+}
+
+/**
+ * Active loans by book and by patron, persisted to loans.log as "B,bookId,borrowDay,dueDay,patron"
+ * and "R,bookId,returnDay,patron" lines. A priority queue ordered by due day lets
+ * processOverdue() pop only the loans that have just fallen due instead of scanning them all;
+ * returned loans are dropped lazily when they reach the head of the queue.
+ *
+ * Holds are kept per book in the order they were placed, logged as "H,bookId,patron" and
+ * cleared with "X,bookId,patron" when the hold is cancelled. A returned copy lent to the
+ * first patron waiting is logged as one "L,bookId,borrowDay,dueDay,patron" line, which both
+ * fills the hold and starts the loan, so neither can be logged without the other. Every method is
+ * synchronized: the ledger is small, and copy counts themselves are updated outside it.
+ */
+class LoanLedger {
+    // Rewrite loans.log with only the active loans and holds once it holds this many entries,
+    // or twice as many as the last rewrite left, whichever is more
+    private static final int COMPACT_AFTER_ENTRIES = 10_000;
+
+    private final Path path;
+    private FileChannel channel;
+    private int entries;
+    private int liveEntries;
+    private final Map<Integer, List<Loan>> activeByBook = new HashMap<>();
+    private final Map<String, List<Loan>> activeByPatron = new HashMap<>();
+    private final PriorityQueue<Loan> dueQueue = new PriorityQueue<>((a, b) -> Long.compare(a.getDueDay(), b.getDueDay()));
+    private final Set<Loan> overdue = new LinkedHashSet<>();
+    private final Map<Integer, ArrayDeque<String>> holds = new HashMap<>();
+
+    public LoanLedger(String fileName) throws IOException {
+        this.path = Paths.get(fileName);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replay();
+    }
+
+    private void replay() throws IOException {
+        String data = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        int start = 0;
+        int end;
+        // Only newline-terminated lines count; anything after the last one is a torn write
+        while ((end = data.indexOf('\n', start)) >= 0) {
+            // The patron name comes last and may itself hold commas, so each kind is split only up to it
+            String line = data.substring(start, end);
+            if (line.startsWith("B,") || line.startsWith("L,")) {
+                String[] parts = line.split(",", 5);
+                if (line.startsWith("L,")) {
+                    removeHold(Integer.parseInt(parts[1]), parts[4]);
+                }
+                add(new Loan(Integer.parseInt(parts[1]), parts[4], Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+            } else if (line.startsWith("R,")) {
+                String[] parts = line.split(",", 4);
+                remove(findActive(Integer.parseInt(parts[1]), parts[3]));
+            } else {
+                String[] hold = line.split(",", 3);
+                if (hold[0].equals("H")) {
+                    holds.computeIfAbsent(Integer.parseInt(hold[1]), id -> new ArrayDeque<>()).add(hold[2]);
+                } else {
+                    removeHold(Integer.parseInt(hold[1]), hold[2]);
+                }
+            }
+            entries++;
+            start = end + 1;
+        }
+        long validLength = data.substring(0, start).getBytes(StandardCharsets.UTF_8).length;
+        channel.truncate(validLength);
+        channel.position(validLength);
+    }
+
+    public synchronized Loan borrow(int bookId, String patronName, long today, long dueDay) throws IOException {
+        // Logged first, so a failed write leaves no loan behind
+        append("B," + bookId + "," + today + "," + dueDay + "," + patronName);
+        Loan loan = new Loan(bookId, patronName, today, dueDay);
+        add(loan);
+        compactIfFull();
+        return loan;
+    }
+
+    public synchronized Loan returnBook(int bookId, String patronName, long today) throws IOException {
+        Loan loan = findActive(bookId, patronName);
+        if (loan != null) {
+            // Logged first, so a failed write leaves the loan active
+            append("R," + bookId + "," + today + "," + loan.getPatronName());
+            remove(loan);
+            compactIfFull();
+        }
+        return loan;
+    }
+
+    // The active loan of bookId held by patronName, or the oldest one when patronName is null
+    public synchronized Loan findActive(int bookId, String patronName) {
+        List<Loan> loans = activeByBook.get(bookId);
+        if (loans == null) {
+            return null;
+        }
+        for (Loan loan : loans) {
+            if (patronName == null || loan.getPatronName().equalsIgnoreCase(patronName)) {
+                return loan;
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<Loan> getActiveLoans(String patronName) {
+        List<Loan> loans = activeByPatron.get(patronName.toLowerCase());
+        return loans == null ? new ArrayList<>() : new ArrayList<>(loans);
+    }
+
+    // Moves every loan due before today onto the overdue list and returns the newly overdue ones
+    public synchronized List<Loan> processOverdue(long today) {
+        List<Loan> newlyOverdue = new ArrayList<>();
+        while (!dueQueue.isEmpty() && dueQueue.peek().getDueDay() < today) {
+            Loan loan = dueQueue.poll();
+            if (!loan.isReturned()) {
+                overdue.add(loan);
+                newlyOverdue.add(loan);
+            }
+        }
+        return newlyOverdue;
+    }
+
+    public synchronized List<Loan> getOverdueLoans() {
+        return new ArrayList<>(overdue);
+    }
+
+    // Queues patronName for the next returned copy; returns the 1-based queue position, or 0 if already queued
+    public synchronized int placeHold(int bookId, String patronName) throws IOException {
+        ArrayDeque<String> queue = holds.computeIfAbsent(bookId, id -> new ArrayDeque<>());
+        for (String waiting : queue) {
+            if (waiting.equalsIgnoreCase(patronName)) {
+                return 0;
+            }
+        }
+        queue.add(patronName);
+        append("H," + bookId + "," + patronName);
+        compactIfFull();
+        return queue.size();
+    }
+
+    // Returns false if patronName was not waiting, e.g. because a returned copy was already lent to them
+    public synchronized boolean cancelHold(int bookId, String patronName) throws IOException {
+        String removed = removeHold(bookId, patronName);
+        if (removed == null) {
+            return false;
+        }
+        append("X," + bookId + "," + removed);
+        compactIfFull();
+        return true;
+    }
+
+    // Lends a returned copy to the first patron waiting for it; null if nobody is. Logged
+    // first, so if the write fails nothing is lent and the patron is still first in line
+    public synchronized Loan lendToNextHold(int bookId, long today, long dueDay) throws IOException {
+        ArrayDeque<String> queue = holds.get(bookId);
+        if (queue == null) {
+            return null;
+        }
+        String patronName = queue.peek();
+        append("L," + bookId + "," + today + "," + dueDay + "," + patronName);
+        queue.poll();
+        if (queue.isEmpty()) {
+            holds.remove(bookId);
+        }
+        Loan loan = new Loan(bookId, patronName, today, dueDay);
+        add(loan);
+        compactIfFull();
+        return loan;
+    }
+
+    public synchronized int getHoldCount(int bookId) {
+        ArrayDeque<String> queue = holds.get(bookId);
+        return queue == null ? 0 : queue.size();
+    }
+
+    private String removeHold(int bookId, String patronName) {
+        ArrayDeque<String> queue = holds.get(bookId);
+        if (queue == null) {
+            return null;
+        }
+        for (Iterator<String> it = queue.iterator(); it.hasNext(); ) {
+            String waiting = it.next();
+            if (waiting.equalsIgnoreCase(patronName)) {
+                it.remove();
+                if (queue.isEmpty()) {
+                    holds.remove(bookId);
+                }
+                return waiting;
+            }
+        }
+        return null;
+    }
+
+    private void add(Loan loan) {
+        activeByBook.computeIfAbsent(loan.getBookId(), id -> new ArrayList<>()).add(loan);
+        activeByPatron.computeIfAbsent(loan.getPatronName().toLowerCase(), name -> new ArrayList<>()).add(loan);
+        dueQueue.add(loan);
+    }
+
+    private void remove(Loan loan) {
+        if (loan == null) {
+            return;
+        }
+        loan.markReturned();
+        removeFrom(activeByBook, loan.getBookId(), loan);
+        removeFrom(activeByPatron, loan.getPatronName().toLowerCase(), loan);
+        overdue.remove(loan);
+    }
+
+    private static <K> void removeFrom(Map<K, List<Loan>> map, K key, Loan loan) {
+        List<Loan> loans = map.get(key);
+        if (loans != null) {
+            loans.remove(loan);
+            if (loans.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    private void append(String entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((entry + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        entries++;
+    }
+
+    // Called once the maps hold the entry just appended, since compact() writes them out in its place.
+    // The entry is logged either way, so a failed rewrite leaves the long log in use and is tried again later
+    private void compactIfFull() {
+        if (entries >= Math.max(COMPACT_AFTER_ENTRIES, 2 * liveEntries)) {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.out.println("Error compacting loans file: " + e.getMessage());
+            }
+        }
+    }
+
+    // Rewrites the log with one B line per active loan and one H line per hold, via a temp file and an atomic rename
+    private void compact() throws IOException {
+        Path tempFile = Paths.get(path + ".tmp");
+        int written = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            for (List<Loan> loans : activeByBook.values()) {
+                for (Loan loan : loans) {
+                    writer.write("B," + loan.getBookId() + "," + loan.getBorrowDay() + "," + loan.getDueDay() + "," + loan.getPatronName());
+                    writer.newLine();
+                    written++;
+                }
+            }
+            for (Map.Entry<Integer, ArrayDeque<String>> entry : holds.entrySet()) {
+                for (String patronName : entry.getValue()) {
+                    writer.write("H," + entry.getKey() + "," + patronName);
+                    writer.newLine();
+                    written++;
+                }
+            }
+        }
+        // Opened before the rename and follows the file through it, so the old channel is
+        // only given up once the rewritten log is in place
+        FileChannel compacted = FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            compacted.close();
+            throw e;
+        }
+        FileChannel old = channel;
+        channel = compacted;
+        entries = written;
+        liveEntries = written;
+        old.close();
+    }
+}
+
+/**
+ * All-time borrow counts per patron, book and genre, kept up to date as events are
+ * appended so the common reports don't have to read the event log at all.
+ */
+class BorrowingCounters {
+    private long borrows;
+    private long returns;
+    private final Map<String, long[]> byPatron = new HashMap<>();
+    private final Map<Integer, long[]> byBook = new HashMap<>();
+    private final Map<String, long[]> byGenre = new HashMap<>();
+
+    public void apply(boolean borrow, int bookId, String genre, String patronName) {
+        if (!borrow) {
+            returns++;
+            return;
+        }
+        borrows++;
+        byPatron.computeIfAbsent(patronName, key -> new long[1])[0]++;
+        byBook.computeIfAbsent(bookId, key -> new long[1])[0]++;
+        byGenre.computeIfAbsent(genre, key -> new long[1])[0]++;
+    }
+
+    public long getBorrows() {
+        return borrows;
+    }
+
+    public void clear() {
+        borrows = 0;
+        returns = 0;
+        byPatron.clear();
+        byBook.clear();
+        byGenre.clear();
+    }
+
+    // How many counters there are, and so roughly what copy() and write() cost
+    public int size() {
+        return byPatron.size() + byBook.size() + byGenre.size();
+    }
+
+    BorrowingCounters copy() {
+        BorrowingCounters copy = new BorrowingCounters();
+        copy.borrows = borrows;
+        copy.returns = returns;
+        byPatron.forEach((key, count) -> copy.byPatron.put(key, new long[]{count[0]}));
+        byBook.forEach((key, count) -> copy.byBook.put(key, new long[]{count[0]}));
+        byGenre.forEach((key, count) -> copy.byGenre.put(key, new long[]{count[0]}));
+        return copy;
+    }
+
+    // Adds other's counts to these
+    void add(BorrowingCounters other) {
+        borrows += other.borrows;
+        returns += other.returns;
+        other.byPatron.forEach((key, count) -> byPatron.computeIfAbsent(key, k -> new long[1])[0] += count[0]);
+        other.byBook.forEach((key, count) -> byBook.computeIfAbsent(key, k -> new long[1])[0] += count[0]);
+        other.byGenre.forEach((key, count) -> byGenre.computeIfAbsent(key, k -> new long[1])[0] += count[0]);
+    }
+
+    public long getReturns() {
+        return returns;
+    }
+
+    public List<Map.Entry<String, long[]>> topPatrons(int limit) {
+        return top(byPatron, limit);
+    }
+
+    public List<Map.Entry<Integer, long[]>> topBooks(int limit) {
+        return top(byBook, limit);
+    }
+
+    public List<Map.Entry<String, long[]>> topGenres(int limit) {
+        return top(byGenre, limit);
+    }
+
+    static <K> List<Map.Entry<K, long[]>> top(Map<K, long[]> counts, int limit) {
+        List<Map.Entry<K, long[]>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        return entries.subList(0, Math.min(limit, entries.size()));
+    }
+
+    void write(BufferedWriter writer) throws IOException {
+        writer.write("T," + borrows + "," + returns);
+        writer.newLine();
+        for (Map.Entry<String, long[]> entry : byPatron.entrySet()) {
+            writer.write("P," + entry.getValue()[0] + "," + entry.getKey());
+            writer.newLine();
+        }
+        for (Map.Entry<Integer, long[]> entry : byBook.entrySet()) {
+            writer.write("K," + entry.getValue()[0] + "," + entry.getKey());
+            writer.newLine();
+        }
+        for (Map.Entry<String, long[]> entry : byGenre.entrySet()) {
+            writer.write("G," + entry.getValue()[0] + "," + entry.getKey());
+            writer.newLine();
+        }
+    }
+
+    // Returns false if the line is not a counter line
+    boolean read(String line) {
+        String[] parts = line.split(",", 3);
+        switch (parts[0]) {
+            case "T":
+                borrows = Long.parseLong(parts[1]);
+                returns = Long.parseLong(parts[2]);
+                return true;
+            case "P":
+                byPatron.put(parts[2], new long[]{Long.parseLong(parts[1])});
+                return true;
+            case "K":
+                byBook.put(Integer.parseInt(parts[2]), new long[]{Long.parseLong(parts[1])});
+                return true;
+            case "G":
+                byGenre.put(parts[2], new long[]{Long.parseLong(parts[1])});
+                return true;
+            default:
+                return false;
+        }
+    }
+}
+
+/**
+ * Append-only history of every borrow and return, one "day,B|R,bookId,genre,patron" line
+ * per event, in day order; a genre holding a comma is quoted (see CsvRecord). Reports over a time window stream the file from the first
+ * event of the window (found through a day -> offset map) and never hold the history in
+ * memory. The materialized counters and the day map are snapshotted to a side file on a
+ * background thread every SNAPSHOT_EVERY_EVENTS events, or every as many events as there
+ * are counters once that is more, so startup only replays the events after the snapshot.
+ * A snapshot the log does not back up, e.g. one that outlived the log's tail in a power
+ * loss, is dropped and the counters are rebuilt from the whole log.
+ *
+ * Desks append under the log's monitor, so nothing slow happens under it: a report reads
+ * the log's length there and streams up to it outside, and desks count into a small set of
+ * counters that readers swap out and fold into a copy of the rest on their own time.
+ */
+class BorrowingEventLog {
+    private static final int SNAPSHOT_EVERY_EVENTS = 1_000;
+
+    interface Visitor {
+        void visit(long day, boolean borrow, int bookId, String genre, String patronName);
+    }
+
+    private interface LineVisitor {
+        // Return false to stop reading
+        boolean visit(long offset, String line);
+    }
+
+    private final Path path;
+    private final Path snapshotPath;
+    private final FileChannel channel;
+    private long length;
+    // Counts up to the last fold; never changed once published, so reports share it
+    private volatile BorrowingCounters counters = new BorrowingCounters();
+    // Counts of the events appended since, under the monitor; folded into counters under foldLock
+    private BorrowingCounters recent = new BorrowingCounters();
+    private final Object foldLock = new Object();
+    private final TreeMap<Long, Long> dayOffsets = new TreeMap<>();
+    private int eventsSinceSnapshot;
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+
+    public BorrowingEventLog(String fileName, String snapshotFileName) throws IOException {
+        this.path = Paths.get(fileName);
+        this.snapshotPath = Paths.get(snapshotFileName);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long covered;
+        try {
+            covered = loadSnapshot();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error reading " + snapshotFileName + ": " + e.getMessage());
+            covered = -1;
+        }
+        if (covered < 0 || covered > channel.size()) {
+            System.out.println("Rebuilding borrowing counters from " + fileName);
+            counters.clear();
+            dayOffsets.clear();
+            covered = 0;
+        }
+        length = scanLines(covered, Long.MAX_VALUE, (offset, line) -> {
+            String[] parts = parseEvent(line);
+            long day = Long.parseLong(parts[0]);
+            if (dayOffsets.isEmpty() || dayOffsets.lastKey() < day) {
+                dayOffsets.put(day, offset);
+            }
+            counters.apply(parts[1].equals("B"), Integer.parseInt(parts[2]), parts[3], parts[4]);
+            return true;
+        });
+        // Drop a torn last line
+        channel.truncate(length);
+        channel.position(length);
+    }
+
+    public synchronized void append(long day, boolean borrow, int bookId, String genre, String patronName) throws IOException {
+        if (dayOffsets.isEmpty() || dayOffsets.lastKey() < day) {
+            dayOffsets.put(day, length);
+        }
+        byte[] bytes = (day + "," + (borrow ? "B" : "R") + "," + bookId + "," + CsvRecord.field(genre) + "," + patronName + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        length += bytes.length;
+        recent.apply(borrow, bookId, genre, patronName);
+
+        // Copying the counters costs about as much as the events since the last copy
+        if (++eventsSinceSnapshot >= Math.max(SNAPSHOT_EVERY_EVENTS, counters.size())) {
+            saveSnapshotInBackground();
+        }
+    }
+
+    // Counts as of the call; callers only read them
+    public BorrowingCounters snapshotCounters() {
+        synchronized (foldLock) {
+            BorrowingCounters since;
+            synchronized (this) {
+                since = recent;
+                recent = new BorrowingCounters();
+            }
+            return fold(since);
+        }
+    }
+
+    // Publishes a copy of the counters plus the events since; caller holds foldLock, not the monitor
+    private BorrowingCounters fold(BorrowingCounters since) {
+        BorrowingCounters folded = counters.copy();
+        folded.add(since);
+        counters = folded;
+        return folded;
+    }
+
+    // Nearly every line has no quoted genre, and String.split is the cheaper way to read those
+    private static String[] parseEvent(String line) {
+        return line.indexOf('"') < 0 ? line.split(",", 5) : CsvRecord.split(line, 5);
+    }
+
+    // Streams the events from fromDay to toDay inclusive, oldest first, as far as the log went when called
+    public void streamWindow(long fromDay, long toDay, Visitor visitor) throws IOException {
+        long from;
+        long end;
+        synchronized (this) {
+            Map.Entry<Long, Long> first = dayOffsets.ceilingEntry(fromDay);
+            if (first == null || first.getKey() > toDay) {
+                return;
+            }
+            from = first.getValue();
+            end = length;
+        }
+        // The log is only appended to, so the lines before end stay as they are while desks carry on
+        scanLines(from, end, (offset, line) -> {
+            String[] parts = parseEvent(line);
+            long day = Long.parseLong(parts[0]);
+            if (day > toDay) {
+                return false;
+            }
+            visitor.visit(day, parts[1].equals("B"), Integer.parseInt(parts[2]), parts[3], parts[4]);
+            return true;
+        });
+    }
+
+    // Reads complete lines from offset up to the one ending at to; returns the offset just past the last line read
+    private long scanLines(long from, long to, LineVisitor visitor) throws IOException {
+        long offset = from;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+            in.skipNBytes(from);
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            int b;
+            while (offset < to && (b = in.read()) >= 0) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                if (!visitor.visit(offset, line.toString(StandardCharsets.UTF_8))) {
+                    break;
+                }
+                offset += line.size() + 1;
+                line.reset();
+            }
+        }
+        return offset;
+    }
+
+    private long loadSnapshot() throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            return 0;
+        }
+        long covered = 0;
+        try (BufferedReader reader = Files.newBufferedReader(snapshotPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("L,")) {
+                    covered = Long.parseLong(line.substring(2));
+                } else if (line.startsWith("D,")) {
+                    String[] parts = line.split(",");
+                    dayOffsets.put(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                } else {
+                    counters.read(line);
+                }
+            }
+        }
+        return covered;
+    }
+
+    // One snapshot at a time, on a daemon thread, so no desk waits for the file to be written
+    private void saveSnapshotInBackground() {
+        if (!snapshotting.compareAndSet(false, true)) {
+            return;
+        }
+        eventsSinceSnapshot = 0;
+        Thread save = new Thread(() -> {
+            try {
+                saveSnapshot();
+            } catch (IOException e) {
+                System.out.println("Error saving borrowing counters: " + e.getMessage());
+            } finally {
+                snapshotting.set(false);
+            }
+        }, "borrow-counters-snapshot");
+        save.setDaemon(true);
+        save.start();
+    }
+
+    private void saveSnapshot() throws IOException {
+        long covered;
+        BorrowingCounters frozen;
+        TreeMap<Long, Long> days;
+        synchronized (foldLock) {
+            BorrowingCounters since;
+            synchronized (this) {
+                covered = length;
+                since = recent;
+                recent = new BorrowingCounters();
+                days = new TreeMap<>(dayOffsets);
+            }
+            frozen = fold(since);
+        }
+        // The log must hold everything the snapshot says it covers before the snapshot can exist
+        channel.force(false);
+        Path tempFile = Paths.get(snapshotPath + ".tmp");
+        try (FileChannel out = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            BufferedWriter writer = new BufferedWriter(Channels.newWriter(out, StandardCharsets.UTF_8));
+            writer.write("L," + covered);
+            writer.newLine();
+            frozen.write(writer);
+            for (Map.Entry<Long, Long> entry : days.entrySet()) {
+                writer.write("D," + entry.getKey() + "," + entry.getValue());
+                writer.newLine();
+            }
+            writer.flush();
+            out.force(true);
+        }
+        Files.move(tempFile, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
+
+enum LoanStatus {
+    BORROWED,
+    ON_HOLD,
+    ALREADY_ON_HOLD,
+    UNAVAILABLE,
+    RETURNED,
+    ON_LOAN,
+    NOT_ON_LOAN,
+    PATRON_NOT_FOUND,
+    BOOK_NOT_FOUND,
+    FAILED
+}
+
+enum BookField {
+    TITLE,
+    AUTHOR,
+    GENRE
+}
+
+// Result of a borrow, return or loan lookup; fields that don't apply to the status are null or 0
+class LoanOutcome {
+    private final LoanStatus status;
+    private final Book book;
+    private final Loan loan;
+    private final Loan handedTo;
+    private final int holdPosition;
+
+    public LoanOutcome(LoanStatus status, Book book, Loan loan) {
+        this(status, book, loan, null, 0);
+    }
+
+    public LoanOutcome(LoanStatus status, Book book, Loan loan, Loan handedTo, int holdPosition) {
+        this.status = status;
+        this.book = book;
+        this.loan = loan;
+        this.handedTo = handedTo;
+        this.holdPosition = holdPosition;
+    }
+
+    public LoanStatus getStatus() {
+        return status;
+    }
+
+    public Book getBook() {
+        return book;
+    }
+
+    // The new loan for BORROWED, the finished one for RETURNED, the active one for ON_LOAN
+    public Loan getLoan() {
+        return loan;
+    }
+
+    // For RETURNED: the loan of the waiting patron the copy went to, or null if it was shelved
+    public Loan getHandedTo() {
+        return handedTo;
+    }
+
+    // For ON_HOLD: 1-based place in the queue
+    public int getHoldPosition() {
+        return holdPosition;
+    }
+}
+
+class BorrowingReport {
+    private final BorrowingCounters counters;
+    private final int windowDays;
+    private final long windowBorrows;
+    private final long windowReturns;
+    private final List<Map.Entry<String, long[]>> windowGenres;
+
+    public BorrowingReport(BorrowingCounters counters, int windowDays, long windowBorrows, long windowReturns,
+                           List<Map.Entry<String, long[]>> windowGenres) {
+        this.counters = counters;
+        this.windowDays = windowDays;
+        this.windowBorrows = windowBorrows;
+        this.windowReturns = windowReturns;
+        this.windowGenres = windowGenres;
+    }
+
+    // A copy taken when the report was built
+    public BorrowingCounters getCounters() {
+        return counters;
+    }
+
+    public int getWindowDays() {
+        return windowDays;
+    }
+
+    public long getWindowBorrows() {
+        return windowBorrows;
+    }
+
+    public long getWindowReturns() {
+        return windowReturns;
+    }
+
+    // Borrows per genre in the window, most borrowed first
+    public List<Map.Entry<String, long[]>> getWindowGenres() {
+        return windowGenres;
+    }
+}
+
+/**
+ * Borrowing and returning may run on many desks at once. They hold the read side of
+ * catalogueLock and change copy counts with compare-and-set, so desks don't wait for each
+ * other; adding books or patrons and folding books.log into the catalogue take the write
+ * side, because they change the lists and indexes the desks read.
+ */
+class Library {
+    // Snapshots read it without catalogueLock; saving the catalogue file swaps in a remapped one
+    private volatile BookCatalogue books;
+    private List<Patron> patrons;
+    // Built on the first lookup so opening a large catalogue doesn't touch every book
+    private volatile boolean indexed;
+    private final Map<String, Integer> booksByTitle = new HashMap<>();
+    private final Map<String, Patron> patronsByName = new HashMap<>();
+    private final TextIndex titleIndex = new TextIndex();
+    private final TextIndex authorIndex = new TextIndex();
+    private final TextIndex genreIndex = new TextIndex();
+    private final TextIndex patronNameIndex = new TextIndex();
+    // books.idx, for ranked search; books added since it was built are scored one by one
+    private volatile RankedIndex rankedIndex;
+    private final Object rankedIndexLock = new Object();
+    private final AtomicBoolean rankedIndexRebuilding = new AtomicBoolean();
+
+    private CatalogueLog catalogueLog;
+    private final LoanLedger loanLedger;
+    private final BorrowingEventLog eventLog;
+    private final ReentrantReadWriteLock catalogueLock = new ReentrantReadWriteLock();
+    // Shared by every Library in the process and exported by Metrics
+    private final Metrics.Timer borrowTimer = Metrics.timer("library", "borrow");
+    private final Metrics.Timer returnTimer = Metrics.timer("library", "return");
+    private final Metrics.Timer searchTimer = Metrics.timer("library", "search");
+    private final Metrics.Timer saveTimer = Metrics.timer("library", "save");
+    private final Metrics.Timer loadTimer = Metrics.timer("library", "load");
+    private final Metrics.Timer importTimer = Metrics.timer("library", "import");
+    private final Metrics.Timer exportTimer = Metrics.timer("library", "export");
+
+    private static final String BOOKS_FILE = "books.txt";
+    private static final String CATALOGUE_FILE = "books.dat";
+    private static final String RANKED_INDEX_FILE = "books.idx";
+    private static final String BOOKS_LOG_FILE = "books.log";
+    private static final String PATRONS_FILE = "patrons.txt";
+    private static final String LOANS_FILE = "loans.log";
+    private static final String EVENTS_FILE = "borrow_events.log";
+    private static final String EVENT_COUNTERS_FILE = "borrow_counters.txt";
+    private static final int REPORT_WINDOW_DAYS = 30;
+    private static final int LOAN_PERIOD_DAYS = 7;
+    // Fold books.log back into books.txt (or books.dat) once it holds this many entries,
+    // or as many as there are books, whichever is more
+    private static final int COMPACT_AFTER_ENTRIES = 10_000;
+    // Rebuild books.idx in the background once this many books are not in it
+    private static final int REINDEX_AFTER_BOOKS = 5_000;
+
+    public Library() {
+        long start = System.nanoTime();
+        this.books = loadBooks();
+        loadTimer.record(start, true);
+        this.patrons = loadPatronsFromFile();
+        try {
+            catalogueLog = new CatalogueLog(BOOKS_LOG_FILE);
+            catalogueLog.replay(new CatalogueLog.Handler() {
+                public void onAdd(int id, String bookLine) {
+                    // Already in books.txt if a compaction finished but the log was not cleared
+                    if (id == books.size()) {
+                        Book book = parseBook(bookLine);
+                        book.setId(id);
+                        books.add(book);
+                    }
+                }
+
+                public void onCopyAdded(int id) {
+                    books.get(id).addCopy();
+                }
+
+                public void onAvailableDelta(int id, int delta) {
+                    books.get(id).adjustAvailable(delta);
+                }
+
+                public void onAvailability(int id, boolean available) {
+                    books.get(id).setAvailable(available);
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("Error reading books log: " + e.getMessage());
+        }
+        rankedIndex = openRankedIndex();
+        // Lending without either log would lose loans or history, so the library does not start
+        try {
+            loanLedger = new LoanLedger(LOANS_FILE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading loans file", e);
+        }
+        try {
+            eventLog = new BorrowingEventLog(EVENTS_FILE, EVENT_COUNTERS_FILE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading borrowing history", e);
+        }
+    }
+
+    private static long today() {
+        return LocalDate.now().toEpochDay();
+    }
+
+    private BookCatalogue loadBooks() {
+        if (Files.exists(Paths.get(CATALOGUE_FILE))) {
+            try {
+                return MappedBookList.open(Paths.get(CATALOGUE_FILE));
+            } catch (IOException e) {
+                System.out.println("Error reading catalogue file: " + e.getMessage());
+            }
+        }
+        return loadBooksFromFile();
+    }
+
+    private RankedIndex openRankedIndex() {
+        if (!Files.exists(Paths.get(RANKED_INDEX_FILE))) {
+            return null;
+        }
+        try {
+            RankedIndex index = RankedIndex.open(Paths.get(RANKED_INDEX_FILE));
+            // Left over from a larger catalogue, so its ids are not this catalogue's
+            return index.getDocumentCount() <= books.size() ? index : null;
+        } catch (IOException e) {
+            System.out.println("Error reading search index: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes books.idx for the whole catalogue and switches ranked search to it. Only the
+     * copy of the list is taken under the read lock; the mapped part of books.dat is read
+     * in place, so desks and additions carry on while the index is written.
+     */
+    public boolean buildRankedIndex() {
+        synchronized (rankedIndexLock) {
+            MappedBookList mapped;
+            List<Book> rest;
+            catalogueLock.readLock().lock();
+            try {
+                mapped = books instanceof MappedBookList ? (MappedBookList) books : null;
+                rest = new ArrayList<>(books.subList(mapped == null ? 0 : mapped.mappedSize(), books.size()));
+            } finally {
+                catalogueLock.readLock().unlock();
+            }
+            Path tempFile = Paths.get(RANKED_INDEX_FILE + ".tmp");
+            try {
+                RankedIndex.build(tempFile, mapped, rest);
+                Files.move(tempFile, Paths.get(RANKED_INDEX_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                rankedIndex = RankedIndex.open(Paths.get(RANKED_INDEX_FILE));
+                return true;
+            } catch (IOException e) {
+                System.out.println("Error writing search index: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    private RankedIndex ensureRankedIndex() {
+        if (rankedIndex == null) {
+            synchronized (rankedIndexLock) {
+                if (rankedIndex == null) {
+                    buildRankedIndex();
+                }
+            }
+        }
+        return rankedIndex;
+    }
+
+    // One rebuild at a time, on a daemon thread so it never holds up exit
+    private void rebuildRankedIndexInBackground() {
+        if (!rankedIndexRebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        Thread rebuild = new Thread(() -> {
+            try {
+                buildRankedIndex();
+            } finally {
+                rankedIndexRebuilding.set(false);
+            }
+        }, "search-index-rebuild");
+        rebuild.setDaemon(true);
+        rebuild.start();
+    }
+
+    private void ensureIndexed() {
+        if (indexed) {
+            return;
+        }
+        synchronized (this) {
+            if (!indexed) {
+                buildIndexes();
+            }
+        }
+    }
+
+    private void buildIndexes() {
+        // A mapped catalogue can hand out fields without creating a Book per entry
+        MappedBookList mapped = books instanceof MappedBookList ? (MappedBookList) books : null;
+        for (int i = 0; i < books.size(); i++) {
+            if (mapped != null && i < mapped.mappedSize()) {
+                indexBook(i, mapped.getTitle(i), mapped.getAuthor(i), mapped.getGenre(i));
+            } else {
+                Book book = books.get(i);
+                indexBook(i, book.getTitle(), book.getAuthor(), book.getGenre());
+            }
+        }
+        for (int i = 0; i < patrons.size(); i++) {
+            indexPatron(i, patrons.get(i));
+        }
+        indexed = true;
+    }
+
+    // Callers hold the write lock; the next lookup builds the indexes again in one pass
+    private void dropIndexes() {
+        indexed = false;
+        booksByTitle.clear();
+        patronsByName.clear();
+        titleIndex.clear();
+        authorIndex.clear();
+        genreIndex.clear();
+        patronNameIndex.clear();
+    }
+
+    // Adding a title that is already catalogued (same title and author) adds a copy of it;
+    // returns the catalogued book. The one passed in only gets an id if it was a new title
+    public Book addBook(Book book) {
+        catalogueLock.writeLock().lock();
+        try {
+            Book existing = findBookByTitle(book.getTitle());
+            if (existing != null && existing.getAuthor().equalsIgnoreCase(book.getAuthor())) {
+                existing.addCopy();
+                catalogueLog.appendCopyAdded(existing.getId());
+                book = existing;
+            } else {
+                int id = books.size();
+                book.setId(id);
+                if (indexed) {
+                    indexBook(id, book.getTitle(), book.getAuthor(), book.getGenre());
+                }
+                books.add(book);
+                catalogueLog.appendAdd(id, formatBook(book));
+                // A compact catalogue keeps its own copy of the book
+                book = books.get(id);
+            }
+            compactIfNeeded();
+        } catch (IOException e) {
+            System.out.println("Error writing to books log: " + e.getMessage());
+        } finally {
+            catalogueLock.writeLock().unlock();
+        }
+        return book;
+    }
+
+    /**
+     * Adds every book of a catalogue dump (see CatalogueImport) and writes the catalogue once,
+     * rather than logging each book to books.log. As with addBook, a book whose title and
+     * author are already catalogued, or came earlier in the dump, adds its copies to that
+     * book. The dump is parsed before the write lock is taken, so desks wait only for the
+     * merge and the save.
+     */
+    public void importBooks(Path path, int threads) {
+        long start = System.nanoTime();
+        CatalogueImport dump = new CatalogueImport(path, threads);
+        List<List<Book>> chunks;
+        try {
+            chunks = dump.parse();
+        } catch (IOException e) {
+            System.out.println("Error reading import file: " + e.getMessage());
+            importTimer.record(start, false);
+            return;
+        }
+
+        long added = 0;
+        long copiesAdded = 0;
+        boolean saved;
+        catalogueLock.writeLock().lock();
+        try {
+            // booksByTitle holds the first book of each title; books whose title an earlier
+            // book of another author took are found here instead, filled on the first clash
+            Map<String, Book> sharedTitles = null;
+            if (!indexed) {
+                // Finding duplicates needs only the title map, not the substring indexes
+                MappedBookList mapped = books instanceof MappedBookList ? (MappedBookList) books : null;
+                for (int i = 0; i < books.size(); i++) {
+                    String title = mapped != null && i < mapped.mappedSize() ? mapped.getTitle(i) : books.get(i).getTitle();
+                    booksByTitle.putIfAbsent(title.toLowerCase(), i);
+                }
+            }
+            for (List<Book> chunk : chunks) {
+                for (Book book : chunk) {
+                    String title = book.getTitle().toLowerCase();
+                    String key = title + "\n" + book.getAuthor().toLowerCase();
+                    Integer existingId = booksByTitle.get(title);
+                    Book existing = existingId == null ? null : books.get(existingId);
+                    if (existing != null && !existing.getAuthor().equalsIgnoreCase(book.getAuthor())) {
+                        if (sharedTitles == null) {
+                            sharedTitles = sharedTitles();
+                        }
+                        existing = sharedTitles.get(key);
+                    }
+                    if (existing != null) {
+                        existing.addCopies(book.getTotalCopies());
+                        copiesAdded += book.getTotalCopies();
+                        continue;
+                    }
+                    int id = books.size();
+                    book.setId(id);
+                    Integer firstId = booksByTitle.putIfAbsent(title, id);
+                    books.add(book);
+                    // A taken title means the clash above already filled sharedTitles
+                    if (firstId != null) {
+                        sharedTitles.putIfAbsent(key, books.get(id));
+                    }
+                    added++;
+                }
+            }
+            // Adding a large dump to the substring indexes book by book costs far more than
+            // parsing it, so they are rebuilt on the next search instead
+            if (added > 0 || !indexed) {
+                dropIndexes();
+            }
+            // The saved catalogue holds everything books.log did
+            saved = saveBooks();
+            if (saved) {
+                try {
+                    catalogueLog.reset();
+                } catch (IOException e) {
+                    System.out.println("Error clearing books log: " + e.getMessage());
+                }
+            }
+        } finally {
+            catalogueLock.writeLock().unlock();
+        }
+        importTimer.record(start, saved);
+        if (saved && rankedIndex != null) {
+            buildRankedIndex();
+        }
+
+        System.out.printf("Imported %d lines in %d ms: %d new books, %d copies of catalogued books, %d lines skipped%n",
+                dump.getLines(), (System.nanoTime() - start) / 1_000_000, added, copiesAdded, dump.getRejected());
+        if (dump.getFirstProblem() != null) {
+            System.out.println("First skipped line: " + dump.getFirstProblem());
+        }
+    }
+
+    // Catalogued books that are not the first of their title, by lower-case title and author
+    private Map<String, Book> sharedTitles() {
+        Map<String, Book> shared = new HashMap<>();
+        for (int i = 0; i < books.size(); i++) {
+            Book book = books.get(i);
+            if (booksByTitle.get(book.getTitle().toLowerCase()) != i) {
+                shared.putIfAbsent(book.getTitle().toLowerCase() + "\n" + book.getAuthor().toLowerCase(), book);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Lends a copy of the title to the patron. When every copy is out and holdIfUnavailable
+     * is set, the patron is queued for the next returned copy. A copy may come back between
+     * the failed borrow and the hold being queued, so the borrow is tried once more after
+     * queuing; if it succeeds the hold is withdrawn again.
+     */
+    public LoanOutcome borrow(String patronName, String title, boolean holdIfUnavailable) {
+        long start = System.nanoTime();
+        LoanOutcome outcome = lend(patronName, title, holdIfUnavailable);
+        LoanStatus status = outcome.getStatus();
+        borrowTimer.record(start, status == LoanStatus.BORROWED || status == LoanStatus.ON_HOLD);
+        return outcome;
+    }
+
+    private LoanOutcome lend(String patronName, String title, boolean holdIfUnavailable) {
+        catalogueLock.readLock().lock();
+        try {
+            Patron patron = findPatronByName(patronName);
+            if (patron == null) {
+                return new LoanOutcome(LoanStatus.PATRON_NOT_FOUND, null, null);
+            }
+            Book book = findBookByTitle(title);
+            if (book == null) {
+                return new LoanOutcome(LoanStatus.BOOK_NOT_FOUND, null, null);
+            }
+            if (book.tryBorrow()) {
+                return new LoanOutcome(LoanStatus.BORROWED, book, recordLoan(book, patron.getName()));
+            }
+            if (!holdIfUnavailable) {
+                return new LoanOutcome(LoanStatus.UNAVAILABLE, book, null);
+            }
+            int position = loanLedger.placeHold(book.getId(), patron.getName());
+            if (position == 0) {
+                return new LoanOutcome(LoanStatus.ALREADY_ON_HOLD, book, null);
+            }
+            if (!book.tryBorrow()) {
+                return new LoanOutcome(LoanStatus.ON_HOLD, book, null, null, position);
+            }
+            if (loanLedger.cancelHold(book.getId(), patron.getName())) {
+                return new LoanOutcome(LoanStatus.BORROWED, book, recordLoan(book, patron.getName()));
+            }
+            // A returning desk already lent a copy to this patron, so this one goes back
+            releaseCopy(book);
+            return new LoanOutcome(LoanStatus.BORROWED, book, loanLedger.findActive(book.getId(), patron.getName()));
+        } catch (IOException e) {
+            System.out.println("Error writing to loans file: " + e.getMessage());
+            return new LoanOutcome(LoanStatus.FAILED, null, null);
+        } finally {
+            catalogueLock.readLock().unlock();
+            maybeCompact();
+        }
+    }
+
+    /**
+     * Ends the patron's loan of the title and passes the copy to the first patron holding
+     * it, or puts it back on the shelf. The outcome carries the finished loan and, if the
+     * copy went to a waiting patron, their new loan.
+     */
+    public LoanOutcome returnBook(String patronName, String title) {
+        long start = System.nanoTime();
+        LoanOutcome outcome = takeBack(patronName, title);
+        returnTimer.record(start, outcome.getStatus() == LoanStatus.RETURNED);
+        return outcome;
+    }
+
+    private LoanOutcome takeBack(String patronName, String title) {
+        catalogueLock.readLock().lock();
+        try {
+            Book book = findBookByTitle(title);
+            if (book == null) {
+                return new LoanOutcome(LoanStatus.BOOK_NOT_FOUND, null, null);
+            }
+            long today = today();
+            Loan loan = loanLedger.returnBook(book.getId(), patronName, today);
+            if (loan == null) {
+                return new LoanOutcome(LoanStatus.NOT_ON_LOAN, book, null);
+            }
+            appendEvent(today, false, book, loan.getPatronName());
+            Loan next;
+            try {
+                next = releaseCopy(book);
+            } catch (IOException e) {
+                // The return is logged, so it stands even if books.log missed the copy
+                System.out.println("Error writing to books log: " + e.getMessage());
+                next = null;
+            }
+            return new LoanOutcome(LoanStatus.RETURNED, book, loan, next, 0);
+        } catch (IOException e) {
+            System.out.println("Error writing to loans file: " + e.getMessage());
+            return new LoanOutcome(LoanStatus.FAILED, null, null);
+        } finally {
+            catalogueLock.readLock().unlock();
+            maybeCompact();
+        }
+    }
+
+    // The patron's active loan of the title, if any; see getFine
+    public LoanOutcome findLoan(String patronName, String title) {
+        catalogueLock.readLock().lock();
+        try {
+            Patron patron = findPatronByName(patronName);
+            if (patron == null) {
+                return new LoanOutcome(LoanStatus.PATRON_NOT_FOUND, null, null);
+            }
+            Book book = findBookByTitle(title);
+            if (book == null) {
+                return new LoanOutcome(LoanStatus.BOOK_NOT_FOUND, null, null);
+            }
+            Loan loan = loanLedger.findActive(book.getId(), patron.getName());
+            return new LoanOutcome(loan == null ? LoanStatus.NOT_ON_LOAN : LoanStatus.ON_LOAN, book, loan);
+        } finally {
+            catalogueLock.readLock().unlock();
+        }
+    }
+
+    // Caller holds the read lock and has already taken a copy off book; it goes back if the loan cannot be logged.
+    // The loan goes to loans.log before the copy leaves books.log, so books.log never shows a copy out with no loan for it
+    private Loan recordLoan(Book book, String patronName) throws IOException {
+        long today = today();
+        Loan loan;
+        try {
+            loan = loanLedger.borrow(book.getId(), patronName, today, today + LOAN_PERIOD_DAYS);
+        } catch (IOException e) {
+            book.returnCopy();
+            throw e;
+        }
+        try {
+            catalogueLog.appendAvailableDelta(book.getId(), -1);
+        } catch (IOException e) {
+            book.returnCopy();
+            try {
+                loanLedger.returnBook(book.getId(), patronName, today);
+            } catch (IOException undo) {
+                e.addSuppressed(undo);
+            }
+            throw e;
+        }
+        appendEvent(today, true, book, patronName);
+        return loan;
+    }
+
+    // Only the borrowing report reads events, so a loan or return already logged stands without one
+    private void appendEvent(long day, boolean borrow, Book book, String patronName) {
+        try {
+            eventLog.append(day, borrow, book.getId(), book.getGenre(), patronName);
+        } catch (IOException e) {
+            System.out.println("Error writing borrow events: " + e.getMessage());
+        }
+    }
+
+    // Caller holds the read lock; the copy stays out if it goes straight to a waiting patron
+    private Loan releaseCopy(Book book) throws IOException {
+        long today = today();
+        Loan next;
+        try {
+            next = loanLedger.lendToNextHold(book.getId(), today, today + LOAN_PERIOD_DAYS);
+        } catch (IOException e) {
+            // Nothing was lent and the patron is still first in line, so the copy goes back on the shelf
+            System.out.println("Error writing to loans file: " + e.getMessage());
+            next = null;
+        }
+        if (next != null) {
+            appendEvent(today, true, book, next.getPatronName());
+            return next;
+        }
+        if (book.returnCopy()) {
+            catalogueLog.appendAvailableDelta(book.getId(), 1);
+        }
+        return null;
+    }
+
+    private void maybeCompact() {
+        // Unlocked, so only a hint; compactIfNeeded checks again under the write lock
+        if (!logNeedsCompacting()) {
+            return;
+        }
+        catalogueLock.writeLock().lock();
+        try {
+            compactIfNeeded();
+        } finally {
+            catalogueLock.writeLock().unlock();
+        }
+    }
+
+    // Caller holds the write lock, so no desk is between a copy change and its log entry
+    private void compactIfNeeded() {
+        if (logNeedsCompacting() && saveBooks()) {
+            try {
+                catalogueLog.reset();
+            } catch (IOException e) {
+                System.out.println("Error clearing books log: " + e.getMessage());
+            }
+        }
+    }
+
+    // Folding rewrites every book, so the log has to grow with the catalogue to pay for it
+    private boolean logNeedsCompacting() {
+        return catalogueLog.size() >= Math.max(COMPACT_AFTER_ENTRIES, books.size());
+    }
+
+    private boolean saveBooks() {
+        long start = System.nanoTime();
+        boolean saved = books instanceof MappedBookList ? saveCatalogueFile() : saveBooksToFile();
+        saveTimer.record(start, saved);
+        return saved;
+    }
+
+    private boolean saveCatalogueFile() {
+        Path tempFile = Paths.get(CATALOGUE_FILE + ".tmp");
+        try {
+            MappedBookList.write(tempFile, books);
+            Files.move(tempFile, Paths.get(CATALOGUE_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // Remap so books and counts are read from the file just written
+            books = MappedBookList.open(Paths.get(CATALOGUE_FILE));
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error writing catalogue file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public void convertToCatalogueFile() {
+        if (saveCatalogueFile()) {
+            try {
+                catalogueLog.reset();
+            } catch (IOException e) {
+                System.out.println("Error clearing books log: " + e.getMessage());
+            }
+            System.out.println("Converted " + books.size() + " books to " + CATALOGUE_FILE + "; " + BOOKS_FILE + " is no longer read.");
+        }
+    }
+
+    private void indexBook(int id, String title, String author, String genre) {
+        booksByTitle.putIfAbsent(title.toLowerCase(), id);
+        titleIndex.add(id, title);
+        authorIndex.add(id, author);
+        genreIndex.add(id, genre);
+    }
+
+    private void indexPatron(int id, Patron patron) {
+        patronsByName.putIfAbsent(patron.getName().toLowerCase(), patron);
+        patronNameIndex.add(id, patron.getName());
+    }
+
+    // A live view; entries added by other desks may appear while it is being read
+    public List<Book> getBooks() {
+        return Collections.unmodifiableList(books);
+    }
+
+    /**
+     * The catalogue as it stands now, for reports that read every book: its counts stay put
+     * while desks keep lending and returning. Taking one waits only for the copy count
+     * updates already in flight, not for searches or index builds; see CopyCounts.
+     */
+    public CatalogueSnapshot getBooksSnapshot() {
+        return books.snapshot();
+    }
+
+    /**
+     * Writes every book to the channel as CSV or JSON lines and returns how many were written.
+     * The catalogue is exported as it stood at the start, from a snapshot, so desks are held
+     * up only while it is taken; rows go from the catalogue's columns into one reused buffer.
+     */
+    public long exportBooks(WritableByteChannel channel, RecordWriter.Format format) throws IOException {
+        long start = System.nanoTime();
+        boolean exported = false;
+        try {
+            CatalogueSnapshot snapshot = getBooksSnapshot();
+            RecordWriter out = new RecordWriter(channel, format, CatalogueSnapshot.FIELDS);
+            snapshot.export(out);
+            out.flush();
+            exported = true;
+            return out.getRecords();
+        } finally {
+            exportTimer.record(start, exported);
+        }
+    }
+
+    public Book getBook(int bookId) {
+        return books.get(bookId);
+    }
+
+    public void addPatron(Patron patron) {
+        catalogueLock.writeLock().lock();
+        try {
+            if (indexed) {
+                indexPatron(patrons.size(), patron);
+            }
+            patrons.add(patron);
+            appendPatronToFile(patron);
+        } finally {
+            catalogueLock.writeLock().unlock();
+        }
+    }
+
+    public Patron findPatron(String name) {
+        catalogueLock.readLock().lock();
+        try {
+            return findPatronByName(name);
+        } finally {
+            catalogueLock.readLock().unlock();
+        }
+    }
+
+    public Book findBook(String title) {
+        catalogueLock.readLock().lock();
+        try {
+            return findBookByTitle(title);
+        } finally {
+            catalogueLock.readLock().unlock();
+        }
+    }
+
+    public double getFine(Loan loan) {
+        return calculateFineAmount(loan.daysOverdue(today()));
+    }
+
+    public double calculateFineAmount(int daysOverdue) {
+        double fineRate = 1.0;
+        return daysOverdue * fineRate;
+    }
+
+    public List<Book> searchBooks(BookField field, String query) {
+        long start = System.nanoTime();
+        catalogueLock.readLock().lock();
+        try {
+            switch (field) {
+                case TITLE:
+                    return findBooksByTitle(query);
+                case AUTHOR:
+                    return findBooksByAuthor(query);
+                default:
+                    return findBooksByGenre(query);
+            }
+        } finally {
+            catalogueLock.readLock().unlock();
+            searchTimer.record(start, true);
+        }
+    }
+
+    /**
+     * Books matching any word of the query in their title, author or genre, best match first,
+     * pageSize to a page. Misspelled words still match (see RankedIndex). Finding page p keeps
+     * the best (p + 1) * pageSize + 1 books, the extra one telling whether another page follows.
+     */
+    public SearchPage rankedSearch(String query, int page, int pageSize) {
+        long start = System.nanoTime();
+        RankedIndex index = ensureRankedIndex();
+        if (index == null) {
+            searchTimer.record(start, false);
+            return new SearchPage(Collections.emptyList(), page, false);
+        }
+        catalogueLock.readLock().lock();
+        try {
+            RankedIndex.Query prepared = index.prepare(query);
+            int end = (page + 1) * pageSize;
+            TopHits top = index.search(prepared, end + 1);
+            int indexed = index.getDocumentCount();
+            for (int id = indexed; id < books.size(); id++) {
+                Book book = books.get(id);
+                top.offer(id, index.scoreUnindexed(prepared, book.getTitle(), book.getAuthor(), book.getGenre()));
+            }
+            if (books.size() - indexed >= REINDEX_AFTER_BOOKS) {
+                rebuildRankedIndexInBackground();
+            }
+
+            int[] ids = top.drainBestFirst();
+            List<Book> results = new ArrayList<>();
+            for (int i = page * pageSize; i < Math.min(ids.length, end); i++) {
+                results.add(books.get(ids[i]));
+            }
+            return new SearchPage(results, page, ids.length > end);
+        } finally {
+            catalogueLock.readLock().unlock();
+            searchTimer.record(start, true);
+        }
+    }
+
+    public List<Patron> searchPatrons(String query) {
+        long start = System.nanoTime();
+        catalogueLock.readLock().lock();
+        try {
+            return findPatronsByName(query);
+        } finally {
+            catalogueLock.readLock().unlock();
+            searchTimer.record(start, true);
+        }
+    }
+
+    public int getHoldCount(Book book) {
+        return loanLedger.getHoldCount(book.getId());
+    }
+
+    // All-time counters plus the last REPORT_WINDOW_DAYS days streamed from the event log
+    public BorrowingReport getBorrowingReport() {
+        long today = today();
+        long[] windowTotals = new long[2];
+        Map<String, long[]> windowByGenre = new HashMap<>();
+        try {
+            eventLog.streamWindow(today - REPORT_WINDOW_DAYS + 1, today, (day, borrow, bookId, genre, patronName) -> {
+                windowTotals[borrow ? 0 : 1]++;
+                if (borrow) {
+                    windowByGenre.computeIfAbsent(genre, key -> new long[1])[0]++;
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("Error reading borrowing history: " + e.getMessage());
+        }
+        return new BorrowingReport(eventLog.snapshotCounters(), REPORT_WINDOW_DAYS, windowTotals[0], windowTotals[1],
+                BorrowingCounters.top(windowByGenre, Integer.MAX_VALUE));
+    }
+
+    // Every loan past its due day, oldest first
+    public List<Loan> getOverdueLoans() {
+        loanLedger.processOverdue(today());
+        return loanLedger.getOverdueLoans();
+    }
+
+    private BookCatalogue loadBooksFromFile() {
+        CompactBookList loadedBooks = new CompactBookList();
+        try (BufferedReader reader = new BufferedReader(new FileReader(BOOKS_FILE))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Book book = parseBook(line);
+                book.setId(loadedBooks.size());
+                loadedBooks.add(book);
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading books file: " + e.getMessage());
+        }
+        return loadedBooks;
+    }
+
+    // "title, author, genre, available[, totalCopies, availableCopies]"; older files have no copy counts.
+    // Fields holding commas are quoted (see CsvRecord)
+    private static Book parseBook(String line) {
+        String[] parts = CsvRecord.split(line);
+        String title = parts[0].trim();
+        String author = parts[1].trim();
+        String genre = parts[2].trim();
+        boolean available = Boolean.parseBoolean(parts[3].trim());
+        if (parts.length < 6) {
+            return new Book(title, author, genre, available);
+        }
+        return new Book(title, author, genre, Integer.parseInt(parts[4].trim()), Integer.parseInt(parts[5].trim()));
+    }
+
+    private static String formatBook(Book book) {
+        return CsvRecord.field(book.getTitle()) + ", " + CsvRecord.field(book.getAuthor()) + ", "
+                + CsvRecord.field(book.getGenre()) + ", " + book.isAvailable() + ", " + book.getTotalCopies() + ", "
+                + book.getAvailableCopies();
+    }
+
+    // Writes a temp file and renames it over books.txt, so a crash never leaves half a catalogue;
+    // package-private so LibraryBenchmarks can time it
+    boolean saveBooksToFile() {
+        Path tempFile = Paths.get(BOOKS_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile)) {
+            for (Book book : books) {
+                writer.write(formatBook(book));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing to books file: " + e.getMessage());
+            return false;
+        }
+
+        try {
+            Files.move(tempFile, Paths.get(BOOKS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error writing to books file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private List<Patron> loadPatronsFromFile() {
+        List<Patron> loadedPatrons = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(PATRONS_FILE))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = CsvRecord.split(line);
+                String name = parts[0];
+                String contactInfo = parts[1];
+                loadedPatrons.add(new Patron(name, contactInfo));
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading patrons file: " + e.getMessage());
+        }
+        return loadedPatrons;
+    }
+
+    private void appendPatronToFile(Patron patron) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(PATRONS_FILE, true))) {
+            writer.write(CsvRecord.field(patron.getName()) + ", " + CsvRecord.field(patron.getContactInfo()));
+            writer.newLine();
+        } catch (IOException e) {
+            System.out.println("Error writing to patrons file: " + e.getMessage());
+        }
+    }
+
+    // Callers hold the read or write lock
+    private Patron findPatronByName(String name) {
+        ensureIndexed();
+        return patronsByName.get(name.toLowerCase());
+    }
+
+    private Book findBookByTitle(String title) {
+        ensureIndexed();
+        Integer id = booksByTitle.get(title.toLowerCase());
+        return id == null ? null : books.get(id);
+    }
+
+    private List<Book> findBooksByTitle(String title) {
+        return search(titleIndex, books, title, Book::getTitle);
+    }
+
+    private List<Book> findBooksByAuthor(String author) {
+        return search(authorIndex, books, author, Book::getAuthor);
+    }
+
+    private List<Book> findBooksByGenre(String genre) {
+        return search(genreIndex, books, genre, Book::getGenre);
+    }
+
+    private List<Patron> findPatronsByName(String name) {
+        return search(patronNameIndex, patrons, name, Patron::getName);
+    }
+
+    private <T> List<T> search(TextIndex index, List<T> items, String query, Function<T, String> field) {
+        ensureIndexed();
+        String lowerQuery = query.toLowerCase();
+        if (lowerQuery.isEmpty()) {
+            return new ArrayList<>(items);
+        }
+
+        List<T> result = new ArrayList<>();
+        boolean exact = index.isExact(lowerQuery);
+        for (int id : index.candidates(lowerQuery)) {
+            T item = items.get(id);
+            if (exact || field.apply(item).toLowerCase().contains(lowerQuery)) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+}
+
+/**
+ * Replays a file of requests against the Library service API from a pool of threads and
+ * reports operations per second. One request per line:
+ *
+ *   BORROW,patron,title     HOLD,patron,title (borrow, or queue if every copy is out)
+ *   RETURN,patron,title     FINE,patron,title
+ *   SEARCH,TITLE|AUTHOR|GENRE,query     PATRONS,query
+ *   ADD_BOOK,title,author,genre         ADD_PATRON,name,contact
+ *
+ * Fields holding commas are quoted as in books.txt (see CsvRecord).
+ * Requests are split between threads by their first argument, so one patron's requests
+ * run in file order and a return is never overtaken by the borrow before it.
+ */
+class LibraryRequestReplay {
+    private final Library library;
+    private final int threads;
+
+    public LibraryRequestReplay(Library library, int threads) {
+        this.library = library;
+        this.threads = threads;
+    }
+
+    public void run(Path requestFile) throws IOException {
+        List<List<String[]>> partitions = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        int requests = 0;
+        for (String line : Files.readAllLines(requestFile, StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = CsvRecord.split(line);
+            String key = parts.length > 1 ? parts[1].toLowerCase() : "";
+            partitions.get((key.hashCode() & Integer.MAX_VALUE) % threads).add(parts);
+            requests++;
+        }
+
+        List<Map<String, long[]>> counts = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        long started = System.nanoTime();
+        for (List<String[]> partition : partitions) {
+            Map<String, long[]> partitionCounts = new HashMap<>();
+            counts.add(partitionCounts);
+            Thread worker = new Thread(() -> {
+                for (String[] request : partition) {
+                    partitionCounts.computeIfAbsent(execute(request), key -> new long[1])[0]++;
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        long elapsedNanos = System.nanoTime() - started;
+
+        Map<String, long[]> totals = new TreeMap<>();
+        for (Map<String, long[]> partitionCounts : counts) {
+            partitionCounts.forEach((key, count) -> totals.computeIfAbsent(key, k -> new long[1])[0] += count[0]);
+        }
+        System.out.printf("Replayed %d requests on %d threads in %d ms: %.0f ops/s%n",
+                requests, threads, elapsedNanos / 1_000_000, requests / (elapsedNanos / 1e9));
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            System.out.println("  " + entry.getKey() + ": " + entry.getValue()[0]);
+        }
+    }
+
+    // Returns "REQUEST OUTCOME" for the summary
+    private String execute(String[] request) {
+        try {
+            switch (request[0]) {
+                case "BORROW":
+                    return "BORROW " + library.borrow(request[1], request[2], false).getStatus();
+                case "HOLD":
+                    return "HOLD " + library.borrow(request[1], request[2], true).getStatus();
+                case "RETURN":
+                    return "RETURN " + library.returnBook(request[1], request[2]).getStatus();
+                case "FINE":
+                    return "FINE " + library.findLoan(request[1], request[2]).getStatus();
+                case "SEARCH":
+                    return "SEARCH " + (library.searchBooks(BookField.valueOf(request[1]), request[2]).isEmpty() ? "NONE" : "FOUND");
+                case "PATRONS":
+                    return "PATRONS " + (library.searchPatrons(request[1]).isEmpty() ? "NONE" : "FOUND");
+                case "ADD_BOOK":
+                    library.addBook(new Book(request[1], request[2], request[3], true));
+                    return "ADD_BOOK DONE";
+                case "ADD_PATRON":
+                    library.addPatron(new Patron(request[1], request[2]));
+                    return "ADD_PATRON DONE";
+                default:
+                    return "MALFORMED";
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            return "MALFORMED";
+        }
+    }
+}
+
+/**
+ * --check-lending runs borrows, holds and returns on many threads over a few titles with
+ * a few copies each, in a library of its own written to an empty working directory. Every
+ * thread acts for patrons of its own and returns what they hold, whether they borrowed it
+ * or a returning desk passed it on from their hold. Meanwhile another thread checks that no
+ * snapshot shows more copies out than a title has. Afterwards every title's copies on the
+ * shelf and on loan have to add up to its total, and a restarted library has to find the
+ * same. Prints what it found and exits with status 1 if a copy was lent twice or lost, so it
+ * can gate a build.
+ */
+class LibraryChecks {
+    private static final int TITLES = 16;
+    private static final int COPIES = 3;
+    private static final int PATRONS_PER_THREAD = 4;
+
+    static boolean checkLending(int threads, int seconds) throws InterruptedException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("."))) {
+            if (files.iterator().hasNext()) {
+                System.out.println("--check-lending writes a library to the working directory; run it from an empty one");
+                return false;
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading the working directory: " + e.getMessage());
+            return false;
+        }
+        try {
+            Files.createFile(Paths.get("books.txt"));
+            Files.createFile(Paths.get("patrons.txt"));
+        } catch (IOException e) {
+            System.out.println("Error writing the library: " + e.getMessage());
+            return false;
+        }
+        Library library = new Library();
+        String[] titles = new String[TITLES];
+        for (int i = 0; i < TITLES; i++) {
+            titles[i] = "Title " + i;
+            library.addBook(new Book(titles[i], "Author " + i, "Fiction", COPIES, COPIES));
+        }
+        String[] patrons = new String[threads * PATRONS_PER_THREAD];
+        for (int i = 0; i < patrons.length; i++) {
+            patrons[i] = "Patron " + i;
+            library.addPatron(new Patron(patrons[i], "patron" + i + "@example.com"));
+        }
+
+        AtomicLong operations = new AtomicLong();
+        AtomicReference<String> broken = new AtomicReference<>();
+        long started = System.nanoTime();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] desks = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int desk = t;
+            desks[t] = new Thread(() -> {
+                Random random = new Random();
+                // Titles each of this desk's patrons waits for; a patron borrows nothing they wait for,
+                // so a hand-off never gives them a second copy
+                boolean[][] holding = new boolean[PATRONS_PER_THREAD][TITLES];
+                while (System.nanoTime() < deadline) {
+                    int patron = random.nextInt(PATRONS_PER_THREAD);
+                    int title = random.nextInt(TITLES);
+                    String patronName = patrons[desk * PATRONS_PER_THREAD + patron];
+                    LoanOutcome outcome;
+                    if (library.findLoan(patronName, titles[title]).getStatus() == LoanStatus.ON_LOAN) {
+                        holding[patron][title] = false;
+                        outcome = library.returnBook(patronName, titles[title]);
+                        if (outcome.getStatus() != LoanStatus.RETURNED) {
+                            broken.compareAndSet(null, patronName + " could not return " + titles[title] + ": " + outcome.getStatus());
+                        }
+                    } else if (!holding[patron][title]) {
+                        outcome = library.borrow(patronName, titles[title], random.nextBoolean());
+                        if (outcome.getStatus() == LoanStatus.ON_HOLD) {
+                            holding[patron][title] = true;
+                        } else if (outcome.getStatus() != LoanStatus.BORROWED && outcome.getStatus() != LoanStatus.UNAVAILABLE) {
+                            broken.compareAndSet(null, patronName + " could not borrow " + titles[title] + ": " + outcome.getStatus());
+                        }
+                    } else {
+                        // Still waiting; let the desks with something to do run
+                        Thread.yield();
+                        continue;
+                    }
+                    operations.incrementAndGet();
+                }
+            }, "lending-" + t);
+            desks[t].setDaemon(true);
+            desks[t].start();
+        }
+        Thread monitor = new Thread(() -> {
+            while (System.nanoTime() < deadline && broken.get() == null) {
+                for (Book book : library.getBooksSnapshot()) {
+                    if (book.getAvailableCopies() < 0 || book.getAvailableCopies() > book.getTotalCopies()) {
+                        broken.compareAndSet(null, "a snapshot shows " + book.getAvailableCopies() + " of "
+                                + book.getTotalCopies() + " copies of " + book.getTitle() + " on the shelf");
+                    }
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "lending-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+        for (Thread desk : desks) {
+            desk.join(TimeUnit.SECONDS.toMillis(seconds + 30));
+            if (desk.isAlive()) {
+                System.out.println("Lending check: " + desk.getName() + " is still running 30 s after the deadline");
+                return false;
+            }
+        }
+        monitor.join();
+        long elapsedNanos = System.nanoTime() - started;
+
+        boolean passed = true;
+        if (broken.get() != null) {
+            System.out.println("Lending check: " + broken.get());
+            passed = false;
+        }
+        int[] shelved = new int[TITLES];
+        int[] onLoan = new int[TITLES];
+        for (int i = 0; i < TITLES; i++) {
+            shelved[i] = library.findBook(titles[i]).getAvailableCopies();
+            onLoan[i] = countLoans(library, patrons, titles[i]);
+            if (shelved[i] + onLoan[i] != COPIES) {
+                System.out.println("Lending check: " + titles[i] + " has " + shelved[i] + " copies on the shelf and "
+                        + onLoan[i] + " on loan, not " + COPIES + " in all");
+                passed = false;
+            }
+        }
+        Library restarted = new Library();
+        for (int i = 0; i < TITLES; i++) {
+            int available = restarted.findBook(titles[i]).getAvailableCopies();
+            int loans = countLoans(restarted, patrons, titles[i]);
+            if (available != shelved[i] || loans != onLoan[i]) {
+                System.out.println("Lending check: after a restart " + titles[i] + " has " + available
+                        + " copies on the shelf and " + loans + " on loan, not " + shelved[i] + " and " + onLoan[i]);
+                passed = false;
+            }
+        }
+        if (passed) {
+            System.out.printf("Lending check passed: %d borrows, holds and returns on %d threads over %d titles of %d copies,"
+                    + " %.0f ops/s, no copy lent twice before or after a restart%n",
+                    operations.get(), threads, TITLES, COPIES, operations.get() / (elapsedNanos / 1e9));
+        }
+        return passed;
+    }
+
+    // Each patron holds at most one copy of a title, as the desks borrow
+    private static int countLoans(Library library, String[] patrons, String title) {
+        int loans = 0;
+        for (String patronName : patrons) {
+            if (library.findLoan(patronName, title).getStatus() == LoanStatus.ON_LOAN) {
+                loans++;
+            }
+        }
+        return loans;
+    }
+}
+
+/**
+ * Parses a catalogue dump for Library.importBooks(): one book per line as
+ * "title,author,genre[,copies]", quoted as in books.txt (see CsvRecord) but never across
+ * lines, with an optional header line starting "title". The file is cut into chunks at line
+ * breaks and a pool of threads parses them, each chunk into its own list, so the books come
+ * back in file order without the parsers sharing anything but the next chunk number.
+ */
+class CatalogueImport {
+    private static final int CHUNK_SIZE = 4 << 20;
+
+    private final Path path;
+    private final int threads;
+    private long lines;
+    private long rejected;
+    private String firstProblem;
+
+    public CatalogueImport(Path path, int threads) {
+        this.path = path;
+        this.threads = threads;
+    }
+
+    // The books of each chunk in file order, each with the copies its line asks for
+    public List<List<Book>> parse() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long[] bounds = chunkBounds(channel);
+            int chunks = bounds.length - 1;
+            AtomicReferenceArray<List<Book>> parsed = new AtomicReferenceArray<>(chunks);
+            long[] lineCounts = new long[chunks];
+            long[] rejectedCounts = new long[chunks];
+            String[] problems = new String[chunks];
+            AtomicInteger nextChunk = new AtomicInteger();
+            List<IOException> failures = Collections.synchronizedList(new ArrayList<>());
+
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < Math.min(threads, chunks); t++) {
+                Thread worker = new Thread(() -> {
+                    int chunk;
+                    while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+                        List<Book> books = new ArrayList<>();
+                        long[] counts = new long[2];
+                        try {
+                            problems[chunk] = parseChunk(channel, bounds[chunk], bounds[chunk + 1], books, counts);
+                        } catch (IOException e) {
+                            failures.add(e);
+                            return;
+                        }
+                        parsed.set(chunk, books);
+                        lineCounts[chunk] = counts[0];
+                        rejectedCounts[chunk] = counts[1];
+                    }
+                }, "catalogue-import-" + t);
+                workers.add(worker);
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while importing " + path);
+                }
+            }
+            if (!failures.isEmpty()) {
+                throw failures.get(0);
+            }
+
+            List<List<Book>> books = new ArrayList<>();
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                books.add(parsed.get(chunk));
+                lines += lineCounts[chunk];
+                rejected += rejectedCounts[chunk];
+                if (firstProblem == null) {
+                    firstProblem = problems[chunk];
+                }
+            }
+            return books;
+        }
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    // The first line that was skipped and why, or null
+    public String getFirstProblem() {
+        return firstProblem;
+    }
+
+    // Chunk i is bytes bounds[i] to bounds[i + 1]; every bound but the last follows a line break
+    private static long[] chunkBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long next = CHUNK_SIZE;
+        while (next < size) {
+            long position = next;
+            long lineEnd = -1;
+            while (lineEnd < 0 && position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                for (int i = 0; i < read && lineEnd < 0; i++) {
+                    if (buffer.get(i) == '\n') {
+                        lineEnd = position + i + 1;
+                    }
+                }
+                position += Math.max(read, 0);
+            }
+            if (lineEnd < 0 || lineEnd >= size) {
+                break;
+            }
+            bounds.add(lineEnd);
+            next = lineEnd + CHUNK_SIZE;
+        }
+        bounds.add(size);
+        long[] array = new long[bounds.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = bounds.get(i);
+        }
+        return array;
+    }
+
+    // Adds the chunk's books; counts[0] gets its lines and counts[1] its skipped lines. Returns the first problem
+    private static String parseChunk(FileChannel channel, long start, long end, List<Book> books, long[] counts)
+            throws IOException {
+        byte[] bytes = new byte[(int) (end - start)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("Import file shrank while reading it");
+            }
+        }
+
+        String problem = null;
+        int lineStart = 0;
+        while (lineStart < bytes.length) {
+            int lineEnd = lineStart;
+            while (lineEnd < bytes.length && bytes[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int textEnd = lineEnd > lineStart && bytes[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            String line = new String(bytes, lineStart, textEnd - lineStart, StandardCharsets.UTF_8);
+            lineStart = lineEnd + 1;
+            if (line.isBlank() || (start == 0 && counts[0] == 0 && line.toLowerCase().startsWith("title"))) {
+                continue;
+            }
+            counts[0]++;
+            try {
+                books.add(parseLine(line));
+            } catch (IllegalArgumentException e) {
+                counts[1]++;
+                if (problem == null) {
+                    problem = e.getMessage() + ": " + line;
+                }
+            }
+        }
+        return problem;
+    }
+
+    private static Book parseLine(String line) {
+        String[] fields = CsvRecord.split(line);
+        if (fields.length < 3 || fields[0].isEmpty()) {
+            throw new IllegalArgumentException("Expected title, author and genre");
+        }
+        // NumberFormatException is an IllegalArgumentException
+        int copies = fields.length > 3 && !fields[3].isEmpty() ? Integer.parseInt(fields[3]) : 1;
+        if (copies < 1) {
+            throw new IllegalArgumentException("Copies must be at least 1");
+        }
+        return new Book(fields[0], fields[1], fields[2], copies, copies);
+    }
+}
+
+/**
+ * Library workloads for the JMH suite, prepared in a working directory that starts
+ * empty. The generated books.txt reads like a catalogue: titles built from a few common
+ * patterns and words, some of them volumes of a series, authors from common first and
+ * last names, a fixed set of genres, and one in five titles held in several copies.
+ * Queries are titles and words taken from that catalogue.
+ */
+class LibraryBenchmarks {
+    private static final String[] ADJECTIVES = {"Silent", "Hidden", "Last", "Golden", "Broken", "Distant", "Secret",
+            "Burning", "Forgotten", "Endless", "Crimson", "Quiet", "Wild", "Lost", "Bright", "Hollow", "Frozen",
+            "Ancient", "Little", "Final", "Dark", "Shining", "Restless", "Painted"};
+    private static final String[] NOUNS = {"River", "Garden", "Kingdom", "Shadow", "Mountain", "Letter", "Island",
+            "Empire", "Forest", "Harbour", "Monsoon", "Journey", "Storm", "Promise", "Mirror", "Winter", "Temple",
+            "Station", "Ocean", "Orchard", "Lantern", "Memory", "Stranger", "City", "Bridge", "Desert", "Queen",
+            "Clockmaker", "Traveller", "Village"};
+    private static final String[] FIRST_NAMES = {"Amitav", "Arundhati", "Vikram", "Jhumpa", "Salman", "Kiran",
+            "Ruskin", "Anita", "Jane", "Charles", "Agatha", "George", "Toni", "Haruki", "Chimamanda", "Gabriel",
+            "Margaret", "Kazuo", "Leo", "Virginia"};
+    private static final String[] LAST_NAMES = {"Ghosh", "Roy", "Seth", "Lahiri", "Rushdie", "Desai", "Bond",
+            "Austen", "Dickens", "Christie", "Orwell", "Morrison", "Murakami", "Adichie", "Marquez", "Atwood",
+            "Ishiguro", "Tolstoy", "Woolf", "Narayan"};
+    private static final String[] GENRES = {"Fiction", "Mystery", "Fantasy", "Science Fiction", "Romance", "Thriller",
+            "Biography", "History", "Poetry", "Children", "Young Adult", "Horror", "Travel", "Self Help", "Science",
+            "Philosophy"};
+    private static final int SAMPLE = 1 << 12;
+
+    static Benchmarks.Workload prepare(String benchmark, int size) throws IOException {
+        Random random = new Random(42);
+        String[] titles = writeDataset(size, random);
+        if (benchmark.equals("library.loadBooksFromFile")) {
+            // books.txt is what a Library without books.dat loads; indexes are built on the first lookup, not here
+            return () -> new Library().getBooks().size();
+        }
+        if (benchmark.equals("library.mappedColdStart")) {
+            // The same start from the books.dat --convert writes, which is mapped rather than parsed
+            new Library().convertToCatalogueFile();
+            return () -> new Library().getBooks().size();
+        }
+        Library library = new Library();
+        if (benchmark.equals("library.saveBooksToFile")) {
+            return () -> library.saveBooksToFile() ? 1 : 0;
+        }
+        if (benchmark.equals("library.exportBooks")) {
+            // The whole catalogue as CSV, as --export writes it
+            return () -> {
+                try (FileChannel channel = FileChannel.open(Paths.get("books.csv"), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    return library.exportBooks(channel, RecordWriter.Format.CSV);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            };
+        }
+
+        // Build the indexes up front rather than in the first timed call
+        library.findBook("");
+        int[] next = new int[1];
+        switch (benchmark) {
+            case "library.findBook":
+                return () -> library.findBook(titles[next[0]++ & (SAMPLE - 1)]) != null ? 1 : 0;
+            case "library.findBooksByTitle":
+                return search(library, BookField.TITLE, NOUNS, next);
+            case "library.findBooksByAuthor":
+                return search(library, BookField.AUTHOR, LAST_NAMES, next);
+            case "library.findBooksByGenre":
+                return search(library, BookField.GENRE, GENRES, next);
+            case "library.rankedSearch":
+                return rankedSearch(library, titles, next);
+            case "library.borrowAndReturn":
+                return borrowAndReturn(library, titles);
+            case "library.borrowAndReturnDuringReports":
+                return duringReports(library, borrowAndReturn(library, titles));
+            default:
+                throw new IllegalArgumentException("Unknown benchmark: " + benchmark);
+        }
+    }
+
+    // searchBooks takes the read lock and goes to findBooksByTitle, findBooksByAuthor or findBooksByGenre
+    private static Benchmarks.Workload search(Library library, BookField field, String[] queries, int[] next) {
+        return () -> library.searchBooks(field, queries[next[0]++ % queries.length].toLowerCase()).size();
+    }
+
+    // First pages for sampled titles plus an author, every other one with a letter dropped from its longest word
+    private static Benchmarks.Workload rankedSearch(Library library, String[] titles, int[] next) {
+        library.buildRankedIndex();
+        String[] queries = new String[SAMPLE];
+        for (int i = 0; i < SAMPLE; i++) {
+            String query = titles[i] + " " + LAST_NAMES[i % LAST_NAMES.length];
+            if (i % 2 == 1) {
+                String longest = "";
+                for (String word : query.split(" ")) {
+                    longest = word.length() > longest.length() ? word : longest;
+                }
+                query = query.replace(longest, longest.substring(0, 2) + longest.substring(3));
+            }
+            queries[i] = query;
+        }
+        return () -> library.rankedSearch(queries[next[0]++ & (SAMPLE - 1)], 0, 10).getBooks().size();
+    }
+
+    // A borrow of a sampled title and, when a copy was free, its return, as desks make them; safe on many threads
+    private static Benchmarks.Workload borrowAndReturn(Library library, String[] titles) {
+        String patron = library.searchPatrons("").get(0).getName();
+        return () -> {
+            String title = titles[ThreadLocalRandom.current().nextInt(SAMPLE)];
+            if (library.borrow(patron, title, false).getStatus() != LoanStatus.BORROWED) {
+                return 0;
+            }
+            library.returnBook(patron, title);
+            return 1;
+        };
+    }
+
+    /**
+     * Runs the desks' workload while another thread reads the whole catalogue from one
+     * snapshot after another, as the availability report does, so the score compares with
+     * the workload's own. Only meaningful with a core to spare for the report thread, which
+     * starts with each iteration's first operation.
+     */
+    private static Benchmarks.Workload duringReports(Library library, Benchmarks.Workload desks) {
+        return new Benchmarks.Workload() {
+            private volatile boolean reporting;
+            private Thread reporter;
+
+            public long getAsLong() {
+                if (reporter == null) {
+                    startReporter();
+                }
+                return desks.getAsLong();
+            }
+
+            private void startReporter() {
+                reporting = true;
+                reporter = new Thread(() -> {
+                    long available = 0;
+                    while (reporting) {
+                        for (Book book : library.getBooksSnapshot()) {
+                            available += book.getAvailableCopies();
+                        }
+                    }
+                    Benchmarks.blackhole = available;
+                }, "report");
+                reporter.start();
+            }
+
+            public void close() {
+                if (reporter != null) {
+                    reporting = false;
+                    try {
+                        reporter.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    reporter = null;
+                }
+            }
+        };
+    }
+
+    // Writes books.txt and patrons.txt; returns a uniform sample of the titles for lookups
+    private static String[] writeDataset(int size, Random random) throws IOException {
+        String[] sample = new String[SAMPLE];
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get("books.txt"))) {
+            for (int i = 0; i < size; i++) {
+                String title = title(random);
+                String author = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " " + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+                String genre = GENRES[random.nextInt(GENRES.length)];
+                int copies = random.nextInt(5) == 0 ? 2 + random.nextInt(4) : 1;
+                int available = random.nextInt(copies + 1);
+                writer.write(title + ", " + author + ", " + genre + ", " + (available > 0) + ", " + copies + ", " + available);
+                writer.newLine();
+
+                // Reservoir sampling, so the lookups cover the whole catalogue
+                int slot = i < SAMPLE ? i : random.nextInt(i + 1);
+                if (slot < SAMPLE) {
+                    sample[slot] = title;
+                }
+            }
+        }
+        for (int i = size; i < SAMPLE; i++) {
+            sample[i] = sample[i % Math.max(size, 1)];
+        }
+
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get("patrons.txt"))) {
+            for (int i = 0; i < Math.max(size / 20, 1); i++) {
+                writer.write(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " " + LAST_NAMES[random.nextInt(LAST_NAMES.length)]
+                        + " " + i + ", patron" + i + "@example.com");
+                writer.newLine();
+            }
+        }
+        return sample;
+    }
+
+    private static String title(Random random) {
+        String adjective = ADJECTIVES[random.nextInt(ADJECTIVES.length)];
+        String noun = NOUNS[random.nextInt(NOUNS.length)];
+        String other = NOUNS[random.nextInt(NOUNS.length)];
+        String title;
+        switch (random.nextInt(4)) {
+            case 0:
+                title = "The " + adjective + " " + noun;
+                break;
+            case 1:
+                title = "The " + noun + " of the " + adjective + " " + other;
+                break;
+            case 2:
+                title = adjective + " " + noun + " and the " + other;
+                break;
+            default:
+                title = "A " + noun + " for the " + other;
+        }
+        return random.nextInt(4) == 0 ? title + " (Book " + (1 + random.nextInt(12)) + ")" : title;
+    }
+}
@@ -0,0 +1,254 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Process-wide operation metrics for the bank and the library. Each operation has a Timer:
+ * lock-free counts and a latency histogram, recorded on every call so they can stay on in
+ * production. Timers are exported as JMX MBeans (group:type=Operation,name=operation) and,
+ * when -Dmetrics.port is set, as Prometheus text on http://host:port/metrics.
+ *
+ * Recording is two System.nanoTime() reads, one LongAdder add and one atomic increment of
+ * a histogram bucket (plus another add for a failure); nothing allocates and nothing locks.
+ */
+public class Metrics {
+    private static final Map<String, Timer> TIMERS = new ConcurrentSkipListMap<>();
+    private static HttpServer scrapeServer;
+
+    /** What JMX shows for a Timer; latencies in microseconds. */
+    public interface TimerMBean {
+        long getCount();
+
+        long getFailures();
+
+        double getMeanMicros();
+
+        double getP50Micros();
+
+        double getP90Micros();
+
+        double getP99Micros();
+
+        double getP999Micros();
+
+        double getMaxMicros();
+    }
+
+    /**
+     * Counts and latencies of one operation. Callers read System.nanoTime() before the
+     * operation and pass it to record() afterwards.
+     */
+    public static class Timer implements TimerMBean {
+        private final String group;
+        private final String operation;
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        Timer(String group, String operation) {
+            this.group = group;
+            this.operation = operation;
+        }
+
+        public void record(long startNanos, boolean succeeded) {
+            long elapsed = System.nanoTime() - startNanos;
+            totalNanos.add(elapsed);
+            histogram.record(elapsed);
+            if (!succeeded) {
+                failures.increment();
+            }
+        }
+
+        // The histogram counts every call, so there is no separate counter to update
+        public long getCount() {
+            return histogram.total(histogram.snapshot());
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public double getMeanMicros() {
+            long calls = getCount();
+            return calls == 0 ? 0 : totalNanos.sum() / 1e3 / calls;
+        }
+
+        public double getP50Micros() {
+            return histogram.percentile(histogram.snapshot(), 50) / 1e3;
+        }
+
+        public double getP90Micros() {
+            return histogram.percentile(histogram.snapshot(), 90) / 1e3;
+        }
+
+        public double getP99Micros() {
+            return histogram.percentile(histogram.snapshot(), 99) / 1e3;
+        }
+
+        public double getP999Micros() {
+            return histogram.percentile(histogram.snapshot(), 99.9) / 1e3;
+        }
+
+        public double getMaxMicros() {
+            return histogram.percentile(histogram.snapshot(), 100) / 1e3;
+        }
+
+        private void writeText(StringBuilder out) {
+            String name = group + "_" + operation;
+            long[] counts = histogram.snapshot();
+            out.append("# HELP ").append(name).append("_seconds Latency of ").append(group).append(' ')
+                    .append(operation).append(" operations\n");
+            out.append("# TYPE ").append(name).append("_seconds summary\n");
+            for (String quantile : new String[]{"0.5", "0.9", "0.99", "0.999"}) {
+                out.append(name).append("_seconds{quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.percentile(counts, Double.parseDouble(quantile) * 100) / 1e9).append('\n');
+            }
+            out.append(name).append("_seconds_sum ").append(totalNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_seconds_count ").append(histogram.total(counts)).append('\n');
+            out.append("# TYPE ").append(name).append("_failures_total counter\n");
+            out.append(name).append("_failures_total ").append(failures.sum()).append('\n');
+        }
+    }
+
+    /**
+     * Returns the timer for group_operation, creating and exporting it on first use. Callers
+     * keep the returned timer in a field; the lookup is not meant for the hot path.
+     */
+    public static Timer timer(String group, String operation) {
+        return TIMERS.computeIfAbsent(group + "_" + operation, key -> {
+            Timer timer = new Timer(group, operation);
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.registerMBean(new StandardMBean(timer, TimerMBean.class),
+                        new ObjectName(group + ":type=Operation,name=" + operation));
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+            return timer;
+        });
+    }
+
+    // Every timer in Prometheus text exposition format, ordered by name
+    public static String toText() {
+        StringBuilder out = new StringBuilder();
+        for (Timer timer : TIMERS.values()) {
+            timer.writeText(out);
+        }
+        return out.toString();
+    }
+
+    // Starts the scrape endpoint if -Dmetrics.port is set; stopServing() ends it
+    public static synchronized void serveIfConfigured() {
+        Integer port = Integer.getInteger("metrics.port");
+        if (port == null || scrapeServer != null) {
+            return;
+        }
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            scrapeServer = server;
+        } catch (IOException e) {
+            System.out.println("Could not serve metrics on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    // The endpoint's dispatcher thread would otherwise keep the JVM alive after main returns
+    public static synchronized void stopServing() {
+        if (scrapeServer != null) {
+            scrapeServer.stop(0);
+            scrapeServer = null;
+        }
+    }
+}
+
+/**
+ * Log-linear histogram in the style of HdrHistogram: values below 128 ns get a bucket each,
+ * and every power of two above that is split into 64 buckets, so any recorded latency is
+ * known to within 1/64 (1.6%) up to about 18 minutes. Recording is one atomic increment.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    // 2^40 ns; longer values land in the last bucket
+    private static final int HIGHEST_BIT = 40;
+    private static final int BUCKETS = (HIGHEST_BIT - SUB_BUCKET_BITS + 2) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        counts.getAndIncrement(indexFor(nanos));
+    }
+
+    // Not atomic across buckets, but every count in it was recorded
+    public long[] snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    // The highest value that falls in the bucket holding the given percentile, in nanoseconds
+    public long percentile(long[] snapshot, double percent) {
+        long total = total(snapshot);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return highestValueIn(i);
+            }
+        }
+        return highestValueIn(snapshot.length - 1);
+    }
+
+    public long total(long[] snapshot) {
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        return total;
+    }
+
+    static int indexFor(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0);
+        }
+        // The top SUB_BUCKET_BITS bits of the value pick the bucket within its power of two
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - (SUB_BUCKET_BITS - 1);
+        int index = shift * HALF + (int) (nanos >>> shift);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    static long highestValueIn(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long subBucket = index - (long) shift * HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
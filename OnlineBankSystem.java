@@ -1,328 +1,4415 @@
-import java.nio.file.*;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Scanner;
-import java.io.IOException;
-import java.io.PrintWriter;
-
-class Bank {
-    private Map<Integer, User> accounts;
-    private int accountCounter;
-    private Scanner scanner;
-    private final String FILE_NAME = "bank_data.txt";
-
-    public Bank() {
-        this.accounts = new HashMap<>();
-        this.accountCounter = 1000;
-        this.scanner = new Scanner(System.in);
-        loadUserData(); 
-    }
-
-    private void loadUserData() {
-        try {
-            if (Files.exists(Paths.get(FILE_NAME))) {
-                Scanner fileScanner = new Scanner(Paths.get(FILE_NAME));
-
-                while (fileScanner.hasNext()) {
-                    String[] userData = fileScanner.nextLine().split(",");
-                    int accountNumber = Integer.parseInt(userData[0]);
-                    String accountHolderName = userData[1];
-                    String password = userData[2];
-                    double balance = Double.parseDouble(userData[3]);
-                    String accountType = userData[4];
-
-                    User loadedUser = new User(accountNumber, accountHolderName, password, balance, accountType);
-                    accounts.put(accountNumber, loadedUser);
-                }
-
-                fileScanner.close();
-            }
-        } catch (IOException | java.util.InputMismatchException | NumberFormatException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void saveUserData() {
-        try {
-            PrintWriter writer = new PrintWriter(FILE_NAME);
-
-            for (User user : accounts.values()) {
-                writer.println(user.getAccountNumber() + "," +
-                        user.getAccountHolderName() + "," +
-                        user.getPassword() + "," +
-                        user.getBalance() + "," +
-                        user.getAccountType());
-            }
-
-            writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    public void createAccount() {
-        int accountNumber = ++accountCounter;
-
-        System.out.print("Enter account holder's name: ");
-        String accountHolderName = scanner.next();
-
-        System.out.print("Choose account type (savings or current): ");
-        String accountType = scanner.next();
-
-        System.out.print("Set a password for your account: ");
-        String password = scanner.next();
-
-        double initialBalance = accountType.equalsIgnoreCase("savings") ? 500 : 0;
-        User newUser = new User(accountNumber, accountHolderName, password, initialBalance, accountType);
-        accounts.put(accountNumber, newUser);
-        saveUserData(); 
-        System.out.println("=============================================");
-        System.out.println("Account created successfully. Your account number is: " + accountNumber);
-        System.out.println("=============================================");
-    }
-
-    public boolean login() {
-        System.out.print("Enter your account number: ");
-        int accountNumber = scanner.nextInt();
-
-        if (accounts.containsKey(accountNumber)) {
-            User user = accounts.get(accountNumber);
-            System.out.print("Enter your password: ");
-            String passwordAttempt = scanner.next();
-
-            if (user.authenticate(passwordAttempt)) {
-                System.out.println("=============================================");
-                System.out.println("Login successful. Welcome, " + user.getAccountHolderName() + "!");
-                System.out.println("=============================================");
-                return true;
-            } else {
-                System.out.println("=============================================");
-                System.out.println("Incorrect password. Login failed.");
-                System.out.println("=============================================");
-            }
-        } else {
-            System.out.println("=============================================");
-            System.out.println("Account not found. Please check your account number.");
-            System.out.println("=============================================");
-        }
-        return false;
-    }
-
-    public void viewAccountInfo(int accountNumber) {
-        if (accounts.containsKey(accountNumber)) {
-            User user = accounts.get(accountNumber);
-            System.out.println("=============================================");
-            System.out.println("Account Information for Account Number " + accountNumber);
-            System.out.println("Account Holder: " + user.getAccountHolderName());
-            System.out.println("Account Type: " + user.getAccountType());
-            System.out.println("Balance: Rs " + user.getBalance());
-            System.out.println("Transaction History:\n" + user.getTransactionHistory());
-            System.out.println("=============================================");
-            // Clear the transaction history after printing it
-            user.clearTransactionHistory();
-        } else {
-            System.out.println("=============================================");
-            System.out.println("Account not found.");
-            System.out.println("=============================================");
-        }
-    }
-
-    public void applyForLoan(int accountNumber, double loanAmount) {
-        if (accounts.containsKey(accountNumber)) {
-            User user = accounts.get(accountNumber);
-            System.out.print("Enter your loan application password: ");
-            String passwordAttempt = scanner.next();
-
-            if (user.authenticate(passwordAttempt)) {
-                double interestRate = 0.065; // 6.5%
-                double interest = loanAmount * interestRate;
-                double totalLoanAmount = loanAmount + interest;
-
-                user.addTransaction(loanAmount);
-                System.out.println("=============================================");
-                System.out.println("Loan of Rs " + loanAmount + " approved.");
-                System.out.println("Interest charged: Rs " + interest);
-                System.out.println("Total Loan Amount (including interest): Rs " + totalLoanAmount);
-                System.out.println("=============================================");
-            } else {
-                System.out.println("=============================================");
-                System.out.println("Incorrect password. Loan application failed.");
-                System.out.println("=============================================");
-            }
-        } else {
-            System.out.println("=============================================");
-            System.out.println("Account not found.");
-            System.out.println("=============================================");
-        }
-    }
-
-    public void withdraw(int accountNumber, double amount) {
-        if (accounts.containsKey(accountNumber)) {
-            User user = accounts.get(accountNumber);
-            System.out.print("Enter your withdrawal password: ");
-            String passwordAttempt = scanner.next();
-
-            if (user.authenticate(passwordAttempt)) {
-                if (user.getBalance() >= amount) {
-                    user.addTransaction(-amount);
-                   System.out.println("=============================================");
-                    System.out.println("Withdrawal successful. New balance: Rs " + user.getBalance());
-                    System.out.println("=============================================");
-                } else {
-                    System.out.println("=============================================");
-                    System.out.println("Insufficient funds for withdrawal.");
-                    System.out.println("=============================================");
-                }
-            } else {
-                System.out.println("=============================================");
-                System.out.println("Incorrect password. Withdrawal failed.");
-                System.out.println("=============================================");
-            }
-        } else {
-            System.out.println("=============================================");
-            System.out.println("Account not found.");
-            System.out.println("=============================================");
-        }
-    }
-
-    public void credit(int accountNumber, double amount) {
-        if (accounts.containsKey(accountNumber)) {
-            User user = accounts.get(accountNumber);
-            // No password check for credit operation
-            user.addTransaction(amount);
-            System.out.println("=============================================");
-            System.out.println("Credit successful. New balance: Rs " + user.getBalance());
-            System.out.println("=============================================");
-        } else {
-            System.out.println("=============================================");
-            System.out.println("Account not found.");
-            System.out.println("=============================================");
-        }
-    }
-}
-
-class User {
-    private int accountNumber;
-    private String accountHolderName;
-    private String password;
-    private double balance;
-    private String accountType;
-    private StringBuilder transactionHistory;
-
-    public User(int accountNumber, String accountHolderName, String password, double initialBalance, String accountType) {
-        this.accountNumber = accountNumber;
-        this.accountHolderName = accountHolderName;
-        this.password = password;
-        this.balance = initialBalance;
-        this.accountType = accountType;
-        this.transactionHistory = new StringBuilder("Transaction History:\n");
-    }
-
-    public int getAccountNumber() {
-        return accountNumber;
-    }
-
-    public String getAccountHolderName() {
-        return accountHolderName;
-    }
-
-    public double getBalance() {
-        return balance;
-    }
-
-    public String getAccountType() {
-        return accountType;
-    }
-
-    public StringBuilder getTransactionHistory() {
-        return transactionHistory;
-    }
-
-    public void addTransaction(double amount) {
-        balance += amount;
-        transactionHistory.append("Transaction: +").append(amount).append(", New Balance: Rs ").append(balance).append("\n");
-    }
-
-    public boolean authenticate(String passwordAttempt) {
-        return password.equals(passwordAttempt);
-    }
-
-    public String getPassword() {
-        return password;
-    }
-
-    public void clearTransactionHistory() {
-        transactionHistory = new StringBuilder("Transaction History:\n");
-    }
-}
-
-public class OnlineBankSystem {
-    public static void main(String[] args) {
-        Bank bank = new Bank();
-        Scanner scanner = new Scanner(System.in);
-
-        System.out.println("=============================================");
-        System.out.println("Welcome to the Online Banking System!");
-        System.out.println("=============================================");
-
-        int choice;
-
-        do {
-            System.out.println("\nChoose an option:");
-            System.out.println("1. Create Account");
-            System.out.println("2. Login");
-            System.out.println("3. Apply for Loan");
-            System.out.println("4. Withdraw");
-            System.out.println("5. Credit");
-            System.out.println("6. Exit");
-            System.out.print("Enter your choice: ");
-            choice = scanner.nextInt();
-
-            switch (choice) {
-                case 1:
-                    bank.createAccount();
-                    break;
-                case 2:
-                    boolean loggedIn = bank.login();
-                    if (loggedIn) {
-                        System.out.print("Do you want to view account information? (y/n): ");
-                        char viewInfoChoice = scanner.next().charAt(0);
-                        if (viewInfoChoice == 'y' || viewInfoChoice == 'Y') {
-                            System.out.print("Enter your account number: ");
-                            int accountNumber = scanner.nextInt();
-                            bank.viewAccountInfo(accountNumber);
-                        }
-                    }
-                    break;
-                case 3:
-                    System.out.print("Enter your account number: ");
-                    int loanAccountNumber = scanner.nextInt();
-                    System.out.print("Enter loan amount: Rs ");
-                    double loanAmount = scanner.nextDouble();
-                    bank.applyForLoan(loanAccountNumber, loanAmount);
-                    break;
-                case 4:
-                    System.out.print("Enter your account number: ");
-                    int withdrawAccountNumber = scanner.nextInt();
-                    System.out.print("Enter withdrawal amount: Rs ");
-                    double withdrawAmount = scanner.nextDouble();
-                    bank.withdraw(withdrawAccountNumber, withdrawAmount);
-                    break;
-                case 5:
-                    System.out.print("Enter your account number: ");
-                    int creditAccountNumber = scanner.nextInt();
-                    System.out.print("Enter credit amount: Rs ");
-                    double creditAmount = scanner.nextDouble();
-                    bank.credit(creditAccountNumber, creditAmount);
-                    break;
-                case 6:
-                    System.out.println("=============================================");
-                    System.out.println("Exiting the Online Banking System. Thank you!");
-                    System.out.println("=============================================");
-                    break;
-                default:
-                    System.out.println("Invalid choice. Please enter a valid option.");
-            }
-        } while (choice != 6);
-    }
-}
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+
+class Bank {
+    private ShardedAccountTable accounts;
+    private AccountNumberAllocator accountNumbers;
+    private Scanner scanner;
+    private TransactionJournal journal;
+    private HistorySegment historySegment;
+    private SnapshotStore snapshots;
+    private LoanPortfolio loans = new LoanPortfolio(1024);
+    private final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "bank-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean checkpointQueued = new AtomicBoolean();
+    // Set when a journal commit fails and cleared by the next one that works; writes are refused meanwhile
+    private volatile boolean journalFailed;
+    // Wraps the journal's segment channels; the identity except in --check-journal-failure
+    private final UnaryOperator<FileChannel> journalChannels;
+    private final Object checkpointLock = new Object();
+    private final SessionCache sessions = new SessionCache();
+    // Shared by every Bank in the process and exported by Metrics
+    private final Metrics.Timer creditTimer = Metrics.timer("bank", "credit");
+    private final Metrics.Timer withdrawTimer = Metrics.timer("bank", "withdraw");
+    private final Metrics.Timer transferTimer = Metrics.timer("bank", "transfer");
+    private final Metrics.Timer loanTimer = Metrics.timer("bank", "loan");
+    private final Metrics.Timer repaymentTimer = Metrics.timer("bank", "repayment");
+    private final Metrics.Timer authenticateTimer = Metrics.timer("bank", "authenticate");
+    private final Metrics.Timer commitTimer = Metrics.timer("bank", "journal_commit");
+    private final Metrics.Timer checkpointTimer = Metrics.timer("bank", "checkpoint");
+    private final Metrics.Timer loadTimer = Metrics.timer("bank", "load");
+    private final Metrics.Timer accrualTimer = Metrics.timer("bank", "accrual");
+    // The menu's logged-in session, so withdrawals and loans don't ask for the password again
+    private String consoleSession;
+    // Balances are guarded by lock striping; two-account operations take stripes in index order
+    private final ReentrantLock[] accountLocks = new ReentrantLock[LOCK_STRIPES];
+    private static final int LOCK_STRIPES = 256;
+    // Per stripe, the accounts whose history has entries not spilled to bank_history.dat; guarded by the stripe lock
+    private final List<List<User>> unspilledByStripe = new ArrayList<>(LOCK_STRIPES);
+    // Checkpoints went to this text file before binary snapshots; it is only read now
+    private final String FILE_NAME = "bank_data.txt";
+    private final String SNAPSHOT_NAME = "bank_snapshot";
+    private final String LOANS_NAME = "bank_loans";
+    private final String JOURNAL_NAME = "bank_journal";
+    private final String HISTORY_FILE_NAME = "bank_history.dat";
+    private final String ACCOUNT_NUMBERS_FILE_NAME = "bank_ids.dat";
+    private static final int ACCOUNT_SHARDS = 16;
+    // Checkpoint in the background once the journal holds this many records, or this often
+    static final long CHECKPOINT_RECORDS = 100_000;
+    private static final long CHECKPOINT_INTERVAL_SECONDS = 60;
+    private static final int RECENT_TRANSACTIONS = 10;
+    // Annual rate for new loans and the months they are repaid over
+    private static final int LOAN_RATE_BASIS_POINTS = 650;
+    private static final int LOAN_TERM_MONTHS = 12;
+
+    public Bank() {
+        this(UnaryOperator.identity());
+    }
+
+    Bank(UnaryOperator<FileChannel> journalChannels) {
+        this.journalChannels = journalChannels;
+        this.accounts = new ShardedAccountTable(ACCOUNT_SHARDS, 1024);
+        this.scanner = new Scanner(System.in);
+        for (int i = 0; i < accountLocks.length; i++) {
+            accountLocks[i] = new ReentrantLock();
+            unspilledByStripe.add(new ArrayList<>());
+        }
+        loadUserData(); 
+        checkpointer.scheduleWithFixedDelay(() -> {
+            if (journal.getRecordCount() > 0) {
+                checkpoint();
+            }
+        }, CHECKPOINT_INTERVAL_SECONDS, CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        // Catch up on days missed while the bank was down, then run just after every midnight
+        runEndOfDay();
+        long untilMidnight = Duration.between(LocalDateTime.now(), LocalDate.now().plusDays(1).atStartOfDay()).toMillis();
+        checkpointer.scheduleAtFixedRate(this::runEndOfDay, untilMidnight, TimeUnit.DAYS.toMillis(1), TimeUnit.MILLISECONDS);
+    }
+
+    private void loadUserData() {
+        long start = System.nanoTime();
+        readUserData();
+        loadTimer.record(start, true);
+    }
+
+    private void readUserData() {
+        // Restart cost is the newest snapshot plus the journal segments written after it
+        snapshots = new SnapshotStore(Paths.get("."), SNAPSHOT_NAME);
+        long firstSegment = -1;
+        try {
+            firstSegment = snapshots.load((accountNumber, accountHolderName, passwordHash, accountType, balance) ->
+                    accounts.put(accountNumber, new User(accountNumber, accountHolderName, passwordHash, balance, accountType)));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (firstSegment < 0) {
+            loadTextData();
+            firstSegment = 0;
+        } else if (Files.exists(loansPath(firstSegment))) {
+            try {
+                loans = LoanPortfolio.load(loansPath(firstSegment));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            // Segments before a snapshot are deleted once it is written. If they are gone and no snapshot
+            // covers them, starting anyway would open an empty bank, and its next checkpoint would write
+            // that over the real data and delete the segments that are left
+            List<Long> segments = SnapshotStore.listNumbered(Paths.get("."), JOURNAL_NAME, ".dat");
+            if (!segments.isEmpty() && segments.get(0) > firstSegment) {
+                throw new IOException("Journal segments " + firstSegment + " to " + (segments.get(0) - 1)
+                        + " are gone and no intact snapshot covers them; restore a snapshot before starting");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        try {
+            journal = new TransactionJournal(Paths.get("."), JOURNAL_NAME, journalChannels);
+            historySegment = new HistorySegment(Paths.get(HISTORY_FILE_NAME));
+            accounts.forEach(user -> user.setStorage(journal, historySegment));
+            // History spilled after the snapshot is rebuilt from the journal, so drop it first
+            long historyLength = journal.readHistoryMark(firstSegment);
+            if (historyLength >= 0) {
+                historySegment.truncate(historyLength);
+            }
+            historySegment.scan((accountNumber, offset) -> {
+                User user = accounts.get(accountNumber);
+                if (user != null) {
+                    user.getTransactionHistory().setSpillHead(offset);
+                }
+            });
+
+            // Everything since the snapshot is in the journal segments it does not cover
+            journal.replay(firstSegment, new TransactionJournal.Handler() {
+                public void onCreate(int accountNumber, String accountHolderName, String password,
+                                     String accountType, long balance) {
+                    User user = new User(accountNumber, accountHolderName, password, balance, accountType);
+                    user.setStorage(journal, historySegment);
+                    accounts.put(accountNumber, user);
+                }
+
+                public void onTransaction(int accountNumber, TransactionType type, long amount, long balance,
+                                          long timestamp) {
+                    User user = accounts.get(accountNumber);
+                    if (user != null) {
+                        user.restoreTransaction(type, amount, balance, timestamp);
+                    }
+                }
+
+                public void onLoanOpened(int loanId, int accountNumber, long principal, int rateBasisPoints,
+                                         int termMonths, long openedDay, long balance, long timestamp) {
+                    // Ids are handed out in order, so the replayed loan gets the id it had
+                    loans.open(accountNumber, principal, rateBasisPoints, termMonths, openedDay);
+                    onTransaction(accountNumber, TransactionType.LOAN, principal, balance, timestamp);
+                }
+
+                public void onLoanRepaid(int loanId, int accountNumber, long amount, long balance, long timestamp) {
+                    if (loans.exists(loanId)) {
+                        loans.repay(loanId, amount);
+                    }
+                    onTransaction(accountNumber, TransactionType.LOAN_REPAYMENT, -amount, balance, timestamp);
+                }
+
+                public void onAccrual(long epochDay) {
+                    loans.accrueThrough(epochDay);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // History replayed from the journal is only in memory until the next checkpoint spills it
+        accounts.forEach(user -> {
+            if (user.getTransactionHistory().getUnspilled() > 0) {
+                unspilledByStripe.get(stripeFor(user.getAccountNumber())).add(user);
+            }
+        });
+
+        // Data files written before passwords were hashed hold them in plain text. Hashing them here
+        // would hold up startup for days on a large bank, so a login hashes its own and a background
+        // job the rest
+        List<User> plainPasswords = new ArrayList<>();
+        accounts.forEach(user -> {
+            if (!PasswordHasher.isHash(user.getPasswordHash())) {
+                plainPasswords.add(user);
+            }
+        });
+        if (!plainPasswords.isEmpty()) {
+            migratePasswordsInBackground(plainPasswords);
+        }
+
+        // Older data files had no lease file and numbering restarted at 1001; start past every loaded account
+        int[] highest = {AccountNumberAllocator.FIRST_ACCOUNT_NUMBER - 1};
+        accounts.forEach(user -> highest[0] = Math.max(highest[0], user.getAccountNumber()));
+        try {
+            accountNumbers = new AccountNumberAllocator(Paths.get(ACCOUNT_NUMBERS_FILE_NAME), highest[0] + 1);
+        } catch (IOException e) {
+            // Without the lease there is no safe next account number, so the bank cannot open accounts
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Hashes plain passwords from old data files on one daemon thread per core, then
+     * checkpoints so the plain copies leave both the snapshot and the journal. Accounts
+     * whose holders log in first are hashed by the login and skipped here.
+     */
+    private void migratePasswordsInBackground(List<User> users) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread hasher = new Thread(() -> {
+                int i;
+                while (!checkpointer.isShutdown() && (i = next.getAndIncrement()) < users.size()) {
+                    users.get(i).migratePassword();
+                }
+                if (running.decrementAndGet() == 0 && !checkpointer.isShutdown()) {
+                    try {
+                        checkpointer.execute(this::checkpoint);
+                    } catch (RejectedExecutionException e) {
+                        // Shut down meanwhile; shutdown() checkpointed whatever was hashed
+                    }
+                }
+            }, "bank-password-migration-" + t);
+            hasher.setDaemon(true);
+            hasher.start();
+        }
+    }
+
+    // Reads bank_data.txt as written before binary snapshots; the first checkpoint replaces it
+    private void loadTextData() {
+        try {
+            if (Files.exists(Paths.get(FILE_NAME))) {
+                Scanner fileScanner = new Scanner(Paths.get(FILE_NAME));
+
+                while (fileScanner.hasNext()) {
+                    String[] userData = fileScanner.nextLine().split(",");
+                    int accountNumber = Integer.parseInt(userData[0]);
+                    String accountHolderName = userData[1];
+                    String password = userData[2];
+                    long balance = Money.parseCents(userData[3]);
+                    String accountType = userData[4];
+
+                    User loadedUser = new User(accountNumber, accountHolderName, password, balance, accountType);
+                    accounts.put(accountNumber, loadedUser);
+                }
+
+                fileScanner.close();
+            }
+        } catch (IOException | java.util.InputMismatchException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes a snapshot of every account and drops the journal segments it covers. Writers
+     * are paused only to spill the history of accounts used while the stripes were being
+     * spilled one by one, to rotate the journal and to copy the loan portfolio; balances
+     * are read and every file is written while transactions carry on.
+     */
+    private void checkpoint() {
+        long start = System.nanoTime();
+        checkpointTimer.record(start, writeCheckpoint());
+    }
+
+    // Returns false if the snapshot could not be written
+    private boolean writeCheckpoint() {
+        synchronized (checkpointLock) {
+            // History recovery cuts bank_history.dat back to its length at the rotation, so every
+            // transaction before it has to be spilled by then; most of that happens here, a stripe at a time
+            for (int stripe = 0; stripe < LOCK_STRIPES; stripe++) {
+                accountLocks[stripe].lock();
+                try {
+                    spillHistory(stripe);
+                } finally {
+                    accountLocks[stripe].unlock();
+                }
+            }
+
+            long segment;
+            LoanPortfolio portfolio;
+            for (ReentrantLock lock : accountLocks) {
+                lock.lock();
+            }
+            // After the stripes, as loan operations take them; loan records replay by id, so the copy must match the cut
+            loans.lock();
+            try {
+                for (int stripe = 0; stripe < LOCK_STRIPES; stripe++) {
+                    spillHistory(stripe);
+                }
+                segment = journal.rotate(historySegment.length());
+                portfolio = loans.copy();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            } finally {
+                loans.unlock();
+                for (int i = accountLocks.length - 1; i >= 0; i--) {
+                    accountLocks[i].unlock();
+                }
+            }
+
+            // Balances are read after the cut. An account that moved since has those transactions
+            // in the new segment, whose records carry the balance they left, so replay sets it
+            // right whichever side of them it was read on; an account opened since is journaled there too
+            List<User> captured = new ArrayList<>(accounts.size());
+            accounts.forEach(captured::add);
+            User[] users = captured.toArray(new User[0]);
+            long[] balances = new long[users.length];
+            for (int i = 0; i < users.length; i++) {
+                balances[i] = users[i].getBalance();
+            }
+
+            try {
+                portfolio.save(loansPath(segment));
+                // History spilled before the rotation must be on disk before the old segments go
+                historySegment.sync();
+                snapshots.write(segment, users, balances);
+                snapshots.deleteBefore(segment);
+                journal.deleteSegmentsBefore(segment);
+                for (long older : SnapshotStore.listNumbered(Paths.get("."), LOANS_NAME, ".dat")) {
+                    if (older < segment) {
+                        Files.deleteIfExists(loansPath(older));
+                    }
+                }
+                Files.deleteIfExists(Paths.get(FILE_NAME));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    // Spills every account of the stripe with history not in bank_history.dat yet; caller holds the stripe lock
+    private void spillHistory(int stripe) {
+        List<User> users = unspilledByStripe.get(stripe);
+        for (User user : users) {
+            user.getTransactionHistory().spillAll();
+        }
+        users.clear();
+    }
+
+    // Caller holds the stripe lock and has just added to the account's history
+    private void trackUnspilled(int stripe, User user) {
+        if (user.getTransactionHistory().getUnspilled() == 1) {
+            unspilledByStripe.get(stripe).add(user);
+        }
+    }
+
+    // The portfolio saved with the account snapshot for the given journal segment
+    private Path loansPath(long segment) {
+        return Paths.get(LOANS_NAME + "." + segment + ".dat");
+    }
+
+    private int stripeFor(int accountNumber) {
+        int h = accountNumber * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (LOCK_STRIPES - 1);
+    }
+
+    /**
+     * Makes everything journaled so far durable; returns false if the journal could not be
+     * written. The records stay queued for the next commit, and until one works every write
+     * first retries it and answers INTERNAL_ERROR if it fails again.
+     */
+    boolean commitJournal() {
+        long start = System.nanoTime();
+        try {
+            journal.commit();
+            journalFailed = false;
+            commitTimer.record(start, true);
+            if (journal.getRecordCount() >= CHECKPOINT_RECORDS && checkpointQueued.compareAndSet(false, true)) {
+                checkpointer.execute(() -> {
+                    try {
+                        checkpoint();
+                    } finally {
+                        checkpointQueued.set(false);
+                    }
+                });
+            }
+            return true;
+        } catch (IOException e) {
+            journalFailed = true;
+            commitTimer.record(start, false);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Whether a write may go ahead: the last commit worked, or retrying it now does
+    private boolean isJournalWritable() {
+        return !journalFailed || commitJournal();
+    }
+
+    public TransactionResult deposit(int accountNumber, long amount) {
+        return deposit(accountNumber, amount, TransactionType.DEPOSIT);
+    }
+
+    private TransactionResult deposit(int accountNumber, long amount, TransactionType type) {
+        TransactionResult result = applyDeposit(accountNumber, amount, type);
+        if (result == TransactionResult.SUCCESS && !commitJournal()) {
+            return TransactionResult.INTERNAL_ERROR;
+        }
+        return result;
+    }
+
+    // Applies a deposit without waiting for the journal; batch callers commit once per group.
+    // Like every write, refused with INTERNAL_ERROR while the journal cannot be committed
+    TransactionResult applyDeposit(int accountNumber, long amount, TransactionType type) {
+        if (!isJournalWritable()) {
+            return TransactionResult.INTERNAL_ERROR;
+        }
+        long start = System.nanoTime();
+        TransactionResult result = creditAccount(accountNumber, amount, type);
+        creditTimer.record(start, result == TransactionResult.SUCCESS);
+        return result;
+    }
+
+    private TransactionResult creditAccount(int accountNumber, long amount, TransactionType type) {
+        if (amount <= 0) {
+            return TransactionResult.INVALID_AMOUNT;
+        }
+        User user = accounts.get(accountNumber);
+        if (user == null) {
+            return TransactionResult.ACCOUNT_NOT_FOUND;
+        }
+
+        int stripe = stripeFor(accountNumber);
+        ReentrantLock lock = accountLocks[stripe];
+        lock.lock();
+        try {
+            user.addTransaction(amount, type);
+            trackUnspilled(stripe, user);
+        } finally {
+            lock.unlock();
+        }
+        return TransactionResult.SUCCESS;
+    }
+
+    public TransactionResult debit(int accountNumber, long amount) {
+        TransactionResult result = applyDebit(accountNumber, amount);
+        if (result == TransactionResult.SUCCESS && !commitJournal()) {
+            return TransactionResult.INTERNAL_ERROR;
+        }
+        return result;
+    }
+
+    TransactionResult applyDebit(int accountNumber, long amount) {
+        if (!isJournalWritable()) {
+            return TransactionResult.INTERNAL_ERROR;
+        }
+        long start = System.nanoTime();
+        TransactionResult result = debitAccount(accountNumber, amount);
+        withdrawTimer.record(start, result == TransactionResult.SUCCESS);
+        return result;
+    }
+
+    private TransactionResult debitAccount(int accountNumber, long amount) {
+        if (amount <= 0) {
+            return TransactionResult.INVALID_AMOUNT;
+        }
+        User user = accounts.get(accountNumber);
+        if (user == null) {
+            return TransactionResult.ACCOUNT_NOT_FOUND;
+        }
+
+        int stripe = stripeFor(accountNumber);
+        ReentrantLock lock = accountLocks[stripe];
+        lock.lock();
+        try {
+            if (user.getBalance() < amount) {
+                return TransactionResult.INSUFFICIENT_FUNDS;
+            }
+            user.addTransaction(-amount, TransactionType.WITHDRAWAL);
+            trackUnspilled(stripe, user);
+        } finally {
+            lock.unlock();
+        }
+        return TransactionResult.SUCCESS;
+    }
+
+    public TransactionResult transfer(int fromAccountNumber, int toAccountNumber, long amount) {
+        return transfer(new TransferBatch().add(fromAccountNumber, toAccountNumber, amount));
+    }
+
+    public TransactionResult transfer(TransferBatch batch) {
+        TransactionResult result = applyTransfer(batch);
+        if (result == TransactionResult.SUCCESS && !commitJournal()) {
+            return TransactionResult.INTERNAL_ERROR;
+        }
+        return result;
+    }
+
+    /**
+     * Applies every leg of the batch, in order, or none of them, without waiting for the
+     * journal; batch callers commit once per group. The legs are journaled as one group,
+     * so recovery never sees half a transfer either.
+     */
+    TransactionResult applyTransfer(TransferBatch batch) {
+        if (!isJournalWritable()) {
+            return TransactionResult.INTERNAL_ERROR;
+        }
+        long start = System.nanoTime();
+        TransactionResult result = transferFunds(batch);
+        transferTimer.record(start, result == TransactionResult.SUCCESS);
+        return result;
+    }
+
+    private TransactionResult transferFunds(TransferBatch batch) {
+        int legs = batch.size();
+        if (legs == 0) {
+            return TransactionResult.INVALID_AMOUNT;
+        }
+        // Slot 2i is leg i's source, slot 2i + 1 its destination
+        User[] users = new User[2 * legs];
+        int[] stripes = new int[2 * legs];
+        for (int i = 0; i < legs; i++) {
+            if (batch.getAmount(i) <= 0 || batch.getFrom(i) == batch.getTo(i)) {
+                return TransactionResult.INVALID_AMOUNT;
+            }
+            users[2 * i] = accounts.get(batch.getFrom(i));
+            users[2 * i + 1] = accounts.get(batch.getTo(i));
+            if (users[2 * i] == null || users[2 * i + 1] == null) {
+                return TransactionResult.ACCOUNT_NOT_FOUND;
+            }
+            stripes[2 * i] = stripeFor(batch.getFrom(i));
+            stripes[2 * i + 1] = stripeFor(batch.getTo(i));
+        }
+
+        // Take every stripe the batch touches in index order, so overlapping batches cannot deadlock
+        Arrays.sort(stripes);
+        int locked = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            if (i == 0 || stripes[i] != stripes[i - 1]) {
+                accountLocks[stripes[i]].lock();
+                stripes[locked++] = stripes[i];
+            }
+        }
+        try {
+            if (!isCovered(batch, users)) {
+                return TransactionResult.INSUFFICIENT_FUNDS;
+            }
+            long timestamp = System.currentTimeMillis();
+            int[] accountNumbers = new int[2 * legs];
+            TransactionType[] types = new TransactionType[2 * legs];
+            long[] amounts = new long[2 * legs];
+            long[] balances = new long[2 * legs];
+            for (int i = 0; i < legs; i++) {
+                long amount = batch.getAmount(i);
+                accountNumbers[2 * i] = batch.getFrom(i);
+                types[2 * i] = TransactionType.TRANSFER_OUT;
+                amounts[2 * i] = -amount;
+                balances[2 * i] = users[2 * i].applyTransaction(-amount, TransactionType.TRANSFER_OUT, timestamp);
+                accountNumbers[2 * i + 1] = batch.getTo(i);
+                types[2 * i + 1] = TransactionType.TRANSFER_IN;
+                amounts[2 * i + 1] = amount;
+                balances[2 * i + 1] = users[2 * i + 1].applyTransaction(amount, TransactionType.TRANSFER_IN, timestamp);
+                trackUnspilled(stripeFor(batch.getFrom(i)), users[2 * i]);
+                trackUnspilled(stripeFor(batch.getTo(i)), users[2 * i + 1]);
+            }
+            // Still under the stripe locks, so each account's records stay in balance order
+            journal.appendGroup(accountNumbers, types, amounts, balances, timestamp);
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                accountLocks[stripes[i]].unlock();
+            }
+        }
+        return TransactionResult.SUCCESS;
+    }
+
+    // Whether every leg's source can pay once the legs before it have run; callers hold the stripes
+    private static boolean isCovered(TransferBatch batch, User[] users) {
+        if (batch.size() == 1) {
+            return users[0].getBalance() >= batch.getAmount(0);
+        }
+        Map<User, long[]> running = new IdentityHashMap<>();
+        for (User user : users) {
+            running.computeIfAbsent(user, u -> new long[]{u.getBalance()});
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            long[] source = running.get(users[2 * i]);
+            if (source[0] < batch.getAmount(i)) {
+                return false;
+            }
+            source[0] -= batch.getAmount(i);
+            running.get(users[2 * i + 1])[0] += batch.getAmount(i);
+        }
+        return true;
+    }
+
+    public long getBalance(int accountNumber) {
+        User user = accounts.get(accountNumber);
+        return user == null ? 0 : user.getBalance();
+    }
+
+    // Newest first; skip and limit page through the ring and then the spilled segment
+    public List<HistoryEntry> getTransactionHistory(int accountNumber, int skip, int limit) {
+        return queryHistory(accountNumber, Long.MIN_VALUE, Long.MAX_VALUE, skip, limit);
+    }
+
+    public List<HistoryEntry> getTransactionHistory(int accountNumber, long fromMillis, long toMillis, int limit) {
+        return queryHistory(accountNumber, fromMillis, toMillis, 0, limit);
+    }
+
+    private List<HistoryEntry> queryHistory(int accountNumber, long fromMillis, long toMillis, int skip, int limit) {
+        List<HistoryEntry> page = new ArrayList<>();
+        User user = accounts.get(accountNumber);
+        if (user == null) {
+            return page;
+        }
+
+        ReentrantLock lock = accountLocks[stripeFor(accountNumber)];
+        lock.lock();
+        try {
+            int[] skipped = {0};
+            user.getTransactionHistory().visitNewestFirst(entry -> {
+                if (entry.getTimestamp() < fromMillis) {
+                    return false;
+                }
+                if (entry.getTimestamp() <= toMillis && skipped[0]++ >= skip) {
+                    page.add(entry);
+                }
+                return page.size() < limit;
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        return page;
+    }
+
+    public void shutdown() {
+        checkpointer.shutdown();
+        accountNumbers.close();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkpoint();
+        try {
+            journal.close();
+            historySegment.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Creates and journals an account; returns its number, or -1 if the journal could not be written
+    public int openAccount(String accountHolderName, String accountType, String password) {
+        return openAccountWithHash(accountHolderName, accountType, PasswordHasher.hash(password));
+    }
+
+    // For callers that hashed the password off the hot path
+    int openAccountWithHash(String accountHolderName, String accountType, String passwordHash) {
+        if (!isJournalWritable()) {
+            return -1;
+        }
+        int accountNumber = accountNumbers.next();
+        long initialBalance = accountType.equalsIgnoreCase("savings") ? Money.parseCents("500") : 0;
+        User newUser = new User(accountNumber, accountHolderName, passwordHash, initialBalance, accountType);
+        newUser.setStorage(journal, historySegment);
+        ReentrantLock lock = accountLocks[stripeFor(accountNumber)];
+        lock.lock();
+        try {
+            // Journal the account before publishing it so no transaction can precede its creation record
+            journal.appendCreate(newUser);
+            accounts.put(accountNumber, newUser);
+        } finally {
+            lock.unlock();
+        }
+        return commitJournal() ? accountNumber : -1;
+    }
+
+    public boolean authenticate(int accountNumber, String password) {
+        return checkPassword(accountNumber, password) == TransactionResult.SUCCESS;
+    }
+
+    // Runs the full password hash: SUCCESS, ACCOUNT_NOT_FOUND or AUTHENTICATION_FAILED
+    TransactionResult checkPassword(int accountNumber, String password) {
+        long start = System.nanoTime();
+        TransactionResult result = verifyPassword(accountNumber, password);
+        authenticateTimer.record(start, result == TransactionResult.SUCCESS);
+        return result;
+    }
+
+    private TransactionResult verifyPassword(int accountNumber, String password) {
+        User user = accounts.get(accountNumber);
+        if (user == null) {
+            return TransactionResult.ACCOUNT_NOT_FOUND;
+        }
+        return user.authenticate(password) ? TransactionResult.SUCCESS : TransactionResult.AUTHENTICATION_FAILED;
+    }
+
+    // Checks the password once and returns a session token for later calls, or null
+    public String login(int accountNumber, String password) {
+        return authenticate(accountNumber, password) ? sessions.open(accountNumber) : null;
+    }
+
+    // For callers that already ran checkPassword
+    String openSession(int accountNumber) {
+        return sessions.open(accountNumber);
+    }
+
+    // The account the session belongs to, or -1 if it is unknown or has expired
+    public int getSessionAccount(String sessionToken) {
+        return sessionToken == null ? -1 : sessions.resolve(sessionToken);
+    }
+
+    public void logout(String sessionToken) {
+        sessions.close(sessionToken);
+    }
+
+    public TransactionResult withdraw(int accountNumber, String password, long amount) {
+        TransactionResult access = checkPassword(accountNumber, password);
+        return access == TransactionResult.SUCCESS ? debit(accountNumber, amount) : access;
+    }
+
+    public TransactionResult withdraw(String sessionToken, long amount) {
+        int accountNumber = getSessionAccount(sessionToken);
+        return accountNumber < 0 ? TransactionResult.AUTHENTICATION_FAILED : debit(accountNumber, amount);
+    }
+
+    public TransactionResult grantLoan(int accountNumber, String password, long loanAmount) {
+        TransactionResult access = checkPassword(accountNumber, password);
+        return access == TransactionResult.SUCCESS ? openLoan(accountNumber, loanAmount) : access;
+    }
+
+    public TransactionResult grantLoan(String sessionToken, long loanAmount) {
+        int accountNumber = getSessionAccount(sessionToken);
+        return accountNumber < 0 ? TransactionResult.AUTHENTICATION_FAILED : openLoan(accountNumber, loanAmount);
+    }
+
+    private TransactionResult openLoan(int accountNumber, long principal) {
+        TransactionResult result = applyLoan(accountNumber, principal);
+        if (result == TransactionResult.SUCCESS && !commitJournal()) {
+            return TransactionResult.INTERNAL_ERROR;
+        }
+        return result;
+    }
+
+    // Opens a loan and pays the principal into the account without waiting for the journal
+    TransactionResult applyLoan(int accountNumber, long principal) {
+        if (!isJournalWritable()) {
+            return TransactionResult.INTERNAL_ERROR;
+        }
+        long start = System.nanoTime();
+        TransactionResult result = payOutLoan(accountNumber, principal);
+        loanTimer.record(start, result == TransactionResult.SUCCESS);
+        return result;
+    }
+
+    private TransactionResult payOutLoan(int accountNumber, long principal) {
+        if (principal <= 0) {
+            return TransactionResult.INVALID_AMOUNT;
+        }
+        User user = accounts.get(accountNumber);
+        if (user == null) {
+            return TransactionResult.ACCOUNT_NOT_FOUND;
+        }
+
+        int stripe = stripeFor(accountNumber);
+        ReentrantLock lock = accountLocks[stripe];
+        lock.lock();
+        loans.lock();
+        try {
+            long timestamp = System.currentTimeMillis();
+            long today = LocalDate.now().toEpochDay();
+            int loanId = loans.open(accountNumber, principal, LOAN_RATE_BASIS_POINTS, LOAN_TERM_MONTHS, today);
+            long balance = user.applyTransaction(principal, TransactionType.LOAN, timestamp);
+            trackUnspilled(stripe, user);
+            journal.appendLoanOpened(loanId, accountNumber, principal, LOAN_RATE_BASIS_POINTS, LOAN_TERM_MONTHS,
+                    today, balance, timestamp);
+        } finally {
+            loans.unlock();
+            lock.unlock();
+        }
+        return TransactionResult.SUCCESS;
+    }
+
+    public TransactionResult repayLoan(int accountNumber, String password, int loanId, long amount) {
+        TransactionResult access = checkPassword(accountNumber, password);
+        return access == TransactionResult.SUCCESS ? repayLoan(accountNumber, loanId, amount) : access;
+    }
+
+    public TransactionResult repayLoan(String sessionToken, int loanId, long amount) {
+        int accountNumber = getSessionAccount(sessionToken);
+        return accountNumber < 0 ? TransactionResult.AUTHENTICATION_FAILED : repayLoan(accountNumber, loanId, amount);
+    }
+
+    private TransactionResult repayLoan(int accountNumber, int loanId, long amount) {
+        TransactionResult result = applyRepayment(accountNumber, loanId, amount);
+        if (result == TransactionResult.SUCCESS && !commitJournal()) {
+            return TransactionResult.INTERNAL_ERROR;
+        }
+        return result;
+    }
+
+    // Pays from the account towards one of its loans, interest first, without waiting for the journal
+    TransactionResult applyRepayment(int accountNumber, int loanId, long amount) {
+        if (!isJournalWritable()) {
+            return TransactionResult.INTERNAL_ERROR;
+        }
+        long start = System.nanoTime();
+        TransactionResult result = payTowardsLoan(accountNumber, loanId, amount);
+        repaymentTimer.record(start, result == TransactionResult.SUCCESS);
+        return result;
+    }
+
+    private TransactionResult payTowardsLoan(int accountNumber, int loanId, long amount) {
+        if (amount <= 0) {
+            return TransactionResult.INVALID_AMOUNT;
+        }
+        User user = accounts.get(accountNumber);
+        if (user == null) {
+            return TransactionResult.ACCOUNT_NOT_FOUND;
+        }
+
+        int stripe = stripeFor(accountNumber);
+        ReentrantLock lock = accountLocks[stripe];
+        lock.lock();
+        loans.lock();
+        try {
+            if (!loans.exists(loanId) || loans.getAccountNumber(loanId) != accountNumber) {
+                return TransactionResult.LOAN_NOT_FOUND;
+            }
+            if (amount > loans.getAmountOwed(loanId)) {
+                return TransactionResult.INVALID_AMOUNT;
+            }
+            if (user.getBalance() < amount) {
+                return TransactionResult.INSUFFICIENT_FUNDS;
+            }
+            long timestamp = System.currentTimeMillis();
+            long balance = user.applyTransaction(-amount, TransactionType.LOAN_REPAYMENT, timestamp);
+            trackUnspilled(stripe, user);
+            loans.repay(loanId, amount);
+            journal.appendLoanRepaid(loanId, accountNumber, amount, balance, timestamp);
+        } finally {
+            loans.unlock();
+            lock.unlock();
+        }
+        return TransactionResult.SUCCESS;
+    }
+
+    public List<Integer> getLoanIds(int accountNumber) {
+        return loans.getLoanIds(accountNumber);
+    }
+
+    // Principal plus accrued interest, or -1 if there is no such loan
+    public long getAmountOwed(int loanId) {
+        return loans.exists(loanId) ? loans.getAmountOwed(loanId) : -1;
+    }
+
+    public List<ScheduledPayment> getLoanSchedule(int loanId) {
+        return loans.exists(loanId) ? loans.getSchedule(loanId, LocalDate.now().toEpochDay()) : new ArrayList<>();
+    }
+
+    /**
+     * End of day: accrues interest on every loan through yesterday and journals the run, so
+     * replay repeats it. Runs at startup to catch up and then just after each midnight.
+     */
+    public void runEndOfDay() {
+        long yesterday = LocalDate.now().toEpochDay() - 1;
+        if (!isJournalWritable()) {
+            return;
+        }
+        long start = System.nanoTime();
+        loans.lock();
+        try {
+            if (loans.size() == 0 || loans.getAccruedThrough() >= yesterday) {
+                return;
+            }
+            loans.accrueThrough(yesterday);
+            journal.appendAccrual(yesterday);
+        } finally {
+            loans.unlock();
+        }
+        accrualTimer.record(start, commitJournal());
+    }
+
+    public void createAccount() {
+        System.out.print("Enter account holder's name: ");
+        String accountHolderName = scanner.next();
+
+        System.out.print("Choose account type (savings or current): ");
+        String accountType = scanner.next();
+
+        System.out.print("Set a password for your account: ");
+        String password = scanner.next();
+
+        int accountNumber = openAccount(accountHolderName, accountType, password);
+        if (accountNumber < 0) {
+            System.out.println("Account could not be created. Please try again later.");
+            return;
+        }
+        System.out.println("=============================================");
+        System.out.println("Account created successfully. Your account number is: " + accountNumber);
+        System.out.println("=============================================");
+    }
+
+    public boolean login() {
+        System.out.print("Enter your account number: ");
+        int accountNumber = scanner.nextInt();
+
+        if (accounts.containsKey(accountNumber)) {
+            User user = accounts.get(accountNumber);
+            System.out.print("Enter your password: ");
+            String passwordAttempt = scanner.next();
+
+            String session = login(accountNumber, passwordAttempt);
+            if (session != null) {
+                if (consoleSession != null) {
+                    logout(consoleSession);
+                }
+                consoleSession = session;
+                System.out.println("=============================================");
+                System.out.println("Login successful. Welcome, " + user.getAccountHolderName() + "!");
+                System.out.println("=============================================");
+                return true;
+            } else {
+                System.out.println("=============================================");
+                System.out.println("Incorrect password. Login failed.");
+                System.out.println("=============================================");
+            }
+        } else {
+            System.out.println("=============================================");
+            System.out.println("Account not found. Please check your account number.");
+            System.out.println("=============================================");
+        }
+        return false;
+    }
+
+    public void viewAccountInfo(int accountNumber) {
+        if (accounts.containsKey(accountNumber)) {
+            User user = accounts.get(accountNumber);
+            List<HistoryEntry> recentTransactions = getTransactionHistory(accountNumber, 0, RECENT_TRANSACTIONS);
+            System.out.println("=============================================");
+            System.out.println("Account Information for Account Number " + accountNumber);
+            System.out.println("Account Holder: " + user.getAccountHolderName());
+            System.out.println("Account Type: " + user.getAccountType());
+            System.out.println("Balance: Rs " + Money.format(user.getBalance()));
+            System.out.println("Transaction History (latest " + RECENT_TRANSACTIONS + "):");
+            for (HistoryEntry entry : recentTransactions) {
+                System.out.println(entry);
+            }
+            System.out.println("=============================================");
+        } else {
+            System.out.println("=============================================");
+            System.out.println("Account not found.");
+            System.out.println("=============================================");
+        }
+    }
+
+    public void applyForLoan(int accountNumber, long loanAmount) {
+        if (accounts.containsKey(accountNumber)) {
+            TransactionResult result;
+            if (getSessionAccount(consoleSession) == accountNumber) {
+                result = grantLoan(consoleSession, loanAmount);
+            } else {
+                System.out.print("Enter your loan application password: ");
+                result = grantLoan(accountNumber, scanner.next(), loanAmount);
+            }
+            if (result == TransactionResult.SUCCESS) {
+                List<Integer> loanIds = getLoanIds(accountNumber);
+                int loanId = loanIds.get(loanIds.size() - 1);
+                List<ScheduledPayment> schedule = getLoanSchedule(loanId);
+                long interest = 0;
+                for (ScheduledPayment payment : schedule) {
+                    interest += payment.getInterest();
+                }
+                System.out.println("=============================================");
+                System.out.println("Loan #" + loanId + " of Rs " + Money.format(loanAmount) + " approved.");
+                System.out.println("Monthly installment: Rs " + Money.format(schedule.get(0).getPayment())
+                        + " for " + schedule.size() + " months");
+                System.out.println("Interest over the term: Rs " + Money.format(interest));
+                System.out.println("Total Loan Amount (including interest): Rs " + Money.format(loanAmount + interest));
+                System.out.println("Repayment schedule:");
+                for (ScheduledPayment payment : schedule) {
+                    System.out.println(payment);
+                }
+                System.out.println("=============================================");
+            } else if (result == TransactionResult.INVALID_AMOUNT) {
+                System.out.println("=============================================");
+                System.out.println("Invalid loan amount.");
+                System.out.println("=============================================");
+            } else {
+                System.out.println("=============================================");
+                System.out.println("Incorrect password. Loan application failed.");
+                System.out.println("=============================================");
+            }
+        } else {
+            System.out.println("=============================================");
+            System.out.println("Account not found.");
+            System.out.println("=============================================");
+        }
+    }
+
+    public void withdraw(int accountNumber, long amount) {
+        if (accounts.containsKey(accountNumber)) {
+            User user = accounts.get(accountNumber);
+            TransactionResult result;
+            if (getSessionAccount(consoleSession) == accountNumber) {
+                result = withdraw(consoleSession, amount);
+            } else {
+                System.out.print("Enter your withdrawal password: ");
+                result = withdraw(accountNumber, scanner.next(), amount);
+            }
+            if (result == TransactionResult.SUCCESS) {
+               System.out.println("=============================================");
+                System.out.println("Withdrawal successful. New balance: Rs " + Money.format(user.getBalance()));
+                System.out.println("=============================================");
+            } else if (result == TransactionResult.INVALID_AMOUNT) {
+                System.out.println("=============================================");
+                System.out.println("Invalid withdrawal amount.");
+                System.out.println("=============================================");
+            } else if (result == TransactionResult.INSUFFICIENT_FUNDS) {
+                System.out.println("=============================================");
+                System.out.println("Insufficient funds for withdrawal.");
+                System.out.println("=============================================");
+            } else {
+                System.out.println("=============================================");
+                System.out.println("Incorrect password. Withdrawal failed.");
+                System.out.println("=============================================");
+            }
+        } else {
+            System.out.println("=============================================");
+            System.out.println("Account not found.");
+            System.out.println("=============================================");
+        }
+    }
+
+    public void credit(int accountNumber, long amount) {
+        if (accounts.containsKey(accountNumber)) {
+            User user = accounts.get(accountNumber);
+            // No password check for credit operation
+            if (deposit(accountNumber, amount) == TransactionResult.SUCCESS) {
+                System.out.println("=============================================");
+                System.out.println("Credit successful. New balance: Rs " + Money.format(user.getBalance()));
+                System.out.println("=============================================");
+            } else {
+                System.out.println("=============================================");
+                System.out.println("Invalid credit amount.");
+                System.out.println("=============================================");
+            }
+        } else {
+            System.out.println("=============================================");
+            System.out.println("Account not found.");
+            System.out.println("=============================================");
+        }
+    }
+
+    public void processBatchFile() {
+        System.out.print("Enter transactions file (accountNumber,CREDIT|WITHDRAW,amount or accountNumber,TRANSFER,amount,toAccountNumber per line): ");
+        String inputFile = scanner.next();
+        System.out.print("Enter outcome file: ");
+        String outcomeFile = scanner.next();
+
+        try {
+            BatchSummary summary = new TransactionBatchProcessor(this).process(Paths.get(inputFile), Paths.get(outcomeFile));
+            System.out.println("=============================================");
+            System.out.println("Batch complete. " + summary);
+            System.out.println("=============================================");
+        } catch (IOException e) {
+            System.out.println("=============================================");
+            System.out.println("Batch failed: " + e.getMessage());
+            System.out.println("=============================================");
+        }
+    }
+}
+
+/**
+ * Amounts are held as whole cents (1/100 Rs) in a long so balances stay exact.
+ */
+class Money {
+    private Money() {
+    }
+
+    public static long parseCents(String amount) {
+        return parseCents(amount, 0, amount.length());
+    }
+
+    // Plain decimals like "250" or "-10.5" are parsed by hand; anything else goes through BigDecimal
+    public static long parseCents(CharSequence text, int start, int end) {
+        while (start < end && text.charAt(start) == ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) == ' ') {
+            end--;
+        }
+
+        int i = start;
+        boolean negative = i < end && text.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        long whole = 0;
+        int digits = 0;
+        while (i < end && Character.isDigit(text.charAt(i)) && digits < 15) {
+            whole = whole * 10 + (text.charAt(i++) - '0');
+            digits++;
+        }
+        long fraction = 0;
+        int fractionDigits = 0;
+        if (i < end && text.charAt(i) == '.') {
+            i++;
+            while (i < end && fractionDigits < 2 && Character.isDigit(text.charAt(i))) {
+                fraction = fraction * 10 + (text.charAt(i++) - '0');
+                fractionDigits++;
+            }
+        }
+        if (i == end && digits > 0) {
+            long cents = whole * 100 + (fractionDigits == 1 ? fraction * 10 : fraction);
+            return negative ? -cents : cents;
+        }
+
+        String amount = text.subSequence(start, end).toString();
+        return new BigDecimal(amount).movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    public static String format(long cents) {
+        long whole = Math.abs(cents / 100);
+        long fraction = Math.abs(cents % 100);
+        return (cents < 0 ? "-" : "") + whole + (fraction < 10 ? ".0" : ".") + fraction;
+    }
+}
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hashes, stored as "pbkdf2$iterations$salt$hash" with
+ * Base64 salt and hash, so a stored credential never contains a comma. The iteration count
+ * is read from -Dbank.passwordIterations; a stored hash keeps the count it was made with.
+ */
+class PasswordHasher {
+    private static final String PREFIX = "pbkdf2$";
+    private static final int DEFAULT_ITERATIONS = 600_000;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private PasswordHasher() {
+    }
+
+    public static int iterations() {
+        return Integer.getInteger("bank.passwordIterations", DEFAULT_ITERATIONS);
+    }
+
+    public static String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        int iterations = iterations();
+        return PREFIX + iterations + "$" + Base64.getEncoder().encodeToString(salt) + "$"
+                + Base64.getEncoder().encodeToString(derive(password, salt, iterations));
+    }
+
+    public static boolean verify(String password, String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4 || !stored.startsWith(PREFIX)) {
+            return false;
+        }
+        byte[] salt = Base64.getDecoder().decode(parts[2]);
+        byte[] expected = Base64.getDecoder().decode(parts[3]);
+        return MessageDigest.isEqual(expected, derive(password, salt, Integer.parseInt(parts[1])));
+    }
+
+    // Credentials written before hashing was introduced are plain passwords
+    public static boolean isHash(String stored) {
+        return stored.startsWith(PREFIX);
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
+
+/**
+ * Logged-in sessions, so the password hash is checked once per login instead of on every
+ * transaction. Tokens are random and expire after SESSION_IDLE_MILLIS without use. The map
+ * is kept in access order, which is also expiry order, so expired sessions are dropped from
+ * the head, and the least recently used session is evicted once MAX_SESSIONS are open.
+ */
+class SessionCache {
+    private static final int MAX_SESSIONS = 100_000;
+    private static final long SESSION_IDLE_MILLIS = 15 * 60 * 1000;
+    private static final int TOKEN_BYTES = 18;
+
+    private final SecureRandom random = new SecureRandom();
+    // Value is {accountNumber, expiresAtMillis}
+    private final LinkedHashMap<String, long[]> sessions = new LinkedHashMap<String, long[]>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+            return size() > MAX_SESSIONS;
+        }
+    };
+
+    public synchronized String open(int accountNumber) {
+        long now = System.currentTimeMillis();
+        removeExpired(now);
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new long[]{accountNumber, now + SESSION_IDLE_MILLIS});
+        return token;
+    }
+
+    // Returns the session's account number and extends the session, or -1 if it is unknown or expired
+    public synchronized int resolve(String token) {
+        long now = System.currentTimeMillis();
+        long[] session = sessions.get(token);
+        if (session == null) {
+            return -1;
+        }
+        if (session[1] <= now) {
+            sessions.remove(token);
+            return -1;
+        }
+        session[1] = now + SESSION_IDLE_MILLIS;
+        return (int) session[0];
+    }
+
+    public synchronized void close(String token) {
+        sessions.remove(token);
+    }
+
+    private void removeExpired(long now) {
+        Iterator<long[]> it = sessions.values().iterator();
+        while (it.hasNext() && it.next()[1] <= now) {
+            it.remove();
+        }
+    }
+}
+
+/**
+ * Hands out account numbers without a shared counter: each thread leases a block of
+ * BLOCK_SIZE numbers and allocates from it on its own, so only leasing touches shared
+ * state. The end of the leased range is forced to bank_ids.dat before any number in the
+ * block is used, so a number is never handed out twice, even across a crash; numbers
+ * left in a block when the process stops are skipped.
+ */
+class AccountNumberAllocator {
+    static final int FIRST_ACCOUNT_NUMBER = 1001;
+    private static final int BLOCK_SIZE = 100;
+
+    private final FileChannel channel;
+    private final ByteBuffer record = ByteBuffer.allocate(8);
+    // First number not yet leased to any thread
+    private long leasedUpTo;
+    // {next, end} of the calling thread's block
+    private final ThreadLocal<long[]> blocks = ThreadLocal.withInitial(() -> new long[2]);
+
+    public AccountNumberAllocator(Path path, int minimum) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long stored = 0;
+        if (channel.read(record, 0) == 8) {
+            stored = record.getLong(0);
+        }
+        this.leasedUpTo = Math.max(Math.max(stored, minimum), FIRST_ACCOUNT_NUMBER);
+    }
+
+    public int next() {
+        long[] block = blocks.get();
+        if (block[0] == block[1]) {
+            lease(block);
+        }
+        return Math.toIntExact(block[0]++);
+    }
+
+    private synchronized void lease(long[] block) {
+        long end = leasedUpTo + BLOCK_SIZE;
+        try {
+            record.clear();
+            record.putLong(0, end);
+            while (record.hasRemaining()) {
+                channel.write(record, record.position());
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        block[0] = leasedUpTo;
+        block[1] = end;
+        leasedUpTo = end;
+    }
+
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/**
+ * Splits the accounts across several AccountTables, routing each number to a shard by a
+ * hash of it, so writers on different shards don't share a write lock and a resize only
+ * copies and blocks one shard. Transfers between shards need nothing extra: Bank's stripe
+ * locks are global and are always taken in index order, whichever shards the accounts are on.
+ */
+class ShardedAccountTable {
+    private final AccountTable[] shards;
+
+    public ShardedAccountTable(int shardCount, int expectedSize) {
+        if (Integer.bitCount(shardCount) != 1) {
+            throw new IllegalArgumentException("Shard count must be a power of two: " + shardCount);
+        }
+        this.shards = new AccountTable[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new AccountTable(expectedSize / shardCount);
+        }
+    }
+
+    // Different mixing from Bank.stripeFor, so a shard's accounts spread over every stripe
+    int shardFor(int accountNumber) {
+        int h = accountNumber * 0x85EBCA6B;
+        return (h ^ (h >>> 13)) & (shards.length - 1);
+    }
+
+    public User get(int accountNumber) {
+        return shards[shardFor(accountNumber)].get(accountNumber);
+    }
+
+    public boolean containsKey(int accountNumber) {
+        return shards[shardFor(accountNumber)].containsKey(accountNumber);
+    }
+
+    public User put(int accountNumber, User user) {
+        return shards[shardFor(accountNumber)].put(accountNumber, user);
+    }
+
+    public int size() {
+        int size = 0;
+        for (AccountTable shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    // Shard by shard; not a snapshot across shards unless writers are held off, as checkpoints do
+    public void forEach(Consumer<User> action) {
+        for (AccountTable shard : shards) {
+            shard.forEach(action);
+        }
+    }
+}
+
+/**
+ * Open-addressing map from account number to User with int keys, so lookups don't box
+ * and there is no per-entry node. Writers take the write lock; readers probe under an
+ * optimistic stamp and only fall back to the read lock if a write raced with them.
+ */
+class AccountTable {
+    // Account numbers start above 1000, so 0 marks an empty slot
+    private static final int EMPTY = 0;
+
+    private final StampedLock lock = new StampedLock();
+    private int[] keys;
+    private User[] values;
+    private int size;
+
+    public AccountTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        this.keys = new int[capacity];
+        this.values = new User[capacity];
+    }
+
+    public User get(int accountNumber) {
+        long stamp = lock.tryOptimisticRead();
+        int[] currentKeys = keys;
+        User[] currentValues = values;
+        if (lock.validate(stamp)) {
+            User user = find(currentKeys, currentValues, accountNumber);
+            if (lock.validate(stamp)) {
+                return user;
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return find(keys, values, accountNumber);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean containsKey(int accountNumber) {
+        return get(accountNumber) != null;
+    }
+
+    public User put(int accountNumber, User user) {
+        if (accountNumber == EMPTY) {
+            throw new IllegalArgumentException("Invalid account number: " + accountNumber);
+        }
+        long stamp = lock.writeLock();
+        try {
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            int slot = slotFor(keys, accountNumber);
+            User previous = values[slot];
+            values[slot] = user;
+            if (keys[slot] == EMPTY) {
+                keys[slot] = accountNumber;
+                size++;
+            }
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void forEach(Consumer<User> action) {
+        long stamp = lock.readLock();
+        try {
+            for (User user : values) {
+                if (user != null) {
+                    action.accept(user);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        User[] oldValues = values;
+        int[] newKeys = new int[oldKeys.length * 2];
+        User[] newValues = new User[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slotFor(newKeys, oldKeys[i]);
+                newKeys[slot] = oldKeys[i];
+                newValues[slot] = oldValues[i];
+            }
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+
+    private static User find(int[] keys, User[] values, int accountNumber) {
+        int mask = keys.length - 1;
+        for (int slot = hash(accountNumber) & mask; ; slot = (slot + 1) & mask) {
+            int key = keys[slot];
+            if (key == accountNumber) {
+                return values[slot];
+            }
+            if (key == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    private static int slotFor(int[] keys, int accountNumber) {
+        int mask = keys.length - 1;
+        int slot = hash(accountNumber) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != accountNumber) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(int accountNumber) {
+        int h = accountNumber * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+enum TransactionResult {
+    SUCCESS,
+    ACCOUNT_NOT_FOUND,
+    INSUFFICIENT_FUNDS,
+    INVALID_AMOUNT,
+    MALFORMED_REQUEST,
+    AUTHENTICATION_FAILED,
+    LOAN_NOT_FOUND,
+    INTERNAL_ERROR
+}
+
+/**
+ * The legs of a transfer that must happen together, e.g. one payer paying several
+ * accounts. Bank.transfer applies them in order, all or none. Amounts are in cents.
+ */
+class TransferBatch {
+    private int[] from = new int[4];
+    private int[] to = new int[4];
+    private long[] amounts = new long[4];
+    private int size;
+
+    public TransferBatch add(int fromAccountNumber, int toAccountNumber, long amount) {
+        if (size == from.length) {
+            from = Arrays.copyOf(from, size * 2);
+            to = Arrays.copyOf(to, size * 2);
+            amounts = Arrays.copyOf(amounts, size * 2);
+        }
+        from[size] = fromAccountNumber;
+        to[size] = toAccountNumber;
+        amounts[size] = amount;
+        size++;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getFrom(int leg) {
+        return from[leg];
+    }
+
+    public int getTo(int leg) {
+        return to[leg];
+    }
+
+    public long getAmount(int leg) {
+        return amounts[leg];
+    }
+}
+
+// Balances and transaction amounts are in cents, see Money
+class User {
+    private int accountNumber;
+    private String accountHolderName;
+    // A PasswordHasher hash; plain only between loading an old data file and migration
+    private volatile String passwordHash;
+    // Written only under the owning Bank stripe lock; volatile so balance reads need no lock
+    private volatile long balance;
+    private String accountType;
+    private TransactionHistory transactionHistory;
+    private TransactionJournal journal;
+
+    public User(int accountNumber, String accountHolderName, String passwordHash, long initialBalance, String accountType) {
+        this.accountNumber = accountNumber;
+        this.accountHolderName = accountHolderName;
+        this.passwordHash = passwordHash;
+        this.balance = initialBalance;
+        this.accountType = accountType;
+        this.transactionHistory = new TransactionHistory(accountNumber);
+    }
+
+    public int getAccountNumber() {
+        return accountNumber;
+    }
+
+    public String getAccountHolderName() {
+        return accountHolderName;
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    public String getAccountType() {
+        return accountType;
+    }
+
+    public TransactionHistory getTransactionHistory() {
+        return transactionHistory;
+    }
+
+    public void addTransaction(long amount, TransactionType type) {
+        long timestamp = System.currentTimeMillis();
+        applyTransaction(amount, type, timestamp);
+        if (journal != null) {
+            journal.appendTransaction(accountNumber, type, amount, balance, timestamp);
+        }
+    }
+
+    // Updates balance and history but leaves journaling to the caller, e.g. a transfer group; returns the new balance
+    long applyTransaction(long amount, TransactionType type, long timestamp) {
+        balance += amount;
+        transactionHistory.add(timestamp, type, amount, balance);
+        return balance;
+    }
+
+    public void setStorage(TransactionJournal journal, HistorySegment historySegment) {
+        this.journal = journal;
+        transactionHistory.setSegment(historySegment);
+    }
+
+    // Used by journal replay; the record already holds the resulting balance
+    void restoreTransaction(TransactionType type, long amount, long balance, long timestamp) {
+        this.balance = balance;
+        transactionHistory.add(timestamp, type, amount, balance);
+    }
+
+    // Runs the full password hash; callers that already hold a session should not need it
+    public boolean authenticate(String passwordAttempt) {
+        String stored = passwordHash;
+        if (PasswordHasher.isHash(stored)) {
+            return PasswordHasher.verify(passwordAttempt, stored);
+        }
+        // Not migrated yet: the first login that matches the plain password hashes it, at the cost of one check
+        if (!MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), passwordAttempt.getBytes(StandardCharsets.UTF_8))) {
+            return false;
+        }
+        migratePassword();
+        return true;
+    }
+
+    public String getPasswordHash() {
+        return passwordHash;
+    }
+
+    // Replaces a plain password loaded from an old data file with its hash; the next checkpoint saves it
+    synchronized void migratePassword() {
+        if (!PasswordHasher.isHash(passwordHash)) {
+            passwordHash = PasswordHasher.hash(passwordHash);
+        }
+    }
+}
+
+enum TransactionType {
+    DEPOSIT,
+    WITHDRAWAL,
+    LOAN,
+    TRANSFER_IN,
+    TRANSFER_OUT,
+    LOAN_REPAYMENT
+}
+
+class HistoryEntry {
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final long timestamp;
+    private final TransactionType type;
+    private final long amount;
+    private final long balance;
+
+    public HistoryEntry(long timestamp, TransactionType type, long amount, long balance) {
+        this.timestamp = timestamp;
+        this.type = type;
+        this.amount = amount;
+        this.balance = balance;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public TransactionType getType() {
+        return type;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    @Override
+    public String toString() {
+        return DATE_FORMAT.format(Instant.ofEpochMilli(timestamp)) + " " + type + ": " +
+                (amount >= 0 ? "+" : "") + Money.format(amount) + ", New Balance: Rs " + Money.format(balance);
+    }
+}
+
+/**
+ * Per-account history kept in a fixed-size ring of primitive columns, so memory stays
+ * bounded however busy the account is. Entries evicted from the ring are spilled to the
+ * shared HistorySegment, where each record points back at the account's previous one.
+ * Callers hold the account's stripe lock.
+ */
+class TransactionHistory {
+    static final int CAPACITY = 16;
+
+    interface Visitor {
+        // Return false to stop the walk
+        boolean visit(HistoryEntry entry);
+    }
+
+    private final int accountNumber;
+    private HistorySegment segment;
+    // Allocated on the first transaction so idle accounts cost nothing
+    private long[] timestamps;
+    private long[] amounts;
+    private long[] balances;
+    private byte[] types;
+    private int next;
+    private int count;
+    // The newest entries of the ring that are not in the segment yet
+    private int unspilled;
+    private long spillHead = -1;
+
+    public TransactionHistory(int accountNumber) {
+        this.accountNumber = accountNumber;
+    }
+
+    public void setSegment(HistorySegment segment) {
+        this.segment = segment;
+    }
+
+    public void setSpillHead(long offset) {
+        this.spillHead = offset;
+    }
+
+    public void add(long timestamp, TransactionType type, long amount, long balance) {
+        if (timestamps == null) {
+            timestamps = new long[CAPACITY];
+            amounts = new long[CAPACITY];
+            balances = new long[CAPACITY];
+            types = new byte[CAPACITY];
+        }
+        if (count == CAPACITY) {
+            // next is the oldest slot; keep it on disk before overwriting
+            if (unspilled == CAPACITY) {
+                spill(next);
+                unspilled--;
+            }
+            count--;
+        }
+
+        timestamps[next] = timestamp;
+        amounts[next] = amount;
+        balances[next] = balance;
+        types[next] = (byte) type.ordinal();
+        next = (next + 1) % CAPACITY;
+        count++;
+        unspilled++;
+    }
+
+    public int getUnspilled() {
+        return unspilled;
+    }
+
+    // Writes every unspilled entry to the segment but keeps them in the ring for reads
+    public void spillAll() {
+        for (int i = unspilled; i > 0; i--) {
+            spill((next - i + CAPACITY) % CAPACITY);
+        }
+        unspilled = 0;
+    }
+
+    public void visitNewestFirst(Visitor visitor) throws IOException {
+        for (int i = 1; i <= count; i++) {
+            int slot = (next - i + CAPACITY) % CAPACITY;
+            if (!visitor.visit(entryAt(slot))) {
+                return;
+            }
+        }
+
+        // The oldest ring entries may already be in the segment; don't report them twice
+        int alreadySeen = count - unspilled;
+        long offset = spillHead;
+        long[] previous = new long[1];
+        while (offset >= 0 && segment != null) {
+            HistoryEntry entry = segment.read(offset, previous);
+            offset = previous[0];
+            if (alreadySeen > 0) {
+                alreadySeen--;
+            } else if (!visitor.visit(entry)) {
+                return;
+            }
+        }
+    }
+
+    private HistoryEntry entryAt(int slot) {
+        return new HistoryEntry(timestamps[slot], TransactionType.values()[types[slot]], amounts[slot], balances[slot]);
+    }
+
+    private void spill(int slot) {
+        if (segment == null) {
+            return;
+        }
+        try {
+            spillHead = segment.append(accountNumber, timestamps[slot], types[slot], amounts[slot], balances[slot], spillHead);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/**
+ * bank_history.dat: fixed 40-byte records (account, type, timestamp, amount, balance,
+ * offset of the account's previous record). Spills collect in a buffer and don't fsync;
+ * sync() is called at checkpoints and the length is stored in the journal so recovery
+ * can cut back to it.
+ */
+class HistorySegment {
+    static final int RECORD_SIZE = 40;
+
+    interface Handler {
+        void onRecord(int accountNumber, long offset);
+    }
+
+    private final FileChannel channel;
+    // Records past the file's end, written out together; end counts them
+    private final ByteBuffer pending = ByteBuffer.allocate(RECORD_SIZE * 1024);
+    private long end;
+
+    public HistorySegment(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.end = channel.size() - channel.size() % RECORD_SIZE;
+    }
+
+    public synchronized void truncate(long length) throws IOException {
+        flushPending();
+        if (length < end) {
+            channel.truncate(length);
+            end = length;
+        }
+    }
+
+    // Reports records oldest first, so the last call per account is its chain head
+    public void scan(Handler handler) throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(RECORD_SIZE * 1024);
+        long position = 0;
+        while (position < end) {
+            in.clear();
+            channel.read(in, position);
+            in.flip();
+            while (in.remaining() >= RECORD_SIZE && position < end) {
+                handler.onRecord(in.getInt(in.position()), position);
+                in.position(in.position() + RECORD_SIZE);
+                position += RECORD_SIZE;
+            }
+        }
+    }
+
+    public synchronized long append(int accountNumber, long timestamp, int type, long amount, long balance,
+                                    long previousOffset) throws IOException {
+        if (pending.remaining() < RECORD_SIZE) {
+            flushPending();
+        }
+        pending.putInt(accountNumber)
+                .putInt(type)
+                .putLong(timestamp)
+                .putLong(amount)
+                .putLong(balance)
+                .putLong(previousOffset);
+        long offset = end;
+        end += RECORD_SIZE;
+        return offset;
+    }
+
+    public HistoryEntry read(long offset, long[] previousOffset) throws IOException {
+        synchronized (this) {
+            if (offset >= end - pending.position()) {
+                flushPending();
+            }
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        while (record.hasRemaining()) {
+            if (channel.read(record, offset + record.position()) < 0) {
+                throw new IOException("Truncated history record at " + offset);
+            }
+        }
+        record.flip();
+        record.getInt();
+        int type = record.getInt();
+        long timestamp = record.getLong();
+        long amount = record.getLong();
+        long balance = record.getLong();
+        previousOffset[0] = record.getLong();
+        return new HistoryEntry(timestamp, TransactionType.values()[type], amount, balance);
+    }
+
+    // Length including buffered records; they reach the file by the next sync()
+    public synchronized long length() {
+        return end;
+    }
+
+    public synchronized long sync() throws IOException {
+        flushPending();
+        channel.force(false);
+        return end;
+    }
+
+    public synchronized void close() throws IOException {
+        flushPending();
+        channel.close();
+    }
+
+    private void flushPending() throws IOException {
+        pending.flip();
+        long position = end - pending.remaining();
+        while (pending.hasRemaining()) {
+            channel.write(pending, position + pending.position());
+        }
+        pending.clear();
+    }
+}
+
+class ScheduledPayment {
+    private final int number;
+    private final long payment;
+    private final long interest;
+    private final long principal;
+    private final long remaining;
+
+    public ScheduledPayment(int number, long payment, long interest, long principal, long remaining) {
+        this.number = number;
+        this.payment = payment;
+        this.interest = interest;
+        this.principal = principal;
+        this.remaining = remaining;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public long getPayment() {
+        return payment;
+    }
+
+    public long getInterest() {
+        return interest;
+    }
+
+    public long getPrincipal() {
+        return principal;
+    }
+
+    public long getRemaining() {
+        return remaining;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%3d  Rs %12s  interest Rs %10s  principal Rs %12s  remaining Rs %12s", number,
+                Money.format(payment), Money.format(interest), Money.format(principal), Money.format(remaining));
+    }
+}
+
+/**
+ * Every loan the bank has granted, stored column by column in primitive arrays indexed by
+ * loan id, so the end-of-day accrual is a tight loop over a few arrays instead of a walk
+ * over objects. Interest accrues daily on the outstanding principal at the loan's annual
+ * rate and is kept in ten-thousandths of a cent so daily rounding doesn't drift; a
+ * repayment settles accrued interest first, then principal.
+ *
+ * Changes take lock(); Bank also holds it while a checkpoint rotates the journal and copies
+ * the portfolio, so the file saved from the copy and the rotation agree.
+ */
+class LoanPortfolio {
+    // Accrued interest units per cent
+    static final long INTEREST_SCALE = 10_000;
+    private static final int DAYS_PER_YEAR = 365;
+    // Loans per parallel accrual task
+    private static final int ACCRUAL_CHUNK = 1 << 16;
+    private static final int MAGIC = 0x424E4B4C;
+    private static final int VERSION = 1;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private int[] accountNumbers;
+    private long[] principals;
+    private long[] accrued;
+    private int[] rateBasisPoints;
+    private int[] termMonths;
+    private int[] openedDays;
+    private int size;
+    // Epoch day the last accrual covered, or -1 before the first one
+    private long accruedThrough = -1;
+
+    public LoanPortfolio(int capacity) {
+        capacity = Math.max(capacity, 16);
+        accountNumbers = new int[capacity];
+        principals = new long[capacity];
+        accrued = new long[capacity];
+        rateBasisPoints = new int[capacity];
+        termMonths = new int[capacity];
+        openedDays = new int[capacity];
+    }
+
+    public void lock() {
+        lock.lock();
+    }
+
+    public void unlock() {
+        lock.unlock();
+    }
+
+    // Returns the new loan's id
+    public int open(int accountNumber, long principal, int rateBasisPoints, int termMonths, long openedDay) {
+        lock.lock();
+        try {
+            if (size == accountNumbers.length) {
+                grow(size * 2);
+            }
+            accountNumbers[size] = accountNumber;
+            principals[size] = principal;
+            accrued[size] = 0;
+            this.rateBasisPoints[size] = rateBasisPoints;
+            this.termMonths[size] = termMonths;
+            openedDays[size] = (int) openedDay;
+            return size++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Accrues interest on every loan for each day after the last run (or since the loan was
+     * opened) up to and including the given one, splitting the arrays into chunks across the common fork/join pool.
+     * Returns the interest accrued, in cents.
+     */
+    public long accrueThrough(long epochDay) {
+        lock.lock();
+        try {
+            if (epochDay <= accruedThrough) {
+                return 0;
+            }
+            long since = accruedThrough;
+            accruedThrough = epochDay;
+            int chunks = (size + ACCRUAL_CHUNK - 1) / ACCRUAL_CHUNK;
+            long units = IntStream.range(0, chunks).parallel()
+                    .mapToLong(chunk -> accrue(chunk * ACCRUAL_CHUNK, Math.min(size, (chunk + 1) * ACCRUAL_CHUNK), since, epochDay))
+                    .sum();
+            return units / INTEREST_SCALE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long accrue(int from, int to, long since, long epochDay) {
+        long[] principals = this.principals;
+        long[] accrued = this.accrued;
+        int[] rates = this.rateBasisPoints;
+        int[] opened = this.openedDays;
+        long total = 0;
+        for (int i = from; i < to; i++) {
+            // A loan accrues from the day it was opened, even if that was before the last run
+            long days = Math.max(0, epochDay - Math.max(since, opened[i] - 1));
+            // cents * basis points / 10,000 is cents a year; times INTEREST_SCALE cancels the 10,000
+            long interest = principals[i] * rates[i] * days / DAYS_PER_YEAR;
+            accrued[i] += interest;
+            total += interest;
+        }
+        return total;
+    }
+
+    // Principal plus accrued interest rounded up to the cent
+    public long getAmountOwed(int loanId) {
+        lock.lock();
+        try {
+            return principals[loanId] + (accrued[loanId] + INTEREST_SCALE - 1) / INTEREST_SCALE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Settles accrued interest first, then principal; the caller has checked amount against getAmountOwed
+    public void repay(int loanId, long amount) {
+        lock.lock();
+        try {
+            long interestCents = (accrued[loanId] + INTEREST_SCALE - 1) / INTEREST_SCALE;
+            if (amount <= interestCents) {
+                accrued[loanId] = Math.max(0, accrued[loanId] - amount * INTEREST_SCALE);
+            } else {
+                accrued[loanId] = 0;
+                principals[loanId] -= amount - interestCents;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAccruedThrough() {
+        lock.lock();
+        try {
+            return accruedThrough;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean exists(int loanId) {
+        lock.lock();
+        try {
+            return loanId >= 0 && loanId < size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getAccountNumber(int loanId) {
+        lock.lock();
+        try {
+            return accountNumbers[loanId];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ids of the account's loans, oldest first
+    public List<Integer> getLoanIds(int accountNumber) {
+        List<Integer> ids = new ArrayList<>();
+        lock.lock();
+        try {
+            for (int i = 0; i < size; i++) {
+                if (accountNumbers[i] == accountNumber) {
+                    ids.add(i);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return ids;
+    }
+
+    /**
+     * Equal monthly installments that pay off the outstanding principal over the months
+     * left in the term, with interest charged monthly on the remaining balance. The last
+     * installment absorbs rounding. Accrued but unpaid interest is not included.
+     */
+    public List<ScheduledPayment> getSchedule(int loanId, long today) {
+        long remaining;
+        int rate;
+        int months;
+        lock.lock();
+        try {
+            remaining = principals[loanId];
+            rate = rateBasisPoints[loanId];
+            LocalDate opened = LocalDate.ofEpochDay(openedDays[loanId]);
+            long elapsed = ChronoUnit.MONTHS.between(opened, LocalDate.ofEpochDay(today));
+            months = (int) Math.max(1, termMonths[loanId] - elapsed);
+        } finally {
+            lock.unlock();
+        }
+
+        List<ScheduledPayment> schedule = new ArrayList<>();
+        double monthlyRate = rate / 10_000.0 / 12;
+        long installment = monthlyRate == 0
+                ? (remaining + months - 1) / months
+                : Math.round(remaining * monthlyRate / (1 - Math.pow(1 + monthlyRate, -months)));
+        for (int number = 1; number <= months && remaining > 0; number++) {
+            long interest = (remaining * rate + 60_000) / 120_000;
+            long principal = number == months ? remaining : Math.min(remaining, installment - interest);
+            remaining -= principal;
+            schedule.add(new ScheduledPayment(number, principal + interest, interest, principal, remaining));
+        }
+        return schedule;
+    }
+
+    /**
+     * Writes the portfolio as a header (magic, version, loan count, last accrual day), each
+     * column in turn and a CRC32 of everything before it. The caller holds lock().
+     */
+    public void save(Path path) throws IOException {
+        Path tempFile = path.resolveSibling(path.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        ByteBuffer out = ByteBuffer.allocate(1 << 18);
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            out.putInt(MAGIC).putInt(VERSION).putInt(size).putLong(accruedThrough);
+            writeColumn(channel, out, crc, accountNumbers);
+            writeColumn(channel, out, crc, principals);
+            writeColumn(channel, out, crc, accrued);
+            writeColumn(channel, out, crc, rateBasisPoints);
+            writeColumn(channel, out, crc, termMonths);
+            writeColumn(channel, out, crc, openedDays);
+            drain(channel, out, crc);
+            out.putInt((int) crc.getValue());
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static LoanPortfolio load(Path path) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(in.duplicate().limit(Math.max(0, in.limit() - 4)));
+        if (in.limit() < 24 || in.getInt(0) != MAGIC || in.getInt(4) != VERSION
+                || (int) crc.getValue() != in.getInt(in.limit() - 4)) {
+            throw new IOException("Damaged loan portfolio " + path);
+        }
+
+        in.position(8);
+        int size = in.getInt();
+        LoanPortfolio portfolio = new LoanPortfolio(size);
+        portfolio.accruedThrough = in.getLong();
+        in.asIntBuffer().get(portfolio.accountNumbers, 0, size);
+        in.position(in.position() + 4 * size);
+        in.asLongBuffer().get(portfolio.principals, 0, size);
+        in.position(in.position() + 8 * size);
+        in.asLongBuffer().get(portfolio.accrued, 0, size);
+        in.position(in.position() + 8 * size);
+        in.asIntBuffer().get(portfolio.rateBasisPoints, 0, size);
+        in.position(in.position() + 4 * size);
+        in.asIntBuffer().get(portfolio.termMonths, 0, size);
+        in.position(in.position() + 4 * size);
+        in.asIntBuffer().get(portfolio.openedDays, 0, size);
+        portfolio.size = size;
+        return portfolio;
+    }
+
+    // Caller holds the lock; the copy can be saved after it is released
+    public LoanPortfolio copy() {
+        LoanPortfolio copy = new LoanPortfolio(size);
+        System.arraycopy(accountNumbers, 0, copy.accountNumbers, 0, size);
+        System.arraycopy(principals, 0, copy.principals, 0, size);
+        System.arraycopy(accrued, 0, copy.accrued, 0, size);
+        System.arraycopy(rateBasisPoints, 0, copy.rateBasisPoints, 0, size);
+        System.arraycopy(termMonths, 0, copy.termMonths, 0, size);
+        System.arraycopy(openedDays, 0, copy.openedDays, 0, size);
+        copy.size = size;
+        copy.accruedThrough = accruedThrough;
+        return copy;
+    }
+
+    private void grow(int capacity) {
+        accountNumbers = Arrays.copyOf(accountNumbers, capacity);
+        principals = Arrays.copyOf(principals, capacity);
+        accrued = Arrays.copyOf(accrued, capacity);
+        rateBasisPoints = Arrays.copyOf(rateBasisPoints, capacity);
+        termMonths = Arrays.copyOf(termMonths, capacity);
+        openedDays = Arrays.copyOf(openedDays, capacity);
+    }
+
+    private void writeColumn(FileChannel channel, ByteBuffer out, CRC32 crc, int[] column) throws IOException {
+        for (int i = 0; i < size; ) {
+            int count = Math.min(size - i, out.remaining() / 4);
+            out.asIntBuffer().put(column, i, count);
+            out.position(out.position() + 4 * count);
+            i += count;
+            if (i < size) {
+                drain(channel, out, crc);
+            }
+        }
+    }
+
+    private void writeColumn(FileChannel channel, ByteBuffer out, CRC32 crc, long[] column) throws IOException {
+        for (int i = 0; i < size; ) {
+            int count = Math.min(size - i, out.remaining() / 8);
+            out.asLongBuffer().put(column, i, count);
+            out.position(out.position() + 8 * count);
+            i += count;
+            if (i < size) {
+                drain(channel, out, crc);
+            }
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer out, CRC32 crc) throws IOException {
+        out.flip();
+        crc.update(out.duplicate());
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+}
+
+class BatchSummary {
+    private final long succeeded;
+    private final long failed;
+    private final long elapsedMillis;
+
+    public BatchSummary(long succeeded, long failed, long elapsedMillis) {
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public long getSucceeded() {
+        return succeeded;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "Succeeded: " + succeeded + ", Failed: " + failed + ", Time: " + elapsedMillis + " ms";
+    }
+}
+
+/**
+ * Streams a CSV of "accountNumber,type,amount" lines (type CREDIT or WITHDRAW) and
+ * "accountNumber,TRANSFER,amount,toAccountNumber" lines through the same checks as
+ * Bank.credit, Bank.withdraw and Bank.transfer. The journal is committed once per group of
+ * GROUP_SIZE lines, and a group's outcome lines ("lineNumber,RESULT") are only written
+ * after that commit, so the outcome file never reports a change that is not durable. If
+ * the commit fails, the group's successes are written as INTERNAL_ERROR and the batch
+ * stops with an IOException.
+ */
+class TransactionBatchProcessor {
+    private static final int GROUP_SIZE = 10_000;
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    private final Bank bank;
+
+    public TransactionBatchProcessor(Bank bank) {
+        this.bank = bank;
+    }
+
+    public BatchSummary process(Path inputFile, Path outcomeFile) throws IOException {
+        long start = System.nanoTime();
+        long succeeded = 0;
+        long failed = 0;
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(inputFile), StandardCharsets.UTF_8), IO_BUFFER_SIZE);
+             BufferedWriter writer = new BufferedWriter(
+                     new OutputStreamWriter(Files.newOutputStream(outcomeFile), StandardCharsets.UTF_8), IO_BUFFER_SIZE)) {
+            StringBuilder outcomes = new StringBuilder();
+            int pending = 0;
+            long lineNumber = 0;
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                // Skip blank lines and a header row
+                if (line.isEmpty() || (lineNumber == 1 && !Character.isDigit(line.charAt(0)))) {
+                    continue;
+                }
+
+                TransactionResult result = apply(line);
+                if (result == TransactionResult.SUCCESS) {
+                    succeeded++;
+                } else {
+                    failed++;
+                }
+                outcomes.append(lineNumber).append(',').append(result.name()).append('\n');
+
+                if (++pending == GROUP_SIZE) {
+                    writeGroup(writer, outcomes, lineNumber);
+                    pending = 0;
+                }
+            }
+
+            writeGroup(writer, outcomes, lineNumber);
+        }
+
+        return new BatchSummary(succeeded, failed, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // Commits the group and writes its outcomes; lastLine is the group's last line
+    private void writeGroup(BufferedWriter writer, StringBuilder outcomes, long lastLine) throws IOException {
+        if (!bank.commitJournal()) {
+            writer.append(outcomes.toString().replace("," + TransactionResult.SUCCESS.name() + "\n",
+                    "," + TransactionResult.INTERNAL_ERROR.name() + "\n"));
+            throw new IOException("the journal could not be committed, so the batch stopped after line " + lastLine);
+        }
+        writer.append(outcomes);
+        outcomes.setLength(0);
+    }
+
+    private TransactionResult apply(String line) {
+        int firstComma = line.indexOf(',');
+        int secondComma = firstComma < 0 ? -1 : line.indexOf(',', firstComma + 1);
+        if (secondComma < 0) {
+            return TransactionResult.MALFORMED_REQUEST;
+        }
+
+        int thirdComma = line.indexOf(',', secondComma + 1);
+        int amountEnd = thirdComma < 0 ? line.length() : thirdComma;
+
+        int accountNumber;
+        long amount;
+        try {
+            accountNumber = Integer.parseInt(line, 0, firstComma, 10);
+            amount = Money.parseCents(line, secondComma + 1, amountEnd);
+        } catch (NumberFormatException | ArithmeticException e) {
+            return TransactionResult.MALFORMED_REQUEST;
+        }
+
+        int typeLength = secondComma - firstComma - 1;
+        if (typeLength == 8 && line.regionMatches(true, firstComma + 1, "TRANSFER", 0, 8)) {
+            if (thirdComma < 0) {
+                return TransactionResult.MALFORMED_REQUEST;
+            }
+            try {
+                int toAccountNumber = Integer.parseInt(line, thirdComma + 1, line.length(), 10);
+                return bank.applyTransfer(new TransferBatch().add(accountNumber, toAccountNumber, amount));
+            } catch (NumberFormatException e) {
+                return TransactionResult.MALFORMED_REQUEST;
+            }
+        }
+        if (thirdComma >= 0) {
+            return TransactionResult.MALFORMED_REQUEST;
+        }
+        if (typeLength == 6 && line.regionMatches(true, firstComma + 1, "CREDIT", 0, 6)) {
+            return bank.applyDeposit(accountNumber, amount, TransactionType.DEPOSIT);
+        }
+        if (typeLength == 8 && line.regionMatches(true, firstComma + 1, "WITHDRAW", 0, 8)) {
+            return bank.applyDebit(accountNumber, amount);
+        }
+        return TransactionResult.MALFORMED_REQUEST;
+    }
+}
+
+/**
+ * Append-only log of account changes, kept as numbered segments bank_journal.<n>.dat.
+ * Every record is a fixed 40-byte header (type, account, amount and resulting balance in cents,
+ * timestamp, payload length, CRC32), followed by a payload for account creation only.
+ * Appends are buffered and made durable by commit(); concurrent committers share one fsync.
+ * A group record (amount = number of legs) precedes transactions that only count together,
+ * such as the legs of a transfer; replay drops a group that a crash cut short.
+ * A checkpoint rotates to a new segment that starts with a history mark, and deletes the
+ * older segments once its snapshot is on disk.
+ */
+class TransactionJournal {
+    static final int RECORD_SIZE = 40;
+    private static final int TYPE_CREATE = 1;
+    private static final int TYPE_HISTORY_MARK = 2;
+    private static final int TYPE_GROUP = 3;
+    private static final int TYPE_LOAN_OPENED = 4;
+    private static final int TYPE_LOAN_REPAID = 5;
+    // amount is the epoch day the accrual ran through
+    private static final int TYPE_ACCRUAL = 6;
+    // Transaction records are TYPE_TRANSACTION plus the TransactionType ordinal
+    private static final int TYPE_TRANSACTION = 8;
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    interface Handler {
+        void onCreate(int accountNumber, String accountHolderName, String password, String accountType, long balance);
+
+        void onTransaction(int accountNumber, TransactionType type, long amount, long balance, long timestamp);
+
+        // The principal was paid into the account, leaving it at balance
+        void onLoanOpened(int loanId, int accountNumber, long principal, int rateBasisPoints, int termMonths,
+                          long openedDay, long balance, long timestamp);
+
+        void onLoanRepaid(int loanId, int accountNumber, long amount, long balance, long timestamp);
+
+        void onAccrual(long epochDay);
+    }
+
+    private final Path directory;
+    private final String baseName;
+    // Wraps each segment opened for appending; the identity except in --check-journal-failure
+    private final UnaryOperator<FileChannel> segmentChannels;
+    // The segment being appended to; replaced under both locks by rotate()
+    private FileChannel channel;
+    private long segment;
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    private ByteBuffer active = ByteBuffer.allocate(256 * RECORD_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocate(256 * RECORD_SIZE);
+    private final CRC32 appendChecksum = new CRC32();
+    private long appendedRecords;
+    private volatile long durableRecords;
+    private long recordCount;
+
+    public TransactionJournal(Path directory, String baseName) throws IOException {
+        this(directory, baseName, UnaryOperator.identity());
+    }
+
+    TransactionJournal(Path directory, String baseName, UnaryOperator<FileChannel> segmentChannels) throws IOException {
+        this.directory = directory;
+        this.baseName = baseName;
+        this.segmentChannels = segmentChannels;
+        // A journal from before segments existed continues as segment 0
+        Path unsegmented = directory.resolve(baseName + ".dat");
+        if (Files.exists(unsegmented) && listSegments().isEmpty()) {
+            Files.move(unsegmented, segmentPath(0), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Replays every segment from firstSegment on, oldest first, then opens the newest one
+     * for appending. Must be called once before anything is appended.
+     */
+    public void replay(long firstSegment, Handler handler) throws IOException {
+        segment = firstSegment;
+        for (long number : listSegments()) {
+            if (number >= firstSegment) {
+                try (FileChannel in = FileChannel.open(segmentPath(number), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    replaySegment(in, handler);
+                }
+                segment = number;
+            }
+        }
+        channel = segmentChannels.apply(FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+        channel.position(channel.size());
+    }
+
+    private void replaySegment(FileChannel segmentChannel, Handler handler) throws IOException {
+        long size = segmentChannel.size();
+        ByteBuffer in = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        CRC32 crc = new CRC32();
+        long position = 0;
+        // The legs of the group being read, held back until the last one is seen
+        int groupSize = 0;
+        int[] groupAccounts = null;
+        TransactionType[] groupTypes = null;
+        long[] groupAmounts = null;
+        long[] groupBalances = null;
+        long[] groupTimestamps = null;
+        int groupRead = 0;
+
+        while (in.remaining() >= RECORD_SIZE) {
+            int start = in.position();
+            int type = in.getInt();
+            int accountNumber = in.getInt();
+            long amount = in.getLong();
+            long balance = in.getLong();
+            long timestamp = in.getLong();
+            int payloadLength = in.getInt();
+            int checksum = in.getInt();
+            if (payloadLength < 0 || in.remaining() < payloadLength) {
+                break;
+            }
+
+            crc.reset();
+            crc.update(in.duplicate().position(start).limit(start + RECORD_SIZE - 4));
+            crc.update(in.duplicate().limit(in.position() + payloadLength));
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            if (type == TYPE_CREATE) {
+                String accountHolderName = readString(in);
+                String password = readString(in);
+                String accountType = readString(in);
+                handler.onCreate(accountNumber, accountHolderName, password, accountType, balance);
+            } else if (type == TYPE_LOAN_OPENED) {
+                int loanId = in.getInt();
+                int rateBasisPoints = in.getInt();
+                int termMonths = in.getInt();
+                int openedDay = in.getInt();
+                handler.onLoanOpened(loanId, accountNumber, amount, rateBasisPoints, termMonths, openedDay, balance, timestamp);
+            } else if (type == TYPE_LOAN_REPAID) {
+                handler.onLoanRepaid(in.getInt(), accountNumber, amount, balance, timestamp);
+            } else if (type == TYPE_ACCRUAL) {
+                in.position(in.position() + payloadLength);
+                handler.onAccrual(amount);
+            } else if (type == TYPE_GROUP) {
+                in.position(in.position() + payloadLength);
+                if (groupRead < groupSize || amount <= 0 || amount > Integer.MAX_VALUE) {
+                    break;
+                }
+                groupSize = (int) amount;
+                groupAccounts = new int[groupSize];
+                groupTypes = new TransactionType[groupSize];
+                groupAmounts = new long[groupSize];
+                groupBalances = new long[groupSize];
+                groupTimestamps = new long[groupSize];
+                groupRead = 0;
+            } else if (type >= TYPE_TRANSACTION) {
+                in.position(in.position() + payloadLength);
+                TransactionType transactionType = TransactionType.values()[type - TYPE_TRANSACTION];
+                if (groupRead < groupSize) {
+                    groupAccounts[groupRead] = accountNumber;
+                    groupTypes[groupRead] = transactionType;
+                    groupAmounts[groupRead] = amount;
+                    groupBalances[groupRead] = balance;
+                    groupTimestamps[groupRead] = timestamp;
+                    if (++groupRead == groupSize) {
+                        for (int i = 0; i < groupSize; i++) {
+                            handler.onTransaction(groupAccounts[i], groupTypes[i], groupAmounts[i], groupBalances[i], groupTimestamps[i]);
+                        }
+                    }
+                } else {
+                    handler.onTransaction(accountNumber, transactionType, amount, balance, timestamp);
+                }
+            } else {
+                in.position(in.position() + payloadLength);
+            }
+            recordCount++;
+            if (groupRead == groupSize) {
+                position = in.position();
+            }
+        }
+
+        // Anything past the last valid record is a torn write from a crash
+        segmentChannel.truncate(position);
+    }
+
+    public void appendCreate(User user) {
+        byte[] name = user.getAccountHolderName().getBytes(StandardCharsets.UTF_8);
+        byte[] password = user.getPasswordHash().getBytes(StandardCharsets.UTF_8);
+        byte[] type = user.getAccountType().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(6 + name.length + password.length + type.length);
+        payload.putShort((short) name.length).put(name);
+        payload.putShort((short) password.length).put(password);
+        payload.putShort((short) type.length).put(type);
+        append(TYPE_CREATE, user.getAccountNumber(), 0, user.getBalance(), payload.array());
+    }
+
+    public void appendTransaction(int accountNumber, TransactionType type, long amount, long balance, long timestamp) {
+        append(TYPE_TRANSACTION + type.ordinal(), accountNumber, amount, balance, timestamp, NO_PAYLOAD);
+    }
+
+    // One record covers both the new loan and the account credit, so replay can't see only one
+    public void appendLoanOpened(int loanId, int accountNumber, long principal, int rateBasisPoints, int termMonths,
+                                 long openedDay, long balance, long timestamp) {
+        ByteBuffer payload = ByteBuffer.allocate(16);
+        payload.putInt(loanId).putInt(rateBasisPoints).putInt(termMonths).putInt((int) openedDay);
+        append(TYPE_LOAN_OPENED, accountNumber, principal, balance, timestamp, payload.array());
+    }
+
+    public void appendLoanRepaid(int loanId, int accountNumber, long amount, long balance, long timestamp) {
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(loanId);
+        append(TYPE_LOAN_REPAID, accountNumber, amount, balance, timestamp, payload.array());
+    }
+
+    public void appendAccrual(long epochDay) {
+        append(TYPE_ACCRUAL, 0, epochDay, 0, NO_PAYLOAD);
+    }
+
+    // Appends the transactions as one group, so a commit never carries only some of them
+    public void appendGroup(int[] accountNumbers, TransactionType[] types, long[] amounts, long[] balances, long timestamp) {
+        synchronized (appendLock) {
+            append(TYPE_GROUP, 0, accountNumbers.length, 0, timestamp, NO_PAYLOAD);
+            for (int i = 0; i < accountNumbers.length; i++) {
+                append(TYPE_TRANSACTION + types[i].ordinal(), accountNumbers[i], amounts[i], balances[i], timestamp, NO_PAYLOAD);
+            }
+        }
+    }
+
+    /**
+     * Returns the bank_history.dat length recorded when the segment was started, or -1 if it
+     * has no mark. Spilled history past that point is re-derived when the journal replays.
+     */
+    public long readHistoryMark(long firstSegment) throws IOException {
+        Path path = segmentPath(firstSegment);
+        if (!Files.exists(path)) {
+            return -1;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_SIZE);
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (in.read(header, 0) < RECORD_SIZE || header.getInt(0) != TYPE_HISTORY_MARK) {
+                return -1;
+            }
+        }
+        return header.getLong(8);
+    }
+
+    private void append(int type, int accountNumber, long amount, long balance, byte[] payload) {
+        append(type, accountNumber, amount, balance, System.currentTimeMillis(), payload);
+    }
+
+    private void append(int type, int accountNumber, long amount, long balance, long timestamp, byte[] payload) {
+        synchronized (appendLock) {
+            int needed = RECORD_SIZE + payload.length;
+            if (active.remaining() < needed) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(active.capacity() * 2, active.position() + needed));
+                active.flip();
+                larger.put(active);
+                active = larger;
+            }
+
+            int start = active.position();
+            active.putInt(type)
+                    .putInt(accountNumber)
+                    .putLong(amount)
+                    .putLong(balance)
+                    .putLong(timestamp)
+                    .putInt(payload.length);
+            appendChecksum.reset();
+            appendChecksum.update(active.array(), start, RECORD_SIZE - 4);
+            appendChecksum.update(payload);
+            active.putInt((int) appendChecksum.getValue());
+            active.put(payload);
+            appendedRecords++;
+            recordCount++;
+        }
+    }
+
+    /**
+     * Blocks until everything appended before the call is on disk. Whoever gets the
+     * sync lock writes out the whole buffer, so waiting threads usually find their
+     * records already durable and return without another fsync. If the write or the
+     * fsync fails, the records go back in front of anything appended since and the next
+     * commit writes them again from the same position, over whatever part got out.
+     */
+    public void commit() throws IOException {
+        long target;
+        synchronized (appendLock) {
+            target = appendedRecords;
+        }
+        if (durableRecords >= target) {
+            return;
+        }
+
+        synchronized (syncLock) {
+            if (durableRecords >= target) {
+                return;
+            }
+
+            ByteBuffer batch;
+            long upTo;
+            synchronized (appendLock) {
+                batch = takeActive();
+                upTo = appendedRecords;
+            }
+            writeOut(batch, false);
+            durableRecords = upTo;
+        }
+    }
+
+    // Swaps in the spare buffer and returns the records appended so far; caller holds the append lock
+    private ByteBuffer takeActive() {
+        ByteBuffer batch = active;
+        active = spare;
+        spare = batch;
+        return batch;
+    }
+
+    // Writes and syncs a batch from takeActive(); caller holds the sync lock
+    private void writeOut(ByteBuffer batch, boolean metadata) throws IOException {
+        long position = channel.position();
+        batch.flip();
+        try {
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            channel.force(metadata);
+        } catch (IOException e) {
+            requeue(batch, position, e);
+            throw e;
+        }
+        batch.clear();
+    }
+
+    // Puts a batch that failed to go out back ahead of the records appended since
+    private void requeue(ByteBuffer batch, long position, IOException failure) {
+        batch.rewind();
+        synchronized (appendLock) {
+            ByteBuffer restored = ByteBuffer.allocate(Math.max(active.capacity(), batch.remaining() + active.position()));
+            restored.put(batch);
+            active.flip();
+            restored.put(active);
+            active.clear();
+            batch.clear();
+            spare = active;
+            active = restored;
+        }
+        try {
+            channel.position(position);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    public long getRecordCount() {
+        synchronized (appendLock) {
+            return recordCount;
+        }
+    }
+
+    /**
+     * Closes the current segment and starts the next, marked with the bank_history.dat
+     * length; returns its number. Callers keep writers out so the cut is consistent.
+     */
+    public long rotate(long historyLength) throws IOException {
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                writeOut(takeActive(), false);
+                durableRecords = appendedRecords;
+                // The old segment stays open for appending until the new one is
+                FileChannel next = segmentChannels.apply(FileChannel.open(segmentPath(segment + 1), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE));
+                channel.close();
+                channel = next;
+                segment++;
+                append(TYPE_HISTORY_MARK, 0, historyLength, 0, NO_PAYLOAD);
+                recordCount = 0;
+                writeOut(takeActive(), true);
+                durableRecords = appendedRecords;
+                return segment;
+            }
+        }
+    }
+
+    // Called once a snapshot covers every record before the given segment
+    public void deleteSegmentsBefore(long firstSegment) throws IOException {
+        for (long number : listSegments()) {
+            if (number < firstSegment) {
+                Files.deleteIfExists(segmentPath(number));
+            }
+        }
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(baseName + "." + number + ".dat");
+    }
+
+    private List<Long> listSegments() throws IOException {
+        return SnapshotStore.listNumbered(directory, baseName, ".dat");
+    }
+
+    public void close() throws IOException {
+        commit();
+        channel.close();
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+/**
+ * Binary checkpoints of the account table, bank_snapshot.<n>.dat, where n is the first
+ * journal segment the snapshot does not cover. A snapshot is a header (magic, version,
+ * account count), one record per account (number and balance in cents, then holder name,
+ * password hash and account type as length-prefixed UTF-8) and a CRC32 of everything
+ * before it. Snapshots are written under a temporary name and renamed into place; loading
+ * still falls back to an older one if the newest fails its checksum.
+ */
+class SnapshotStore {
+    private static final int MAGIC = 0x424E4B53;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    interface Handler {
+        void onAccount(int accountNumber, String accountHolderName, String passwordHash, String accountType, long balance);
+    }
+
+    private final Path directory;
+    private final String baseName;
+
+    public SnapshotStore(Path directory, String baseName) {
+        this.directory = directory;
+        this.baseName = baseName;
+    }
+
+    /**
+     * Loads the newest intact snapshot; returns the journal segment to replay from, or -1 if
+     * there is none. Damaged snapshots are skipped and reported; if every snapshot is
+     * damaged, that is thrown as an IOException instead.
+     */
+    public long load(Handler handler) throws IOException {
+        List<Long> numbers = listNumbered(directory, baseName, ".dat");
+        IOException damaged = null;
+        for (int i = numbers.size() - 1; i >= 0; i--) {
+            long number = numbers.get(i);
+            ByteBuffer in;
+            try (FileChannel channel = FileChannel.open(snapshotPath(number), StandardOpenOption.READ)) {
+                in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (!isIntact(in)) {
+                IOException e = new IOException("Snapshot " + snapshotPath(number) + " failed its checksum");
+                if (damaged == null) {
+                    damaged = e;
+                } else {
+                    damaged.addSuppressed(e);
+                }
+                continue;
+            }
+            if (damaged != null) {
+                damaged.printStackTrace();
+            }
+
+            in.position(8);
+            int count = in.getInt();
+            for (int j = 0; j < count; j++) {
+                int accountNumber = in.getInt();
+                long balance = in.getLong();
+                String accountHolderName = readString(in);
+                String passwordHash = readString(in);
+                String accountType = readString(in);
+                handler.onAccount(accountNumber, accountHolderName, passwordHash, accountType, balance);
+            }
+            return number;
+        }
+        if (damaged != null) {
+            throw damaged;
+        }
+        return -1;
+    }
+
+    public void write(long number, User[] users, long[] balances) throws IOException {
+        Path tempFile = directory.resolve(baseName + "." + number + ".tmp");
+        CRC32 crc = new CRC32();
+        ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            out.putInt(MAGIC).putInt(VERSION).putInt(users.length);
+            for (int i = 0; i < users.length; i++) {
+                byte[] name = users[i].getAccountHolderName().getBytes(StandardCharsets.UTF_8);
+                byte[] passwordHash = users[i].getPasswordHash().getBytes(StandardCharsets.UTF_8);
+                byte[] type = users[i].getAccountType().getBytes(StandardCharsets.UTF_8);
+                if (out.remaining() < 18 + name.length + passwordHash.length + type.length) {
+                    drain(channel, out, crc);
+                }
+                out.putInt(users[i].getAccountNumber()).putLong(balances[i]);
+                out.putShort((short) name.length).put(name);
+                out.putShort((short) passwordHash.length).put(passwordHash);
+                out.putShort((short) type.length).put(type);
+            }
+            drain(channel, out, crc);
+            out.putInt((int) crc.getValue());
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile, snapshotPath(number), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Called once the snapshot for the given segment is in place
+    public void deleteBefore(long number) throws IOException {
+        for (long older : listNumbered(directory, baseName, ".dat")) {
+            if (older < number) {
+                Files.deleteIfExists(snapshotPath(older));
+            }
+        }
+        for (long unfinished : listNumbered(directory, baseName, ".tmp")) {
+            if (unfinished < number) {
+                Files.deleteIfExists(directory.resolve(baseName + "." + unfinished + ".tmp"));
+            }
+        }
+    }
+
+    // Numbers n of the files baseName.<n><suffix> in the directory, ascending
+    static List<Long> listNumbered(Path directory, String baseName, String suffix) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        String prefix = baseName + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                    // Not one of ours, e.g. bank_journal.dat from before segments
+                }
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    private Path snapshotPath(long number) {
+        return directory.resolve(baseName + "." + number + ".dat");
+    }
+
+    private static boolean isIntact(ByteBuffer in) {
+        if (in.limit() < HEADER_SIZE + 4 || in.getInt(0) != MAGIC || in.getInt(4) != VERSION) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(in.duplicate().position(0).limit(in.limit() - 4));
+        return (int) crc.getValue() == in.getInt(in.limit() - 4);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer out, CRC32 crc) throws IOException {
+        out.flip();
+        crc.update(out.duplicate());
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+/**
+ * Line-based TCP front end for Bank, so many sessions can run at once instead of one
+ * Scanner on stdin. One selector thread accepts, reads and writes every connection.
+ * Commands go through a single queue to a committer thread, which applies everything
+ * queued so far, commits the journal once for the lot and only then releases the
+ * replies, in the same way TransactionBatchProcessor commits a group of lines.
+ * Password hashing is far too slow for that thread, so commands carrying a password are
+ * first hashed or checked on a small pool; a connection's later commands wait behind them.
+ * Commands on one connection run in order and may be pipelined. Tokens are separated by
+ * spaces; amounts are in Rs, as on the menu.
+ *
+ *   C name type password            -> OK accountNumber
+ *   O accountNumber password        -> OK sessionToken  (login)
+ *   X sessionToken                  -> OK               (logout)
+ *   D accountNumber amount          -> OK balance       (credit)
+ *   W accountNumber password amount -> OK balance
+ *   W sessionToken amount           -> OK balance
+ *   L accountNumber password amount -> OK balance       (loan)
+ *   L sessionToken amount           -> OK balance
+ *   B accountNumber password        -> OK balance
+ *   B sessionToken                  -> OK balance
+ *   T accountNumber password to amount [to amount ...] -> OK balance  (transfer)
+ *   T sessionToken to amount [to amount ...]           -> OK balance
+ *   P accountNumber password loanId amount -> OK balance (loan repayment)
+ *   P sessionToken loanId amount           -> OK balance
+ *
+ * A transfer with several destinations is applied all or nothing. Contended transfers
+ * between a few hot accounts cost no lock hand-offs here: the committer applies them one
+ * after another and commits the whole group with one fsync.
+ *
+ * Failures answer with the TransactionResult name, e.g. INSUFFICIENT_FUNDS; an expired
+ * session answers AUTHENTICATION_FAILED, and a command the server itself failed on, such
+ * as running out of account numbers to lease, answers INTERNAL_ERROR. So does every
+ * command in a group whose journal commit failed.
+ */
+class BankServer {
+    static final int DEFAULT_PORT = 7070;
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_LINE_LENGTH = 1024;
+    private static final int MAX_COMMIT_GROUP = 10_000;
+    // Stop reading from a connection while this many of its commands are waiting for a reply
+    private static final int MAX_PENDING_COMMANDS = 1024;
+
+    private final Bank bank;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final BlockingQueue<Command> commands = new LinkedBlockingQueue<>();
+    private final Queue<Session> readyToWrite = new ConcurrentLinkedQueue<>();
+    private final Thread committer = new Thread(this::commitLoop, "bank-committer");
+    private final ExecutorService hashers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    private volatile boolean running = true;
+
+    public BankServer(Bank bank, int port) throws IOException {
+        this.bank = bank;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 4096);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void run() throws IOException {
+        committer.start();
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        while (running) {
+            selector.select();
+            Session ready;
+            while ((ready = readyToWrite.poll()) != null) {
+                ready.flush();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Session session = (Session) key.attachment();
+                if (key.isReadable()) {
+                    session.read(readBuffer);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    session.flush();
+                }
+            }
+        }
+        hashers.shutdownNow();
+        committer.interrupt();
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Session(key));
+        }
+    }
+
+    // Committer thread: commands already queued when it wakes up share one journal commit
+    private void commitLoop() {
+        List<Command> group = new ArrayList<>();
+        while (true) {
+            try {
+                group.add(commands.take());
+            } catch (InterruptedException e) {
+                // Stopping; whatever is still queued never got an answer, so it is dropped
+                return;
+            }
+            commands.drainTo(group, MAX_COMMIT_GROUP - 1);
+            for (Command command : group) {
+                String reply;
+                try {
+                    reply = execute(command);
+                } catch (RuntimeException e) {
+                    // One failed command must not stop this thread, or no connection gets another reply
+                    e.printStackTrace();
+                    reply = TransactionResult.INTERNAL_ERROR.name();
+                }
+                command.reply = (reply + "\n").getBytes(StandardCharsets.UTF_8);
+            }
+            // Nothing in a group whose commit failed is known to be durable, so no reply may say OK
+            byte[] failed = bank.commitJournal() ? null
+                    : (TransactionResult.INTERNAL_ERROR.name() + "\n").getBytes(StandardCharsets.UTF_8);
+            for (Command command : group) {
+                command.session.addReply(failed != null ? failed : command.reply);
+            }
+            group.clear();
+            selector.wakeup();
+        }
+    }
+
+    // Hasher thread: the expensive half of a command, done before it reaches the committer
+    private void prepare(Command command) {
+        String[] parts = command.parts;
+        try {
+            if (parts[0].equals("C") && parts.length == 4) {
+                command.passwordHash = PasswordHasher.hash(parts[3]);
+            } else if (hasPassword(parts)) {
+                TransactionResult access = bank.checkPassword(Integer.parseInt(parts[1]), parts[2]);
+                // An account opened earlier on this connection may not be committed yet; check again in order
+                command.access = access == TransactionResult.ACCOUNT_NOT_FOUND ? null : access;
+            }
+        } catch (NumberFormatException e) {
+            // execute answers MALFORMED_REQUEST
+        } finally {
+            // Whatever happened, or the connection's later commands would wait behind this one forever
+            command.session.markReady(command);
+        }
+    }
+
+    private static boolean needsHashing(String[] parts) {
+        return (parts[0].equals("C") && parts.length == 4) || hasPassword(parts);
+    }
+
+    // "O accountNumber password" and the password forms of W, L, B, P and T
+    private static boolean hasPassword(String[] parts) {
+        switch (parts[0]) {
+            case "O":
+            case "B":
+                return parts.length == 3;
+            case "W":
+            case "L":
+                return parts.length == 4;
+            case "P":
+                return parts.length == 5;
+            case "T":
+                return parts.length >= 5 && parts.length % 2 == 1;
+            default:
+                return false;
+        }
+    }
+
+    // Applies one command without committing the journal; commitLoop commits the group
+    String execute(Command command) {
+        String[] parts = command.parts;
+        int[] account = new int[1];
+        try {
+            switch (parts[0]) {
+                case "C":
+                    if (parts.length != 4 || command.passwordHash == null) {
+                        break;
+                    }
+                    int opened = bank.openAccountWithHash(parts[1], parts[2], command.passwordHash);
+                    return opened < 0 ? TransactionResult.INTERNAL_ERROR.name() : "OK " + opened;
+                case "O":
+                    if (parts.length != 3) {
+                        break;
+                    }
+                    TransactionResult access = authorize(command, account);
+                    return access == TransactionResult.SUCCESS ? "OK " + bank.openSession(account[0]) : access.name();
+                case "X":
+                    if (parts.length != 2) {
+                        break;
+                    }
+                    bank.logout(parts[1]);
+                    return "OK";
+                case "D":
+                    if (parts.length != 3) {
+                        break;
+                    }
+                    int creditAccountNumber = Integer.parseInt(parts[1]);
+                    return reply(creditAccountNumber,
+                            bank.applyDeposit(creditAccountNumber, Money.parseCents(parts[2]), TransactionType.DEPOSIT));
+                case "W":
+                    if (parts.length < 3 || parts.length > 4) {
+                        break;
+                    }
+                    TransactionResult withdrawAccess = authorize(command, account);
+                    if (withdrawAccess != TransactionResult.SUCCESS) {
+                        return withdrawAccess.name();
+                    }
+                    return reply(account[0], bank.applyDebit(account[0], Money.parseCents(parts[parts.length - 1])));
+                case "L":
+                    if (parts.length < 3 || parts.length > 4) {
+                        break;
+                    }
+                    TransactionResult loanAccess = authorize(command, account);
+                    if (loanAccess != TransactionResult.SUCCESS) {
+                        return loanAccess.name();
+                    }
+                    return reply(account[0], bank.applyLoan(account[0], Money.parseCents(parts[parts.length - 1])));
+                case "P":
+                    if (parts.length < 4 || parts.length > 5) {
+                        break;
+                    }
+                    TransactionResult repayAccess = authorize(command, account);
+                    if (repayAccess != TransactionResult.SUCCESS) {
+                        return repayAccess.name();
+                    }
+                    return reply(account[0], bank.applyRepayment(account[0], Integer.parseInt(parts[parts.length - 2]),
+                            Money.parseCents(parts[parts.length - 1])));
+                case "B":
+                    if (parts.length < 2 || parts.length > 3) {
+                        break;
+                    }
+                    TransactionResult balanceAccess = authorize(command, account);
+                    if (balanceAccess != TransactionResult.SUCCESS) {
+                        return balanceAccess.name();
+                    }
+                    return "OK " + Money.format(bank.getBalance(account[0]));
+                case "T":
+                    if (parts.length < 4) {
+                        break;
+                    }
+                    TransactionResult transferAccess = authorize(command, account);
+                    if (transferAccess != TransactionResult.SUCCESS) {
+                        return transferAccess.name();
+                    }
+                    TransferBatch batch = new TransferBatch();
+                    for (int i = hasPassword(parts) ? 3 : 2; i + 1 < parts.length; i += 2) {
+                        batch.add(account[0], Integer.parseInt(parts[i]), Money.parseCents(parts[i + 1]));
+                    }
+                    return reply(account[0], bank.applyTransfer(batch));
+                default:
+                    break;
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            // Answered as MALFORMED_REQUEST below; an amount too large for cents is an ArithmeticException
+        }
+        return TransactionResult.MALFORMED_REQUEST.name();
+    }
+
+    // Works out which account a command acts for, from its session token or its checked password
+    private TransactionResult authorize(Command command, int[] account) {
+        String[] parts = command.parts;
+        if (!hasPassword(parts)) {
+            account[0] = bank.getSessionAccount(parts[1]);
+            return account[0] < 0 ? TransactionResult.AUTHENTICATION_FAILED : TransactionResult.SUCCESS;
+        }
+        account[0] = Integer.parseInt(parts[1]);
+        return command.access != null ? command.access : bank.checkPassword(account[0], parts[2]);
+    }
+
+    private String reply(int accountNumber, TransactionResult result) {
+        return result == TransactionResult.SUCCESS ? "OK " + Money.format(bank.getBalance(accountNumber)) : result.name();
+    }
+
+    private static class Command {
+        final Session session;
+        final String[] parts;
+        // Filled in by prepare() for commands that carry a password
+        String passwordHash;
+        TransactionResult access;
+        boolean ready;
+        byte[] reply;
+
+        Command(Session session, String line) {
+            this.session = session;
+            this.parts = line.trim().split(" +");
+        }
+    }
+
+    /**
+     * Per-connection state. The selector thread owns the socket and the partial input line;
+     * replies are added by the committer and written by the selector, under the session's monitor.
+     */
+    private class Session {
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream(64);
+        private final ArrayDeque<ByteBuffer> replies = new ArrayDeque<>();
+        // Commands read but not yet handed to the committer, oldest first
+        private final ArrayDeque<Command> waiting = new ArrayDeque<>();
+        private int pending;
+
+        Session(SelectionKey key) {
+            this.key = key;
+            this.channel = (SocketChannel) key.channel();
+        }
+
+        // Selector thread
+        void read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
+                close();
+                return;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    accept(new Command(this, partialLine.toString(StandardCharsets.UTF_8)));
+                    partialLine.reset();
+                } else if (b != '\r') {
+                    partialLine.write(b);
+                }
+            }
+            if (partialLine.size() > MAX_LINE_LENGTH) {
+                close();
+                return;
+            }
+            synchronized (this) {
+                release();
+                if (pending >= MAX_PENDING_COMMANDS) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            }
+        }
+
+        private void accept(Command command) {
+            boolean hash = needsHashing(command.parts);
+            synchronized (this) {
+                command.ready = !hash;
+                waiting.add(command);
+                pending++;
+            }
+            if (hash) {
+                hashers.execute(() -> prepare(command));
+            }
+        }
+
+        // Hasher thread
+        void markReady(Command command) {
+            synchronized (this) {
+                command.ready = true;
+                release();
+            }
+        }
+
+        // Hands over the prepared commands at the front, so a slow hash never lets later ones overtake it
+        private void release() {
+            while (!waiting.isEmpty() && waiting.peek().ready) {
+                commands.add(waiting.poll());
+            }
+        }
+
+        // Committer thread
+        void addReply(byte[] reply) {
+            boolean first;
+            synchronized (this) {
+                first = replies.isEmpty();
+                replies.add(ByteBuffer.wrap(reply));
+                pending--;
+            }
+            if (first) {
+                readyToWrite.add(this);
+            }
+        }
+
+        // Selector thread
+        void flush() throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            synchronized (this) {
+                try {
+                    while (!replies.isEmpty()) {
+                        ByteBuffer reply = replies.peek();
+                        channel.write(reply);
+                        if (reply.hasRemaining()) {
+                            break;
+                        }
+                        replies.poll();
+                    }
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+                int ops = pending < MAX_PENDING_COMMANDS ? SelectionKey.OP_READ : 0;
+                if (!replies.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ops);
+            }
+        }
+
+        private void close() throws IOException {
+            key.cancel();
+            channel.close();
+        }
+    }
+}
+
+/**
+ * Bank workloads for the JMH suite, prepared in a working directory that starts empty.
+ * The datasets look like a real bank's: holder names drawn from common first and last
+ * names, seven in ten accounts savings, balances spread log-normally over several orders
+ * of magnitude, and a journal holding the transactions since the last checkpoint. A few
+ * accounts see most of the traffic, both in the journal and in the lookups.
+ */
+class BankBenchmarks {
+    private static final String[] FIRST_NAMES = {"Aarav", "Priya", "Rohan", "Ananya", "Vikram", "Sneha", "Arjun",
+            "Kavya", "Rahul", "Meera", "Aditya", "Isha", "Karan", "Pooja", "Siddharth", "Neha", "Amit", "Divya",
+            "Rajesh", "Lakshmi", "John", "Maria", "Wei", "Fatima", "Carlos", "Emma", "Yusuf", "Sara"};
+    private static final String[] LAST_NAMES = {"Sharma", "Patel", "Iyer", "Reddy", "Nair", "Gupta", "Singh",
+            "Kumar", "Das", "Joshi", "Mehta", "Kulkarni", "Rao", "Chopra", "Menon", "Bose", "Pillai", "Verma",
+            "Smith", "Garcia", "Chen", "Khan", "Silva", "Brown"};
+    // Half of the records that trigger a checkpoint, what a restart finds on average
+    private static final int JOURNAL_RECORDS = 50_000;
+    // Lines per batch file, so a batch's milliseconds read as milliseconds per million transactions
+    private static final int BATCH_LINES = 1_000_000;
+    private static final int PICKS = 1 << 16;
+
+    static Benchmarks.Workload prepare(String benchmark, int size) throws IOException {
+        Random random = new Random(42);
+        switch (benchmark) {
+            case "bank.addTransaction":
+                return addTransaction(size, random);
+            case "bank.getBalance": {
+                writeDataset(size, JOURNAL_RECORDS, random);
+                Bank bank = new Bank();
+                int[] picks = picks(size, random);
+                int[] next = new int[1];
+                return () -> bank.getBalance(AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + picks[next[0]++ & (PICKS - 1)]);
+            }
+            case "bank.getTransactionHistory": {
+                writeDataset(size, JOURNAL_RECORDS, random);
+                Bank bank = new Bank();
+                int[] picks = picks(size, random);
+                int[] next = new int[1];
+                return () -> {
+                    int accountNumber = AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + picks[next[0]++ & (PICKS - 1)];
+                    return bank.getTransactionHistory(accountNumber, 0, 10).size();
+                };
+            }
+            case "bank.transfer": {
+                // Journaled transfers between skewed accounts; each thread of a -t run draws its own
+                writeDataset(size, JOURNAL_RECORDS, random);
+                Bank bank = new Bank();
+                int[] picks = picks(size, random);
+                return () -> {
+                    ThreadLocalRandom local = ThreadLocalRandom.current();
+                    int from = picks[local.nextInt(PICKS)];
+                    int to = picks[local.nextInt(PICKS)];
+                    if (to == from) {
+                        to = (to + 1) % size;
+                    }
+                    return bank.transfer(AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + from,
+                            AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + to, 1 + local.nextInt(100_00)).ordinal();
+                };
+            }
+            case "bank.batchIngest":
+                return batchIngest(size, random);
+            case "bank.loadUserData":
+                return loadUserData(size, JOURNAL_RECORDS, random);
+            case "bank.coldStart1M":
+                // A restart after a crash just before a checkpoint: 1M accounts and the longest journal tail there can be
+                return loadUserData(1_000_000, (int) Bank.CHECKPOINT_RECORDS, random);
+            default:
+                throw new IllegalArgumentException("Unknown benchmark: " + benchmark);
+        }
+    }
+
+    // Users without storage, so this is the balance and history update alone; Bank.deposit adds the journal
+    private static Benchmarks.Workload addTransaction(int size, Random random) {
+        User[] users = new User[size];
+        for (int i = 0; i < size; i++) {
+            users[i] = new User(AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + i, "Holder", "", 0, "savings");
+        }
+        int[] picks = picks(size, random);
+        int[] next = new int[1];
+        return () -> {
+            int pick = next[0]++;
+            User user = users[picks[pick & (PICKS - 1)]];
+            if ((pick & 1) == 0) {
+                user.addTransaction(10_00, TransactionType.DEPOSIT);
+            } else {
+                user.addTransaction(-10_00, TransactionType.WITHDRAWAL);
+            }
+            return user.getBalance();
+        };
+    }
+
+    /**
+     * One run of the batch processor over a file of payroll-style credits, withdrawals and
+     * transfers, as the batch menu option runs it: outcomes written per line and the journal
+     * committed per group. Every run replays the same file against the balances it left.
+     */
+    private static Benchmarks.Workload batchIngest(int size, Random random) throws IOException {
+        writeDataset(size, JOURNAL_RECORDS, random);
+        Bank bank = new Bank();
+        Path input = Paths.get("batch.csv");
+        int[] picks = picks(size, random);
+        try (BufferedWriter writer = Files.newBufferedWriter(input, StandardCharsets.UTF_8)) {
+            writer.write("accountNumber,type,amount,toAccountNumber");
+            writer.newLine();
+            for (int i = 0; i < BATCH_LINES; i++) {
+                int account = AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + picks[i & (PICKS - 1)];
+                String amount = Money.format((long) (2_000_00 * Math.exp(random.nextGaussian())));
+                int kind = random.nextInt(10);
+                if (kind < 5) {
+                    writer.write(account + ",CREDIT," + amount);
+                } else if (kind < 8) {
+                    writer.write(account + ",WITHDRAW," + amount);
+                } else {
+                    int to = AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + random.nextInt(size);
+                    writer.write(account + ",TRANSFER," + amount + "," + to);
+                }
+                writer.newLine();
+            }
+        }
+        TransactionBatchProcessor processor = new TransactionBatchProcessor(bank);
+        Path outcomes = Paths.get("batch_outcomes.csv");
+        return () -> {
+            try {
+                return processor.process(input, outcomes).getSucceeded();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    // Times the Bank constructor, which is loadUserData plus scheduling; every run starts from the same files
+    private static Benchmarks.Workload loadUserData(int size, int journalRecords, Random random) throws IOException {
+        writeDataset(size, journalRecords, random);
+        Path dataset = Paths.get("dataset");
+        Files.createDirectory(dataset);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("."), Files::isRegularFile)) {
+            for (Path file : files) {
+                Files.copy(file, dataset.resolve(file.getFileName()));
+            }
+        }
+        return new Benchmarks.Workload() {
+            private Bank bank;
+
+            public long getAsLong() {
+                bank = new Bank();
+                return bank.getBalance(AccountNumberAllocator.FIRST_ACCOUNT_NUMBER);
+            }
+
+            public void close() throws IOException {
+                if (bank != null) {
+                    bank.shutdown();
+                    bank = null;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("."), Files::isRegularFile)) {
+                    for (Path file : files) {
+                        Files.delete(file);
+                    }
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dataset)) {
+                    for (Path file : files) {
+                        Files.copy(file, file.getFileName());
+                    }
+                }
+            }
+        };
+    }
+
+    // Writes snapshot 0 with the accounts and journal segment 0 with the transactions since, as Bank names them
+    private static void writeDataset(int size, int journalRecords, Random random) throws IOException {
+        // Every holder shares one hash; hashing is slow on purpose and loading doesn't depend on it
+        String passwordHash = PasswordHasher.hash("benchmark");
+        User[] users = new User[size];
+        long[] balances = new long[size];
+        for (int i = 0; i < size; i++) {
+            String name = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " " + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+            // Median Rs 25,000, but some accounts hold a few hundred and some tens of lakhs
+            balances[i] = (long) (25_000_00 * Math.exp(random.nextGaussian() * 1.5));
+            users[i] = new User(AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + i, name, passwordHash, balances[i],
+                    random.nextInt(10) < 7 ? "savings" : "current");
+        }
+        new SnapshotStore(Paths.get("."), "bank_snapshot").write(0, users, balances);
+
+        TransactionJournal journal = new TransactionJournal(Paths.get("."), "bank_journal");
+        // There are no segments yet, so this only opens segment 0 and never calls a handler
+        journal.replay(0, null);
+        int[] picks = picks(size, random);
+        long timestamp = System.currentTimeMillis() - journalRecords * 1_000L;
+        for (int i = 0; i < journalRecords; i++) {
+            int index = picks[i & (PICKS - 1)];
+            long amount = (long) (2_000_00 * Math.exp(random.nextGaussian()));
+            if (random.nextBoolean() && balances[index] >= amount) {
+                balances[index] -= amount;
+                journal.appendTransaction(users[index].getAccountNumber(), TransactionType.WITHDRAWAL, -amount,
+                        balances[index], timestamp + i * 1_000L);
+            } else {
+                balances[index] += amount;
+                journal.appendTransaction(users[index].getAccountNumber(), TransactionType.DEPOSIT, amount,
+                        balances[index], timestamp + i * 1_000L);
+            }
+        }
+        journal.close();
+    }
+
+    // Account indexes skewed towards the front, as a few accounts see most of the traffic
+    private static int[] picks(int size, Random random) {
+        int[] picks = new int[PICKS];
+        for (int i = 0; i < PICKS; i++) {
+            picks[i] = (int) (size * Math.pow(random.nextDouble(), 3));
+        }
+        return picks;
+    }
+}
+
+/**
+ * Checks run from the command line against a bank of their own, written to an empty
+ * working directory. Each prints what it found and exits with status 1 if the bank broke
+ * a promise, so they can gate a build.
+ *
+ * --check-recovery kills a bank busy with journaled deposits, withdrawals and transfers
+ * at random moments and restarts it. Every acknowledged transaction has to come back, and
+ * nothing else but some of those still in flight at the kill. Every other restart also
+ * finds half a record after the journal's tail, as a crash in the middle of a write
+ * leaves it.
+ *
+ * --check-conservation runs deposits, withdrawals and single and multi-leg transfers on
+ * many threads over a few accounts, so they contend for the same locks. Afterwards the
+ * total has to be what it was plus the deposits less the withdrawals, no balance may be
+ * negative, and a restart has to find the same total. Threads still busy long after the
+ * deadline count as a deadlock.
+ *
+ * --check-journal-failure makes journal commits fail, part way through a write and at the
+ * fsync. Every record has to replay once and in order after the next commit that works,
+ * and meanwhile the bank has to answer INTERNAL_ERROR and refuse further writes, and a
+ * batch has to stop without reporting the failed group's lines as successes.
+ */
+class BankChecks {
+    private static final int ACCOUNTS = 64;
+    private static final int WRITER_THREADS = 4;
+
+    static boolean checkRecovery(int rounds) throws IOException, InterruptedException {
+        if (!isEmptyWorkingDirectory("--check-recovery")) {
+            return false;
+        }
+        Bank bank = new Bank();
+        String passwordHash = PasswordHasher.hash("check");
+        long[] balances = new long[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            bank.openAccountWithHash("Holder " + i, "savings", passwordHash);
+            balances[i] = bank.getBalance(AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + i);
+        }
+        bank.shutdown();
+
+        Random random = new Random();
+        long acknowledged = 0;
+        long inFlightAtKills = 0;
+        for (int round = 1; round <= rounds; round++) {
+            Process writer = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), "OnlineBankSystem", "--check-recovery", "--writer")
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            BufferedReader output = new BufferedReader(new InputStreamReader(writer.getInputStream(), StandardCharsets.UTF_8));
+            if (!"READY".equals(output.readLine())) {
+                writer.destroyForcibly();
+                System.out.println("Round " + round + ": the bank did not start after the last kill");
+                return false;
+            }
+            // Read while it runs, so a full pipe never holds the writers up
+            List<String> lines = new ArrayList<>();
+            Thread reader = new Thread(() -> {
+                try {
+                    String line;
+                    while ((line = output.readLine()) != null) {
+                        lines.add(line);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            reader.start();
+            Thread.sleep(100 + random.nextInt(500));
+            // Through the handle, which only sends the signal; Process.destroyForcibly also closes the pipe being read
+            writer.toHandle().destroyForcibly();
+            writer.waitFor();
+            reader.join();
+
+            // Operations begun and not finished, by key; each is {from index, to index, amount}, -1 for no account
+            Map<String, long[]> inFlight = new LinkedHashMap<>();
+            for (String line : lines) {
+                String[] parts = line.split(" ");
+                if (parts[0].equals("B") && parts.length == 5) {
+                    inFlight.put(parts[1], new long[]{Long.parseLong(parts[2]), Long.parseLong(parts[3]), Long.parseLong(parts[4])});
+                } else if (parts[0].equals("E") && parts.length == 3) {
+                    long[] operation = inFlight.remove(parts[1]);
+                    if (parts[2].equals(TransactionResult.SUCCESS.name())) {
+                        apply(balances, operation);
+                        acknowledged++;
+                    }
+                }
+            }
+            inFlightAtKills += inFlight.size();
+
+            if (round % 2 == 0) {
+                List<Long> segments = SnapshotStore.listNumbered(Paths.get("."), "bank_journal", ".dat");
+                byte[] torn = new byte[1 + random.nextInt(2 * TransactionJournal.RECORD_SIZE)];
+                random.nextBytes(torn);
+                Files.write(Paths.get("bank_journal." + segments.get(segments.size() - 1) + ".dat"), torn,
+                        StandardOpenOption.APPEND);
+            }
+
+            Bank recovered = new Bank();
+            long[] found = new long[ACCOUNTS];
+            for (int i = 0; i < ACCOUNTS; i++) {
+                found[i] = recovered.getBalance(AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + i);
+            }
+            recovered.shutdown();
+
+            // Each operation in flight may or may not have made it, so some subset of them has to explain the rest
+            List<long[]> pending = new ArrayList<>(inFlight.values());
+            boolean explained = false;
+            for (int subset = 0; subset < 1 << pending.size() && !explained; subset++) {
+                long[] expected = balances.clone();
+                for (int j = 0; j < pending.size(); j++) {
+                    if ((subset & 1 << j) != 0) {
+                        apply(expected, pending.get(j));
+                    }
+                }
+                explained = Arrays.equals(expected, found);
+            }
+            if (!explained) {
+                System.out.println("Round " + round + ": recovered balances are neither the acknowledged ones nor those plus any of the "
+                        + pending.size() + " transactions in flight");
+                for (int i = 0; i < ACCOUNTS; i++) {
+                    if (found[i] != balances[i]) {
+                        System.out.println("  account " + (AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + i) + ": acknowledged Rs "
+                                + Money.format(balances[i]) + ", recovered Rs " + Money.format(found[i]));
+                    }
+                }
+                return false;
+            }
+            balances = found;
+        }
+        System.out.println("Recovery check passed: " + rounds + " kills, " + acknowledged + " acknowledged transactions recovered, "
+                + inFlightAtKills + " in flight at the kills, " + rounds / 2 + " torn tails dropped");
+        return true;
+    }
+
+    static boolean checkConservation(int threads, int seconds) throws IOException, InterruptedException {
+        if (!isEmptyWorkingDirectory("--check-conservation")) {
+            return false;
+        }
+        Bank bank = new Bank();
+        String passwordHash = PasswordHasher.hash("check");
+        for (int i = 0; i < ACCOUNTS; i++) {
+            bank.openAccountWithHash("Holder " + i, "savings", passwordHash);
+        }
+        long before = total(bank);
+
+        // Successful deposits less successful withdrawals; transfers must not change the total
+        AtomicLong netDeposits = new AtomicLong();
+        AtomicLong operations = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                Random random = new Random();
+                while (System.nanoTime() < deadline) {
+                    int kind = random.nextInt(10);
+                    long amount = 1 + random.nextInt(50_000);
+                    int account = AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + random.nextInt(ACCOUNTS);
+                    if (kind == 0) {
+                        if (bank.deposit(account, amount) == TransactionResult.SUCCESS) {
+                            netDeposits.addAndGet(amount);
+                        }
+                    } else if (kind == 1) {
+                        if (bank.debit(account, amount) == TransactionResult.SUCCESS) {
+                            netDeposits.addAndGet(-amount);
+                        }
+                    } else {
+                        // Mostly one leg, sometimes a chain of two or three in whatever order the accounts come
+                        TransferBatch batch = new TransferBatch();
+                        int legs = kind < 7 ? 1 : 2 + random.nextInt(2);
+                        for (int leg = 0; leg < legs; leg++) {
+                            int to = AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + random.nextInt(ACCOUNTS);
+                            if (to == account) {
+                                to = AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + (to - AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + 1) % ACCOUNTS;
+                            }
+                            batch.add(account, to, amount);
+                            account = to;
+                        }
+                        bank.transfer(batch);
+                    }
+                    operations.incrementAndGet();
+                }
+            }, "conservation-" + t);
+            workers[t].setDaemon(true);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.SECONDS.toMillis(seconds + 30));
+            if (worker.isAlive()) {
+                long[] deadlocked = ManagementFactory.getThreadMXBean().findDeadlockedThreads();
+                System.out.println("Conservation check: " + worker.getName() + " is still running 30 s after the deadline"
+                        + (deadlocked != null ? "; " + deadlocked.length + " threads are deadlocked" : ""));
+                return false;
+            }
+        }
+
+        boolean passed = true;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            long balance = bank.getBalance(AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + i);
+            if (balance < 0) {
+                System.out.println("Conservation check: account " + (AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + i)
+                        + " is overdrawn at Rs " + Money.format(balance));
+                passed = false;
+            }
+        }
+        long after = total(bank);
+        if (after != before + netDeposits.get()) {
+            System.out.println("Conservation check: the accounts hold Rs " + Money.format(after) + ", not Rs "
+                    + Money.format(before) + " plus net deposits of Rs " + Money.format(netDeposits.get()));
+            passed = false;
+        }
+        bank.shutdown();
+        Bank restarted = new Bank();
+        long recovered = total(restarted);
+        restarted.shutdown();
+        if (recovered != after) {
+            System.out.println("Conservation check: after a restart the accounts hold Rs " + Money.format(recovered)
+                    + ", not Rs " + Money.format(after));
+            passed = false;
+        }
+        if (passed) {
+            System.out.println("Conservation check passed: " + operations.get() + " operations on " + threads + " threads over "
+                    + ACCOUNTS + " accounts, Rs " + Money.format(after) + " held before and after a restart");
+        }
+        return passed;
+    }
+
+    static boolean checkJournalFailure() throws IOException {
+        if (!isEmptyWorkingDirectory("--check-journal-failure")) {
+            return false;
+        }
+        boolean passed = true;
+
+        // The journal alone: one commit fails part way through its write, the next at the fsync
+        AtomicInteger failure = new AtomicInteger(FailingChannel.NONE);
+        TransactionJournal journal = new TransactionJournal(Paths.get("."), "check_journal",
+                channel -> new FailingChannel(channel, failure));
+        journal.replay(0, new RecordingHandler(new ArrayList<>()));
+        long record = 0;
+        int[] failingAt = {FailingChannel.WRITE, FailingChannel.FORCE};
+        for (int round = 0; round < 2 + failingAt.length; round++) {
+            failure.set(round < failingAt.length ? failingAt[round] : FailingChannel.NONE);
+            for (int i = 0; i < 300; i++, record++) {
+                journal.appendTransaction(AccountNumberAllocator.FIRST_ACCOUNT_NUMBER, TransactionType.DEPOSIT, record, record, record);
+            }
+            boolean committed;
+            try {
+                journal.commit();
+                committed = true;
+            } catch (IOException e) {
+                committed = false;
+            }
+            if (committed == (failure.get() != FailingChannel.NONE)) {
+                System.out.println("Journal failure check: commit " + (committed ? "worked" : "failed") + " in round " + round);
+                passed = false;
+            }
+        }
+        journal.close();
+        List<Long> replayed = new ArrayList<>();
+        new TransactionJournal(Paths.get("."), "check_journal").replay(0, new RecordingHandler(replayed));
+        for (int i = 0; i < Math.max(replayed.size(), record); i++) {
+            if (i >= replayed.size() || i >= record || replayed.get(i) != i) {
+                System.out.println("Journal failure check: record " + i + " replayed as "
+                        + (i < replayed.size() ? replayed.get(i) : "nothing") + " of " + replayed.size() + ", not " + i + " of " + record);
+                passed = false;
+                break;
+            }
+        }
+
+        // The bank: a write whose commit fails answers INTERNAL_ERROR, and later writes are refused until one works
+        Bank bank = new Bank(channel -> new FailingChannel(channel, failure));
+        String passwordHash = PasswordHasher.hash("check");
+        int first = bank.openAccountWithHash("Holder 0", "savings", passwordHash);
+        int second = bank.openAccountWithHash("Holder 1", "savings", passwordHash);
+        long opening = bank.getBalance(first);
+        failure.set(FailingChannel.WRITE);
+        TransactionResult lost = bank.deposit(first, 10_000);
+        TransactionResult refused = bank.transfer(first, second, 1);
+        int unopened = bank.openAccountWithHash("Holder 2", "savings", passwordHash);
+        failure.set(FailingChannel.NONE);
+        TransactionResult retried = bank.deposit(second, 20_000);
+        if (lost != TransactionResult.INTERNAL_ERROR || refused != TransactionResult.INTERNAL_ERROR || unopened >= 0
+                || retried != TransactionResult.SUCCESS) {
+            System.out.println("Journal failure check: the bank answered " + lost + ", " + refused + " and account " + unopened
+                    + " while its journal failed, then " + retried);
+            passed = false;
+        }
+        // The failed deposit went out with the commit that worked; the refused transfer never ran
+        if (bank.getBalance(first) != opening + 10_000 || bank.getBalance(second) != opening + 20_000) {
+            System.out.println("Journal failure check: the accounts hold Rs " + Money.format(bank.getBalance(first)) + " and Rs "
+                    + Money.format(bank.getBalance(second)) + ", not Rs " + Money.format(opening + 10_000) + " and Rs "
+                    + Money.format(opening + 20_000));
+            passed = false;
+        }
+
+        // A batch stops at the group whose commit fails and reports none of its lines as done
+        Path input = Paths.get("check_batch.csv");
+        Path outcomes = Paths.get("check_batch_outcomes.csv");
+        Files.write(input, Arrays.asList(first + ",CREDIT,1.00", second + ",CREDIT,1.00", first + ",TRANSFER,1.00," + second));
+        failure.set(FailingChannel.WRITE);
+        boolean stopped;
+        try {
+            new TransactionBatchProcessor(bank).process(input, outcomes);
+            stopped = false;
+        } catch (IOException e) {
+            stopped = true;
+        }
+        failure.set(FailingChannel.NONE);
+        List<String> reported = Files.readAllLines(outcomes);
+        if (!stopped || reported.size() != 3 || reported.stream().anyMatch(line -> line.endsWith("," + TransactionResult.SUCCESS))) {
+            System.out.println("Journal failure check: a batch whose commit failed " + (stopped ? "stopped" : "carried on")
+                    + " and reported " + reported);
+            passed = false;
+        }
+        bank.shutdown();
+        if (passed) {
+            System.out.println("Journal failure check passed: " + record + " records replayed in order after a failed write and"
+                    + " a failed fsync, and the bank and its batches refused writes until the journal worked again");
+        }
+        return passed;
+    }
+
+    // Collects the amount of every transaction replayed
+    private static class RecordingHandler implements TransactionJournal.Handler {
+        private final List<Long> amounts;
+
+        RecordingHandler(List<Long> amounts) {
+            this.amounts = amounts;
+        }
+
+        public void onCreate(int accountNumber, String accountHolderName, String password, String accountType, long balance) {
+        }
+
+        public void onTransaction(int accountNumber, TransactionType type, long amount, long balance, long timestamp) {
+            amounts.add(amount);
+        }
+
+        public void onLoanOpened(int loanId, int accountNumber, long principal, int rateBasisPoints, int termMonths,
+                                 long openedDay, long balance, long timestamp) {
+        }
+
+        public void onLoanRepaid(int loanId, int accountNumber, long amount, long balance, long timestamp) {
+        }
+
+        public void onAccrual(long epochDay) {
+        }
+    }
+
+    /**
+     * A journal segment whose writes can be made to fail, as a full or failing disk makes
+     * them: WRITE gets half of each write out and then throws, FORCE throws from the fsync.
+     */
+    private static class FailingChannel extends FileChannel {
+        static final int NONE = 0;
+        static final int WRITE = 1;
+        static final int FORCE = 2;
+
+        private final FileChannel channel;
+        private final AtomicInteger failure;
+
+        FailingChannel(FileChannel channel, AtomicInteger failure) {
+            this.channel = channel;
+            this.failure = failure;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            if (failure.get() != WRITE) {
+                return channel.write(src);
+            }
+            ByteBuffer half = src.duplicate();
+            half.limit(half.position() + half.remaining() / 2);
+            src.position(src.position() + channel.write(half));
+            throw new IOException("No space left on device");
+        }
+
+        public void force(boolean metaData) throws IOException {
+            if (failure.get() == FORCE) {
+                throw new IOException("Input/output error");
+            }
+            channel.force(metaData);
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(srcs[i]);
+            }
+            return written;
+        }
+
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        public int write(ByteBuffer src, long position) throws IOException {
+            if (failure.get() == WRITE) {
+                throw new IOException("No space left on device");
+            }
+            return channel.write(src, position);
+        }
+
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static long total(Bank bank) {
+        long total = 0;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            total += bank.getBalance(AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + i);
+        }
+        return total;
+    }
+
+    /**
+     * The killed side of --check-recovery: runs deposits, withdrawals and transfers on a few
+     * threads until the process dies, printing each one as it begins (B key from to amount,
+     * indexes or -1) and its result once the call returns (E key result).
+     */
+    static void runRecoveryWriter() {
+        Bank bank = new Bank();
+        System.out.println("READY");
+        for (int t = 0; t < WRITER_THREADS; t++) {
+            int thread = t;
+            new Thread(() -> {
+                Random random = new Random();
+                for (long sequence = 0; ; sequence++) {
+                    int kind = random.nextInt(3);
+                    int from = kind == 0 ? -1 : random.nextInt(ACCOUNTS);
+                    int to = kind == 1 ? -1 : random.nextInt(ACCOUNTS);
+                    if (kind == 2 && to == from) {
+                        to = (to + 1) % ACCOUNTS;
+                    }
+                    long amount = 1 + random.nextInt(100_000);
+                    String key = thread + "." + sequence;
+                    System.out.println("B " + key + " " + from + " " + to + " " + amount);
+                    TransactionResult result;
+                    if (from < 0) {
+                        result = bank.deposit(AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + to, amount);
+                    } else if (to < 0) {
+                        result = bank.debit(AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + from, amount);
+                    } else {
+                        result = bank.transfer(AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + from,
+                                AccountNumberAllocator.FIRST_ACCOUNT_NUMBER + to, amount);
+                    }
+                    System.out.println("E " + key + " " + result);
+                }
+            }, "recovery-writer-" + t).start();
+        }
+    }
+
+    private static void apply(long[] balances, long[] operation) {
+        if (operation[0] >= 0) {
+            balances[(int) operation[0]] -= operation[2];
+        }
+        if (operation[1] >= 0) {
+            balances[(int) operation[1]] += operation[2];
+        }
+    }
+
+    // Refuses a directory that may hold a real bank
+    private static boolean isEmptyWorkingDirectory(String check) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("."))) {
+            if (files.iterator().hasNext()) {
+                System.out.println(check + " writes a bank to the working directory; run it from an empty one");
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+public class OnlineBankSystem {
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--accrual-benchmark")) {
+            benchmarkAccrual(args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--check-recovery")) {
+            if (args.length > 1 && args[1].equals("--writer")) {
+                BankChecks.runRecoveryWriter();
+                return;
+            }
+            boolean passed;
+            try {
+                passed = BankChecks.checkRecovery(args.length > 1 ? Integer.parseInt(args[1]) : 20);
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+                passed = false;
+            }
+            System.exit(passed ? 0 : 1);
+        }
+        if (args.length > 0 && args[0].equals("--check-journal-failure")) {
+            boolean passed;
+            try {
+                passed = BankChecks.checkJournalFailure();
+            } catch (IOException e) {
+                e.printStackTrace();
+                passed = false;
+            }
+            System.exit(passed ? 0 : 1);
+        }
+        if (args.length > 0 && args[0].equals("--check-conservation")) {
+            boolean passed;
+            try {
+                passed = BankChecks.checkConservation(args.length > 1 ? Integer.parseInt(args[1]) : 32,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 10);
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+                passed = false;
+            }
+            System.exit(passed ? 0 : 1);
+        }
+        // Timers are always recorded and in JMX; -Dmetrics.port also serves them as text
+        Metrics.serveIfConfigured();
+        Bank bank;
+        try {
+            bank = new Bank();
+        } catch (UncheckedIOException e) {
+            // The data files do not add up; starting would lose accounts
+            System.out.println("Bank not started: " + e.getCause().getMessage());
+            Metrics.stopServing();
+            System.exit(1);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--serve")) {
+            serve(bank, args.length > 1 ? Integer.parseInt(args[1]) : BankServer.DEFAULT_PORT);
+            return;
+        }
+        Scanner scanner = new Scanner(System.in);
+
+        System.out.println("=============================================");
+        System.out.println("Welcome to the Online Banking System!");
+        System.out.println("=============================================");
+
+        int choice;
+
+        do {
+            System.out.println("\nChoose an option:");
+            System.out.println("1. Create Account");
+            System.out.println("2. Login");
+            System.out.println("3. Apply for Loan");
+            System.out.println("4. Withdraw");
+            System.out.println("5. Credit");
+            System.out.println("6. Batch Transactions");
+            System.out.println("7. Exit");
+            System.out.print("Enter your choice: ");
+            choice = scanner.nextInt();
+
+            switch (choice) {
+                case 1:
+                    bank.createAccount();
+                    break;
+                case 2:
+                    boolean loggedIn = bank.login();
+                    if (loggedIn) {
+                        System.out.print("Do you want to view account information? (y/n): ");
+                        char viewInfoChoice = scanner.next().charAt(0);
+                        if (viewInfoChoice == 'y' || viewInfoChoice == 'Y') {
+                            System.out.print("Enter your account number: ");
+                            int accountNumber = scanner.nextInt();
+                            bank.viewAccountInfo(accountNumber);
+                        }
+                    }
+                    break;
+                case 3:
+                    System.out.print("Enter your account number: ");
+                    int loanAccountNumber = scanner.nextInt();
+                    System.out.print("Enter loan amount: Rs ");
+                    long loanAmount = Money.parseCents(scanner.next());
+                    bank.applyForLoan(loanAccountNumber, loanAmount);
+                    break;
+                case 4:
+                    System.out.print("Enter your account number: ");
+                    int withdrawAccountNumber = scanner.nextInt();
+                    System.out.print("Enter withdrawal amount: Rs ");
+                    long withdrawAmount = Money.parseCents(scanner.next());
+                    bank.withdraw(withdrawAccountNumber, withdrawAmount);
+                    break;
+                case 5:
+                    System.out.print("Enter your account number: ");
+                    int creditAccountNumber = scanner.nextInt();
+                    System.out.print("Enter credit amount: Rs ");
+                    long creditAmount = Money.parseCents(scanner.next());
+                    bank.credit(creditAccountNumber, creditAmount);
+                    break;
+                case 6:
+                    bank.processBatchFile();
+                    break;
+                case 7:
+                    bank.shutdown();
+                    Metrics.stopServing();
+                    System.out.println("=============================================");
+                    System.out.println("Exiting the Online Banking System. Thank you!");
+                    System.out.println("=============================================");
+                    break;
+                default:
+                    System.out.println("Invalid choice. Please enter a valid option.");
+            }
+        } while (choice != 7);
+    }
+
+    // Times end-of-day accrual over a synthetic portfolio; touches no bank files
+    private static void benchmarkAccrual(int loanCount) {
+        Random random = new Random(42);
+        long today = LocalDate.now().toEpochDay();
+        LoanPortfolio portfolio = new LoanPortfolio(loanCount);
+        for (int i = 0; i < loanCount; i++) {
+            portfolio.open(1001 + random.nextInt(1_000_000), 10_000_00 + random.nextInt(5_000_000_00),
+                    300 + random.nextInt(1_500), 12 * (1 + random.nextInt(20)), today - 1 - random.nextInt(3_650));
+        }
+        portfolio.accrueThrough(today - 20);
+
+        int runs = 10;
+        long[] nanos = new long[runs];
+        long interest = 0;
+        for (int run = 0; run < runs; run++) {
+            long start = System.nanoTime();
+            interest += portfolio.accrueThrough(today - 19 + run);
+            nanos[run] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        System.out.println("=============================================");
+        System.out.println("Accrual over " + loanCount + " loans, " + runs + " daily runs, "
+                + ForkJoinPool.getCommonPoolParallelism() + " worker(s)");
+        System.out.printf("Median run: %.1f ms (%.0f loans/s), fastest %.1f ms, slowest %.1f ms%n",
+                nanos[runs / 2] / 1e6, loanCount / (nanos[runs / 2] / 1e9), nanos[0] / 1e6, nanos[runs - 1] / 1e6);
+        System.out.println("Interest accrued: Rs " + Money.format(interest));
+        System.out.println("=============================================");
+    }
+
+    // Runs the network front end until the process is interrupted, then checkpoints the bank
+    private static void serve(Bank bank, int port) {
+        try {
+            BankServer server = new BankServer(bank, port);
+            Thread mainThread = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                try {
+                    mainThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            System.out.println("=============================================");
+            System.out.println("Online Banking System listening on port " + server.getPort());
+            System.out.println("=============================================");
+            server.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        bank.shutdown();
+        Metrics.stopServing();
+    }
+}
@@ -0,0 +1,84 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Bank hot paths on a generated bank of size accounts; the datasets and operations are
+ * BankBenchmarks'. Every method runs in a fork of its own, whose trial prepares the
+ * workload named after the method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BankBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private LongSupplier workload;
+
+    @Setup(Level.Trial)
+    public void prepare(BenchmarkParams params) throws Exception {
+        workload = Workloads.prepare("BankBenchmarks", "bank", params, size);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws Exception {
+        Workloads.close(workload);
+    }
+
+    @Benchmark
+    public long addTransaction() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long getBalance() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long getTransactionHistory() {
+        return workload.getAsLong();
+    }
+
+    // Thread-safe, for scaling: run it with -bm thrpt and -t 1, 2, 4 and so on up to -t 32
+    @Benchmark
+    public long transfer() {
+        return workload.getAsLong();
+    }
+
+    // A million-line transaction file through the batch processor, so ms/op is ms per million
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long batchIngest() {
+        return workload.getAsLong();
+    }
+
+    // The Bank constructor on a snapshot and a journal; each iteration starts from the same files
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long loadUserData() {
+        return workload.getAsLong();
+    }
+}
@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * A bank's restart after a crash at a fixed 1M accounts, apart from BankBenchmark so its
+ * sizes don't repeat it; the dataset is BankBenchmarks'.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BankColdStartBenchmark {
+    private LongSupplier workload;
+
+    @Setup(Level.Trial)
+    public void prepare(BenchmarkParams params) throws Exception {
+        workload = Workloads.prepare("BankBenchmarks", "bank", params, 1_000_000);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws Exception {
+        Workloads.close(workload);
+    }
+
+    // The snapshot of 1M accounts plus the longest journal tail a checkpoint leaves
+    @Benchmark
+    public long coldStart1M() {
+        return workload.getAsLong();
+    }
+}
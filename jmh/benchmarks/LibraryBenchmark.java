@@ -0,0 +1,113 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Library hot paths on a generated catalogue of size books; the datasets and operations
+ * are LibraryBenchmarks'. Every method runs in a fork of its own, whose trial prepares
+ * the workload named after the method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LibraryBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private LongSupplier workload;
+
+    @Setup(Level.Trial)
+    public void prepare(BenchmarkParams params) throws Exception {
+        workload = Workloads.prepare("LibraryBenchmarks", "library", params, size);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws Exception {
+        Workloads.close(workload);
+    }
+
+    @Benchmark
+    public long findBook() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long findBooksByTitle() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long findBooksByAuthor() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long findBooksByGenre() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    public long rankedSearch() {
+        return workload.getAsLong();
+    }
+
+    // Thread-safe, for scaling: run it with -bm thrpt and -t 1, 2, 4 and so on up to -t 32
+    @Benchmark
+    public long borrowAndReturn() {
+        return workload.getAsLong();
+    }
+
+    // Another thread reads snapshot after snapshot meanwhile; compare with borrowAndReturn
+    @Benchmark
+    public long borrowAndReturnDuringReports() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long loadBooksFromFile() {
+        return workload.getAsLong();
+    }
+
+    // Compare with loadBooksFromFile, the text loader it replaces
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long mappedColdStart() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long saveBooksToFile() {
+        return workload.getAsLong();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long exportBooks() {
+        return workload.getAsLong();
+    }
+}
@@ -0,0 +1,65 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Looks up a trial's workload in BankBenchmarks or LibraryBenchmarks, which live in the
+ * unnamed package with the programs; see Benchmarks. Each trial first empties the working
+ * directory, so one dataset's files never leak into the next.
+ */
+final class Workloads {
+    // Left in a directory the suite has taken over; one without it is only used if empty
+    private static final String MARKER = ".benchmark-scratch";
+
+    private Workloads() {
+    }
+
+    // The workload named after the program and the running method, such as bank.getBalance
+    static LongSupplier prepare(String workloads, String program, BenchmarkParams params, int size) throws Exception {
+        String method = params.getBenchmark().substring(params.getBenchmark().lastIndexOf('.') + 1);
+        emptyWorkingDirectory();
+        Method prepare = Class.forName(workloads).getDeclaredMethod("prepare", String.class, int.class);
+        prepare.setAccessible(true);
+        try {
+            return (LongSupplier) prepare.invoke(null, program + "." + method, size);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    static void close(LongSupplier workload) throws Exception {
+        ((AutoCloseable) workload).close();
+    }
+
+    private static void emptyWorkingDirectory() throws IOException {
+        Path directory = Paths.get("").toAbsolutePath();
+        Path marker = directory.resolve(MARKER);
+        if (!Files.exists(marker)) {
+            try (Stream<Path> files = Files.list(directory)) {
+                if (files.findAny().isPresent()) {
+                    throw new IllegalStateException("Benchmarks write their datasets to the working directory; run them from an empty one, not "
+                            + directory);
+                }
+            }
+            Files.createFile(marker);
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                if (!file.equals(directory) && !file.equals(marker)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+}